@@ -0,0 +1,113 @@
+package com.exozet.transcoder.mcvideoeditor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Per frame RGB to YUV conversion of {@link MediaCodecCreateVideo} and MediaCodecStreamFrames, measured in frames
+ * per second.
+ */
+@State(Scope.Thread)
+public class ColorConversionBenchmark {
+
+    @Param({"720p", "1080p", "4k"})
+    public String resolution;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private int width;
+    private int height;
+    private YuvConverter converter;
+    private int[] argb;
+    private ByteBuffer rgba;
+    private int[] abgr;
+    private byte[] i420;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (resolution) {
+            case "720p":
+                width = 1280;
+                height = 720;
+                break;
+            case "1080p":
+                width = 1920;
+                height = 1080;
+                break;
+            default:
+                width = 3840;
+                height = 2160;
+                break;
+        }
+
+        converter = new YuvConverter(parallelism);
+
+        // synthetic frame, random pixels keep the JIT from specializing on constant input
+        argb = converter.argbBuffer(width, height);
+        final Random random = new Random(42);
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = 0xff000000 | random.nextInt(0xffffff);
+        }
+
+        // the same frame as glReadPixels output
+        rgba = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < argb.length; i++) {
+            rgba.put((byte) (argb[i] >> 16)).put((byte) (argb[i] >> 8)).put((byte) argb[i]).put((byte) 0xff);
+        }
+        rgba.flip();
+        abgr = new int[width * height];
+
+        i420 = new byte[YuvConverter.yuvSize(width, height)];
+        random.nextBytes(i420);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        converter.release();
+    }
+
+    @Benchmark
+    public byte[] semiPlanar() {
+        final byte[] yuv = converter.yuvBuffer(width, height);
+        converter.encodeYUV420SP(yuv, argb, width, height);
+        return yuv;
+    }
+
+    @Benchmark
+    public byte[] planar() {
+        final byte[] yuv = converter.yuvBuffer(width, height);
+        converter.encodeYUV420P(yuv, argb, width, height);
+        return yuv;
+    }
+
+    /**
+     * Streaming path, RGBA readback copied into ABGR ints and converted without a channel swap.
+     */
+    @Benchmark
+    public byte[] rgbaReadbackSemiPlanar() {
+        YuvConverter.readRgba(rgba, abgr);
+        final byte[] yuv = converter.yuvBuffer(width, height);
+        converter.encodeYUV420SP(yuv, abgr, width, height, YuvConverter.RED_SHIFT_ABGR);
+        return yuv;
+    }
+
+    /**
+     * Raw intermediate path, a Y4M frame rearranged for a NV12 encoder instead of converted from RGB.
+     */
+    @Benchmark
+    public byte[] rawToSemiPlanar() {
+        final byte[] yuv = converter.yuvBuffer(width, height);
+        YuvConverter.i420ToNv12(i420, yuv, width, height);
+        return yuv;
+    }
+}
@@ -0,0 +1,52 @@
+package com.exozet.transcoder.mcvideoeditor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Area averaging of a 4k frame to thumbnail sizes by {@link FrameScaler}, the CPU fallback of scaling on the surface,
+ * measured in frames per second.  The read back, compressed and stored frame shrinks by the square of the factor.
+ */
+@State(Scope.Thread)
+public class FrameScalerBenchmark {
+
+    @Param({"320", "640", "1280"})
+    public int width;
+
+    @Param({"FIT", "FILL"})
+    public String scale;
+
+    private static final int SOURCE_WIDTH = 3840;
+    private static final int SOURCE_HEIGHT = 2160;
+
+    private FrameScaler scaler;
+    private ByteBuffer source;
+    private ByteBuffer target;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final FrameRegion region = new FrameGeometry(width, width, FrameGeometry.ScaleMode.valueOf(scale), null)
+                .resolve(SOURCE_WIDTH, SOURCE_HEIGHT);
+        scaler = new FrameScaler(region);
+
+        // synthetic frame, random pixels keep the JIT from specializing on constant input
+        final byte[] pixels = new byte[SOURCE_WIDTH * SOURCE_HEIGHT * 4];
+        new Random(42).nextBytes(pixels);
+        source = ByteBuffer.allocateDirect(pixels.length);
+        source.put(pixels).flip();
+        target = ByteBuffer.allocateDirect(region.getWidth() * region.getHeight() * 4);
+    }
+
+    @Benchmark
+    public ByteBuffer scale() {
+        scaler.scale(source, target);
+        return target;
+    }
+}
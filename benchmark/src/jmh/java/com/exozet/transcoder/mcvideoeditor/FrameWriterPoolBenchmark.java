@@ -0,0 +1,108 @@
+package com.exozet.transcoder.mcvideoeditor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Saving 30 extracted 720p frames through a {@link FrameWriterPool}: the decoding thread fills a frame of a pool of
+ * threads + 1 frames, the jobs compress and write it to a file and return the frame, like a frame sink. Deflate stands in for JPEG compression. 0 threads is the former save on the
+ * decoding thread.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameWriterPoolBenchmark {
+
+    @Param({"0", "2", "4"})
+    public int threads;
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int FRAMES = 30;
+
+    private File directory;
+    private FrameWriterPool pool;
+    private BlockingQueue<ByteBuffer> frames;
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<>();
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = File.createTempFile("frames", "");
+        directory.delete();
+        directory.mkdirs();
+        pool = new FrameWriterPool(threads);
+        frames = new ArrayBlockingQueue<>(threads + 1);
+        for (int i = 0; i <= threads; i++) {
+            frames.add(ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.release();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void saveFrames() throws IOException, InterruptedException {
+        for (int i = 0; i < FRAMES; i++) {
+            final ByteBuffer pixels = frames.take();
+            pixels.clear();
+            // read back of the decoded frame
+            for (int p = 0; p < WIDTH * HEIGHT; p++) {
+                pixels.putInt((p * 31 + i) & 0x00ffffff | 0xff000000);
+            }
+            pixels.flip();
+            final File file = new File(directory, String.format("frame-%03d.jpg", i));
+            pool.submit(() -> {
+                try (OutputStream out = new FileOutputStream(file)) {
+                    compress(pixels, out);
+                } finally {
+                    frames.add(pixels);
+                }
+            });
+        }
+        pool.finish();
+    }
+
+    private void compress(ByteBuffer pixels, OutputStream out) throws IOException {
+        Deflater deflater = deflaters.get();
+        byte[] buffer = buffers.get();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            deflaters.set(deflater);
+            buffer = new byte[64 * 1024];
+            buffers.set(buffer);
+        }
+        final byte[] input = new byte[pixels.remaining()];
+        pixels.get(input);
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+    }
+}
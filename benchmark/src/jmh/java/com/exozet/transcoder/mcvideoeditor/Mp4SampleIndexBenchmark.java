@@ -0,0 +1,214 @@
+package com.exozet.transcoder.mcvideoeditor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Building the {@link Mp4SampleIndex} of a 29.97 fps recording with B-frames by parsing the sample table and from the
+ * cache, and the frame lookup used for frame selection.
+ */
+@State(Scope.Thread)
+public class Mp4SampleIndexBenchmark {
+
+    /**
+     * Amount of samples, 5 and 30 minutes at 29.97 fps.
+     */
+    @Param({"9000", "54000"})
+    public int samples;
+
+    private static final int TIMESCALE = 30000;
+    private static final int FRAME_DURATION = 1001;
+    private static final int GOP_LENGTH = 30;
+
+    private File directory;
+    private File video;
+    private File cache;
+    private Mp4SampleIndex index;
+    private long[] lookupTimes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = File.createTempFile("mp4index", "");
+        directory.delete();
+        directory.mkdirs();
+        video = new File(directory, "video.mp4");
+        cache = new File(directory, "cache");
+        writeMp4(video, samples);
+        index = Mp4SampleIndex.load(video, cache);
+
+        final Random random = new Random(42);
+        lookupTimes = new long[300];
+        for (int i = 0; i < lookupTimes.length; i++) {
+            lookupTimes[i] = (long) (random.nextDouble() * index.durationUs());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        final File[] cached = cache.listFiles();
+        if (cached != null) {
+            for (File file : cached) {
+                file.delete();
+            }
+        }
+        cache.delete();
+        video.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public Mp4SampleIndex parse() throws IOException {
+        return Mp4SampleIndex.parse(video);
+    }
+
+    @Benchmark
+    public Mp4SampleIndex loadCached() throws IOException {
+        return Mp4SampleIndex.load(video, cache);
+    }
+
+    /**
+     * Frame and sync sample lookup for 300 requested times.
+     */
+    @Benchmark
+    public long lookup() {
+        long sum = 0;
+        for (long time : lookupTimes) {
+            sum += index.frameAt(time) + index.syncTimeBefore(time);
+        }
+        return sum;
+    }
+
+    /**
+     * Minimal MP4 with a single video track: a sync sample every {@link #GOP_LENGTH} samples, samples decoded in
+     * I P B order, 10 samples per chunk.
+     */
+    static void writeMp4(File file, int samples) throws IOException {
+        final int chunkSize = 10;
+        final int chunks = (samples + chunkSize - 1) / chunkSize;
+        final int[] sizes = new int[samples];
+        long mdatSize = 0;
+        for (int i = 0; i < samples; i++) {
+            sizes[i] = 1000 + i % 50;
+            mdatSize += sizes[i];
+        }
+
+        final byte[] ftyp = box("ftyp", out -> {
+            out.writeBytes("isom");
+            out.writeInt(0);
+            out.writeBytes("isomavc1");
+        });
+        final long mdatStart = ftyp.length + 8;
+
+        final byte[] stbl = box("stbl", stblOut -> {
+            stblOut.write(box("stts", out -> {
+                out.writeInt(0);
+                out.writeInt(1);
+                out.writeInt(samples);
+                out.writeInt(FRAME_DURATION);
+            }));
+            stblOut.write(box("ctts", out -> {
+                out.writeInt(0);
+                out.writeInt(samples);
+                for (int i = 0; i < samples; i++) {
+                    out.writeInt(1);
+                    out.writeInt(new int[]{FRAME_DURATION, 2 * FRAME_DURATION, 0}[i % 3]);
+                }
+            }));
+            stblOut.write(box("stss", out -> {
+                out.writeInt(0);
+                out.writeInt((samples + GOP_LENGTH - 1) / GOP_LENGTH);
+                for (int i = 0; i < samples; i += GOP_LENGTH) {
+                    out.writeInt(i + 1);
+                }
+            }));
+            stblOut.write(box("stsz", out -> {
+                out.writeInt(0);
+                out.writeInt(0);
+                out.writeInt(samples);
+                for (int size : sizes) {
+                    out.writeInt(size);
+                }
+            }));
+            stblOut.write(box("stsc", out -> {
+                out.writeInt(0);
+                out.writeInt(1);
+                out.writeInt(1);
+                out.writeInt(chunkSize);
+                out.writeInt(1);
+            }));
+            stblOut.write(box("stco", out -> {
+                out.writeInt(0);
+                out.writeInt(chunks);
+                long offset = mdatStart;
+                for (int i = 0; i < samples; i++) {
+                    if (i % chunkSize == 0) {
+                        out.writeInt((int) offset);
+                    }
+                    offset += sizes[i];
+                }
+            }));
+        });
+
+        final byte[] moov = box("moov", moovOut -> moovOut.write(box("trak", trakOut -> trakOut.write(box("mdia", mdiaOut -> {
+            mdiaOut.write(box("mdhd", out -> {
+                out.writeInt(0);
+                out.writeInt(0);
+                out.writeInt(0);
+                out.writeInt(TIMESCALE);
+                out.writeInt(samples * FRAME_DURATION);
+                out.writeInt(0);
+            }));
+            mdiaOut.write(box("hdlr", out -> {
+                out.writeInt(0);
+                out.writeInt(0);
+                out.writeBytes("vide");
+                out.write(new byte[13]);
+            }));
+            mdiaOut.write(box("minf", out -> out.write(stbl)));
+        })))));
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(ftyp);
+            final DataOutputStream data = new DataOutputStream(out);
+            data.writeInt((int) (mdatSize + 8));
+            data.writeBytes("mdat");
+            final byte[] payload = new byte[64 * 1024];
+            for (long left = mdatSize; left > 0; left -= payload.length) {
+                data.write(payload, 0, (int) Math.min(payload.length, left));
+            }
+            data.write(moov);
+        }
+    }
+
+    private interface BoxContent {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] box(String type, BoxContent content) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeBytes(type);
+        content.write(out);
+        out.flush();
+        final byte[] box = bytes.toByteArray();
+        box[0] = (byte) (box.length >>> 24);
+        box[1] = (byte) (box.length >>> 16);
+        box[2] = (byte) (box.length >>> 8);
+        box[3] = (byte) box.length;
+        return box;
+    }
+}
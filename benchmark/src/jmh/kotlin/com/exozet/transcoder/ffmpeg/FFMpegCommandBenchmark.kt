@@ -0,0 +1,77 @@
+package com.exozet.transcoder.ffmpeg
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+
+/**
+ * FFmpeg argument building of [FFMpegTranscoder], dominated by the select expression for many frame times.
+ */
+@State(Scope.Thread)
+open class FFMpegCommandBenchmark {
+
+    /**
+     * Amount of requested frames.
+     */
+    @Param("10", "120", "300")
+    @JvmField
+    var requestedFrames: Int = 0
+
+    private lateinit var frameTimes: List<String>
+
+    private val config = EncodingConfig()
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        val increment = 63f / requestedFrames
+        frameTimes = (0 until requestedFrames).map { "${increment * it}" }
+    }
+
+    @Benchmark
+    fun selectExpression(): String = FFMpegCommands.selectExpression(frameTimes)
+
+    @Benchmark
+    fun extractFramesCommand(): Array<String> = FFMpegCommands.extractFrames(
+        inputVideo = "/sdcard/Download/walkaround.mp4",
+        selectExpression = FFMpegCommands.selectExpression(frameTimes),
+        photoQuality = 5,
+        outputPattern = "/sdcard/Download/process/image_%03d.jpg"
+    )
+
+    @Benchmark
+    fun extractFramesSeekingCommands(): List<Array<String>> {
+        var startNumber = 1
+        return FFMpegCommands.clusterTimes(frameTimes).map { cluster ->
+            FFMpegCommands.extractFramesSeeking(
+                inputVideo = "/sdcard/Download/walkaround.mp4",
+                cluster = cluster,
+                photoQuality = 5,
+                outputPattern = "/sdcard/Download/process/image_%03d.jpg",
+                startNumber = startNumber
+            ).also { startNumber += cluster.frameTimes.size }
+        }
+    }
+
+    @Benchmark
+    fun fusedGraphCommand(): Array<String> = FFMpegCommands.fusedGraph(
+        inputVideo = "/sdcard/Download/walkaround.mp4",
+        transforms = "/sdcard/Download/process/transforms.trf",
+        stabilization = StabilizationConfig(),
+        videoOutput = "/sdcard/Download/process/stabilized.mp4",
+        frameTimes = frameTimes,
+        frameOutputPattern = "/sdcard/Download/process/image_%03d.jpg",
+        photoQuality = 5,
+        framesVideoOutput = "/sdcard/Download/process/frames.mp4",
+        framesVideoConfig = EncodingConfig()
+    )
+
+    @Benchmark
+    fun createVideoCommand(): Array<String> = FFMpegCommands.createVideo(
+        inputPattern = "/sdcard/Download/process/image_%03d.jpg",
+        output = "/sdcard/Download/output.mp4",
+        config = config
+    )
+}
@@ -0,0 +1,109 @@
+package com.exozet.transcoder.ffmpeg
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import java.io.File
+import java.io.FileOutputStream
+import java.util.Random
+
+/**
+ * Writing and reading a sequence of JPEG sized frames, one file per frame as image_%03d.jpg compared to a single
+ * [FrameStore] file.
+ */
+@State(Scope.Thread)
+open class FrameStoreBenchmark {
+
+    /**
+     * Amount of frames.
+     */
+    @Param("120", "1000")
+    @JvmField
+    var frames: Int = 0
+
+    private lateinit var frame: ByteArray
+
+    private lateinit var directory: File
+
+    private lateinit var storeFile: File
+
+    private lateinit var jpegStream: ByteArray
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        // typical size of a 720p JPEG
+        frame = ByteArray(120 * 1024).also { Random(42).nextBytes(it) }
+        directory = createTempDir("frames")
+        storeFile = File(directory, "frames.${FrameStore.EXTENSION}")
+
+        // a few concatenated JPEGs as FFmpeg's image2pipe muxer writes them, without markers in the payload
+        val image = ByteArray(frame.size + 4)
+        for (i in frame.indices) {
+            image[i + 2] = (frame[i].toInt() and 0x7f).toByte()
+        }
+        image[0] = 0xff.toByte(); image[1] = 0xd8.toByte()
+        image[image.size - 2] = 0xff.toByte(); image[image.size - 1] = 0xd9.toByte()
+        jpegStream = ByteArray(image.size * 8)
+        for (i in 0 until 8) {
+            System.arraycopy(image, 0, jpegStream, i * image.size, image.size)
+        }
+
+        writeFiles()
+        writeStore()
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    @Benchmark
+    fun writeFiles(): Int {
+        for (i in 0 until frames) {
+            FileOutputStream(File(directory, String.format("image_%03d.jpg", i + 1))).use { it.write(frame) }
+        }
+        return frames
+    }
+
+    @Benchmark
+    fun writeStore(): Int = FrameStoreWriter(storeFile).use { writer ->
+        for (i in 0 until frames) {
+            writer.append(frame)
+        }
+        writer.frameCount
+    }
+
+    /**
+     * Lists and sorts the directory and reads every frame, as createVideoFromFrames does.
+     */
+    @Benchmark
+    fun readFiles(): Long {
+        var bytes = 0L
+        val files = directory.listFiles { file -> file.name.startsWith("image_") }!!.sorted()
+        for (file in files) {
+            bytes += file.readBytes().size
+        }
+        return bytes
+    }
+
+    @Benchmark
+    fun readStore(): Long = FrameStoreReader(storeFile).use { reader ->
+        var bytes = 0L
+        for (i in 0 until reader.frameCount) {
+            bytes += reader.frameBytes(i).size
+        }
+        bytes
+    }
+
+    @Benchmark
+    fun splitJpegStream(): Int {
+        var images = 0
+        val splitter = JpegFrameSplitter { _, _ -> images++ }
+        splitter.feed(jpegStream, jpegStream.size)
+        return images
+    }
+}
@@ -0,0 +1,36 @@
+package com.exozet.transcoder.ffmpeg
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Threads
+
+/**
+ * Overhead of recording a stage, which happens several times per frame on the decoding and encoding threads.
+ */
+@State(Scope.Benchmark)
+open class TranscodeMetricsBenchmark {
+
+    private val metrics = TranscodeMetrics()
+
+    @Benchmark
+    fun record(): Long {
+        val start = metrics.start()
+        metrics.record(Stage.ENCODE, start)
+        return start
+    }
+
+    /**
+     * Decoding and encoding thread recording at the same time.
+     */
+    @Benchmark
+    @Threads(2)
+    fun recordContended(): Long {
+        val start = metrics.start()
+        metrics.record(Stage.ENCODE, start)
+        return start
+    }
+
+    @Benchmark
+    fun time(): Int = metrics.time(Stage.DRAW) { 1 }
+}
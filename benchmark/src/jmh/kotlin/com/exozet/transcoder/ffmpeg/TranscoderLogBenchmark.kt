@@ -0,0 +1,53 @@
+package com.exozet.transcoder.ffmpeg
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+
+/**
+ * Logging of an iteration of the decoding loop, formatting a message from the loop state at every step. Disabled
+ * logging has to report 0 B/op in gc.alloc.rate.norm: the message lambdas are inlined and never run.
+ */
+@State(Scope.Thread)
+open class TranscoderLogBenchmark {
+
+    @JvmField
+    @Param("NONE", "DEBUG")
+    var level: String = "NONE"
+
+    private var frame = 0
+
+    private var presentationTimeUs = 0L
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        TranscoderLog.sink = RingBufferLogSink()
+        TranscoderLog.level = LogLevel.valueOf(level)
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        TranscoderLog.sink = null
+        TranscoderLog.level = LogLevel.NONE
+    }
+
+    @Benchmark
+    fun decodeLoop(): Int {
+        frame++
+        presentationTimeUs += 33_333L
+        TranscoderLog.log(LogLevel.DEBUG, TAG) { "loop" }
+        TranscoderLog.log(LogLevel.DEBUG, TAG) { "inputBufIndex ${frame % 4}" }
+        TranscoderLog.log(LogLevel.DEBUG, TAG) { "submitted frame $frame to dec, size=${frame * 31}" }
+        TranscoderLog.log(LogLevel.DEBUG, TAG) { "surface decoder given buffer ${frame % 4} (size=${frame * 31})" }
+        TranscoderLog.log(LogLevel.VERBOSE, TAG) { "awaiting decode of frame $frame at $presentationTimeUs" }
+        return frame
+    }
+
+    private companion object {
+        const val TAG = "MediaCodecExtractImages"
+    }
+}
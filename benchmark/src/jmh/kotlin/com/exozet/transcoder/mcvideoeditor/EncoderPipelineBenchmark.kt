@@ -0,0 +1,60 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.io.File
+
+/**
+ * Queue and drain overhead of [EncoderPipeline] on the [SoftwareCodecBackend], measured in frames per second.
+ */
+@State(Scope.Thread)
+open class EncoderPipelineBenchmark {
+
+    /**
+     * Amount of input and output buffers of the stand-in encoder, 1 forces a drain before every queued frame.
+     */
+    @Param("1", "4")
+    @JvmField
+    var codecBuffers: Int = 0
+
+    private val width = 1280
+
+    private val height = 720
+
+    private val frameRate = 30
+
+    private lateinit var backend: SoftwareCodecBackend
+
+    private lateinit var frame: ByteArray
+
+    private lateinit var output: File
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        backend = SoftwareCodecBackend(codecBuffers, codecBuffers)
+        frame = ByteArray(YuvConverter.yuvSize(width, height)) { it.toByte() }
+        output = File.createTempFile("encoder-pipeline", ".y4m").apply { deleteOnExit() }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    fun encode(): Int {
+        val encoder = backend.createEncoder("video/avc", width, height, 16_000_000, frameRate, CodecConstants.COLOR_FormatYUV420Planar, 1)
+        val pipeline = EncoderPipeline(encoder, backend.createSink(output.absolutePath))
+        for (i in 0 until FRAMES) {
+            pipeline.queueFrame(frame, i * 1_000_000L / frameRate)
+        }
+        pipeline.finish(FRAMES * 1_000_000L / frameRate)
+        pipeline.release()
+        return pipeline.writtenSamples
+    }
+
+    companion object {
+        const val FRAMES = 30
+    }
+}
@@ -0,0 +1,102 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+
+/**
+ * Frame selection of [MediaCodecExtractImages]: planning the desired frames and groups of pictures to decode and the per
+ * decoded frame hit test of doExtract.
+ */
+@State(Scope.Thread)
+open class FrameSelectionBenchmark {
+
+    /**
+     * Amount of requested frames.
+     */
+    @Param("10", "120", "300")
+    @JvmField
+    var requestedFrames: Int = 0
+
+    /**
+     * Clip length, 5 minutes at 30 fps.
+     */
+    @Param("9000")
+    @JvmField
+    var totalFrames: Int = 0
+
+    private val frameRate = 30
+
+    /**
+     * Sync sample every second.
+     */
+    private val gopLength = 30
+
+    private lateinit var timeInSec: List<Double>
+
+    private lateinit var desiredFrames: List<Int>
+
+    private lateinit var frames: IntArray
+
+    private lateinit var timeline: FrameTimeline
+
+    private lateinit var segments: List<GopSegment>
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        val increment = totalFrames.toDouble() / frameRate / requestedFrames
+        timeInSec = (0 until requestedFrames).map { increment * it }
+        desiredFrames = FrameSelection.desiredFrames(timeInSec, frameRate)
+        frames = FrameSelection.sortedFrames(desiredFrames)
+        val gopUs = gopLength * 1_000_000L / frameRate
+        timeline = ConstantRateTimeline(frameRate, 0L, totalFrames * 1_000_000L / frameRate) { timeUs -> timeUs / gopUs * gopUs }
+        segments = FrameSelection.gopSegments(frames, timeline)
+    }
+
+    @Benchmark
+    fun desiredFrames(): List<Int> = FrameSelection.desiredFrames(timeInSec, frameRate)
+
+    /**
+     * Planning with a constant GOP length standing in for the demuxer seeks.
+     */
+    @Benchmark
+    fun gopSegments(): Int = FrameSelection.gopSegments(frames, timeline).size
+
+    /**
+     * Splitting the segments across 4 decoders for parallel extraction.
+     */
+    @Benchmark
+    fun partition(): Int = FrameSelection.partition(frames, segments, timeline, 4).size
+
+    /**
+     * Hit test for every decoded frame of the clip with the [FrameCursor] of the doExtract work loop.
+     */
+    @Benchmark
+    fun extractLoopHitTest(): Int {
+        var hits = 0
+        val cursor = FrameCursor(FrameSelection.sortedFrames(desiredFrames))
+        for (decodeCount in 0 until totalFrames) {
+            if (cursor.hit(decodeCount)) {
+                hits++
+            }
+        }
+        return hits
+    }
+
+    /**
+     * Former hit test, a linear scan of the boxed desired frames for every decoded frame.
+     */
+    @Benchmark
+    fun listContainsHitTest(): Int {
+        var hits = 0
+        for (decodeCount in 0 until totalFrames) {
+            if (desiredFrames.contains(decodeCount)) {
+                hits++
+            }
+        }
+        return hits
+    }
+}
@@ -11,17 +11,52 @@ import com.exozet.transcoder.BuildConfig
 
 internal val debug = BuildConfig.DEBUG
 
-internal fun Any.log(message: String?) {
-    if (debug)
-        Log.d(this::class.java.simpleName, "$message")
+/**
+ * Prints to logcat, the default [LogSink] of debug builds.
+ */
+object LogcatSink : LogSink {
+
+    override fun log(level: LogLevel, tag: String, message: String) {
+        val priority = when (level) {
+            LogLevel.VERBOSE -> Log.VERBOSE
+            LogLevel.DEBUG -> Log.DEBUG
+            LogLevel.INFO -> Log.INFO
+            LogLevel.WARN -> Log.WARN
+            LogLevel.ERROR, LogLevel.NONE -> Log.ERROR
+        }
+        Log.println(priority, tag, message)
+    }
+}
+
+/**
+ * Applies the Android defaults of [TranscoderLog] before the first line is logged.
+ */
+internal object AndroidLog {
+
+    init {
+        TranscoderLog.setDefaults(if (debug) LogLevel.DEBUG else LogLevel.NONE, LogcatSink)
+    }
+
+    fun isLoggable(level: LogLevel): Boolean = TranscoderLog.isLoggable(level)
 }
 
-internal fun Any.loge(message: String?) {
-    if (debug)
-        Log.e(this::class.java.simpleName, "$message")
+/**
+ * Logs the message built by message, tagged with the class of the receiver. Inlined, so nothing is built or
+ * allocated unless level is logged.
+ */
+internal inline fun Any.log(level: LogLevel = LogLevel.DEBUG, message: () -> String) {
+    if (AndroidLog.isLoggable(level)) {
+        TranscoderLog.write(level, this::class.java.simpleName, message())
+    }
 }
 
-internal fun Throwable.log() {
-    if (debug)
-        Log.d(this::class.java.simpleName, "$message")
-}
\ No newline at end of file
+internal inline fun Any.loge(message: () -> String) = log(LogLevel.ERROR, message)
+
+/**
+ * Logs a message built by the caller, for Java and constant messages.
+ */
+internal fun Any.log(message: String?) = log { "$message" }
+
+internal fun Any.loge(message: String?) = loge { "$message" }
+
+internal fun Throwable.log() = log { "$message" }
@@ -0,0 +1,357 @@
+package com.exozet.transcoder.ffmpeg
+
+import java.util.Locale
+
+/**
+ * Requested frame times close to each other, extracted by one FFmpeg run seeking to [seekTime].
+ *
+ * @param frameTimes the requested times of the cluster in seconds, ascending
+ * @param seekTime time in seconds the input is seeked to before decoding, 0 to decode from the start
+ * @param duration seconds decoded from seekTime on
+ */
+internal class FrameCluster(val frameTimes: List<String>, val seekTime: Double, val duration: Double)
+
+/**
+ * Builds the FFmpeg arguments used by [FFMpegTranscoder].
+ *
+ * Has no Android dependencies, so it can be measured on a plain JVM.
+ */
+internal object FFMpegCommands {
+
+    /**
+     * Default gap between clusters: decoding 5 s of video costs more than reopening the input and seeking.
+     */
+    const val CLUSTER_GAP = 5.0
+
+    /**
+     * Default seconds decoded around a cluster.
+     */
+    const val CLUSTER_MARGIN = 1.0
+
+    /**
+     * Frame rate FFmpeg assumes for image sequences without -framerate.
+     */
+    private const val IMAGE_FRAME_RATE = 25
+
+    private val threads: Int
+        get() = Runtime.getRuntime().availableProcessors()
+
+    /**
+     * Select filter expression which picks the first frame at or after each of the requested times.
+     *
+     * https://superuser.com/a/1330042
+     *
+     * @param frameTimes list of requested frame times in seconds - example "1.023"
+     */
+    fun selectExpression(frameTimes: List<String>): String = frameTimes.joinToString(separator = "+") {
+        "lt(prev_pts*TB\\,$it)*gte(pts*TB\\,$it)"
+    }
+
+    /**
+     * Splits the requested times into clusters which are each extracted by seeking, see [extractFramesSeeking].
+     *
+     * A select filter evaluates every requested time for every decoded frame, and without seeking the whole input is
+     * decoded. Seeking per cluster only decodes from the sync sample before a cluster to its last time, a new cluster
+     * starts where the gap to the next time costs more to decode than reopening the input.
+     *
+     * @param frameTimes list of requested frame times in seconds - example "1.023"
+     * @param maxGap gap in seconds between two times above which a new cluster starts
+     * @param margin seconds decoded before the first and after the last time of a cluster, so the select expression
+     * sees the frame before the first time and the frame at the last time is reached at low frame rates
+     */
+    fun clusterTimes(frameTimes: List<String>, maxGap: Double = CLUSTER_GAP, margin: Double = CLUSTER_MARGIN): List<FrameCluster> {
+        val sorted = frameTimes.map { it to it.toDouble() }.sortedBy { it.second }
+        val clusters = ArrayList<FrameCluster>()
+        var start = 0
+        for (i in 1..sorted.size) {
+            if (i < sorted.size && sorted[i].second - sorted[i - 1].second <= maxGap) {
+                continue
+            }
+            val first = sorted[start].second
+            val last = sorted[i - 1].second
+            // nothing to skip close to the start, there the select expression needs the frames from 0 on
+            val seekTime = if (first > margin) first - margin else 0.0
+            clusters.add(FrameCluster(sorted.subList(start, i).map { it.first }, seekTime, last + margin - seekTime))
+            start = i
+        }
+        return clusters
+    }
+
+    /**
+     * Extracts the frames of one cluster, with the same select filter as [extractFrames].
+     *
+     * -ss before -i : input seeking, decodes from the sync sample before the seek time and drops the frames before it
+     * -t before -i : stops reading the input after the cluster
+     * -start_number : number of the first image, continues the numbering of the previous clusters
+     *
+     * Timestamps are reset to start at the seek time, so the select expression uses the requested times minus the seek
+     * time. The input's start time is removed like without seeking, -copyts would keep it and shift every requested
+     * time of inputs which don't start at 0.
+     *
+     * @param cluster see [clusterTimes]
+     * @param startNumber number of the first image written
+     */
+    fun extractFramesSeeking(inputVideo: String, cluster: FrameCluster, photoQuality: Int, outputPattern: String, startNumber: Int): Array<String> =
+        mutableListOf<String>().apply {
+            add("-threads"); add("$threads")
+            if (cluster.seekTime > 0) {
+                add("-ss"); add(seconds(cluster.seekTime))
+            }
+            add("-t"); add(seconds(cluster.duration))
+            add("-i"); add(inputVideo)
+            add("-qscale:v"); add("$photoQuality")
+            add("-filter:v"); add("select='${selectExpression(selectTimes(cluster))}'")
+            add("-vsync"); add("0")
+            add("-start_number"); add("$startNumber")
+            add(outputPattern)
+        }.toTypedArray()
+
+    /**
+     * Requested times of cluster relative to its seek time, the timestamps FFmpeg assigns after seeking.
+     */
+    private fun selectTimes(cluster: FrameCluster): List<String> =
+        if (cluster.seekTime > 0) cluster.frameTimes.map { seconds(it.toDouble() - cluster.seekTime) } else cluster.frameTimes
+
+    /**
+     * Plain decimal seconds, FFmpeg doesn't parse the exponent notation of Double.toString.
+     */
+    private fun seconds(value: Double): String = String.format(Locale.US, "%.6f", value)
+
+    /**
+     * -i : input
+     * -vf : filter_graph set video filters
+     * -filter:v : video filter for given parameters - like requested frame times
+     * -qscale:v :quality parameter [1,31]
+     * -vsync : drop : This allows to work around any non-monotonic time-stamp errors //not sure how it totally works - if we set it to 0 it skips duplicate frames I guess
+     *
+     * @param inputVideo source video
+     * @param selectExpression see [selectExpression]
+     * @param photoQuality quality of extracted frames - Effective range for JPEG is 2-31 with 31 being the worst quality
+     * @param outputPattern output image pattern, e.g. "/path/image_%03d.jpg"
+     */
+    fun extractFrames(inputVideo: String, selectExpression: String, photoQuality: Int, outputPattern: String): Array<String> = arrayOf(
+        "-threads", "$threads",
+        "-i", inputVideo,
+        "-qscale:v", "$photoQuality",
+        "-filter:v", "select='$selectExpression'",
+        "-vsync", "0",
+        outputPattern
+    )
+
+    /**
+     * Same as [extractFrames], but writes the images as one stream of concatenated JPEGs.
+     *
+     * -f image2pipe : raw image stream muxer
+     * -c:v mjpeg : JPEG images
+     *
+     * @param pipe output pipe, e.g. a FFmpeg pipe
+     */
+    fun extractFramesToPipe(inputVideo: String, selectExpression: String, photoQuality: Int, pipe: String): Array<String> = arrayOf(
+        "-threads", "$threads",
+        "-i", inputVideo,
+        "-qscale:v", "$photoQuality",
+        "-filter:v", "select='$selectExpression'",
+        "-vsync", "0",
+        "-f", "image2pipe",
+        "-c:v", "mjpeg",
+        pipe
+    )
+
+    /**
+     * Analysis pass of the stabilization, only writes the transforms.
+     *
+     * -vf deflicker,dejudder : evens out brightness and judder before the motion is detected
+     * vidstabdetect : detects the camera motion, result is the transforms file
+     * -f null - : no output
+     *
+     * @param transforms transforms file written
+     */
+    fun analyseStabilization(inputVideo: String, transforms: String, analysis: StabilizationAnalysis): Array<String> = arrayOf(
+        "-i", inputVideo,
+        "-threads", "$threads",
+        "-vf", "[in]deflicker,dejudder[p0];[p0]vidstabdetect=stepsize=${analysis.stepSize}:shakiness=${analysis.shakiness}:accuracy=${analysis.accuracy}:result=$transforms[out]",
+        "-f", "null", "-"
+    )
+
+    /**
+     * Render pass of the stabilization, applies transforms written by [analyseStabilization].
+     *
+     * vidstabtransform : moves the frames along the smoothed camera motion
+     * unsharp : sharpens the interpolated frames
+     * fps : constant output frame rate
+     *
+     * @param transforms transforms file read
+     */
+    fun stabilize(inputVideo: String, transforms: String, config: StabilizationConfig, output: String): Array<String> {
+        val unsharp = config.unsharp?.let { ",unsharp=$it" } ?: ""
+        return arrayOf(
+            "-y",
+            "-i", inputVideo,
+            "-threads", "$threads",
+            "-vf", "[in]deflicker,dejudder[p0];[p0]vidstabtransform=input=$transforms:zoom=${config.zoom}:smoothing=${config.smoothing}$unsharp[p1];[p1]fps=${config.frameRate}[out]",
+            output
+        )
+    }
+
+    /**
+     * -y overrides output file
+     * -r set source frame rate
+     * -threads sets threads
+     * -i input
+     * -c:v encoding, here: libx264
+     * -x264opts .h264 settings, we extract frames by a fixed gop size, (10 would mean out of 30 fps video, we extract 3 frames per second)
+     * no-scenecut means no extra i-frames, since we never change scene during recording
+     * -g fixed gop size; different than dynamic gop size which can be set with keyInt (max gop size interval) and min-keyint (min gop size interval)
+     * -crf sets video quality
+     * -maxrate:v sets max bit-rate
+     * -bufsize:v sets buffer size (manages average bitrate)
+     * -pix_fmt sets pixel format
+     * -preset sets ffmpeg encoding pre-sets, most likely will not end with good results
+     * -movflags +faststart: Allows video to playback before it is completely downloaded in
+     *  the case of progressive download viewing. Useful if you are hosting the video,
+     *  otherwise superfluous if uploading to a video service like YouTube.
+     *
+     * -f image2pipe -c:v mjpeg : input is a stream of concatenated JPEGs
+     *
+     * @param inputPattern input image pattern, e.g. "/path/image_%03d.jpg", or a pipe
+     * @param output output video path
+     * @param config encoding configurations
+     * @param pipedInput set if inputPattern is a pipe carrying concatenated JPEGs
+     */
+    fun createVideo(inputPattern: String, output: String, config: EncodingConfig, pipedInput: Boolean = false): Array<String> = mutableListOf<String>().apply {
+        add("-y")
+
+        config.sourceFrameRate?.let {
+            add("-framerate"); add("${config.sourceFrameRate}")
+        }
+
+        add("-threads"); add("$threads")
+
+        if (pipedInput) {
+            add("-f"); add("image2pipe")
+            add("-c:v"); add("mjpeg")
+        }
+
+        add("-i"); add(inputPattern)
+
+        addAll(encoding(config))
+
+        //add("-movflags"); add("+faststart")
+
+        add(output)
+
+    }.toTypedArray()
+
+    /**
+     * Output options of [createVideo], see there.
+     */
+    private fun encoding(config: EncodingConfig): List<String> = mutableListOf<String>().apply {
+        add("-r"); add("${config.outputFrameRate}")
+
+        add("-c:v"); add("${config.encoding}")
+        add("-x264opts"); add("keyint=${config.keyInt}:min-keyint=${config.minKeyInt}:no-scenecut")
+
+        config.gopValue?.let {
+            add("-g"); add("${config.gopValue}")
+        }
+
+        config.videoQuality?.let {
+            add("-crf"); add("${config.videoQuality}")
+        }
+
+        config.maxrate?.let {
+            add("-maxrate:v"); add("${config.maxrate}k")
+        }
+
+        config.bufsize?.let {
+            add("-bufsize:v"); add("${config.bufsize}k")
+        }
+
+        add("-pix_fmt"); add("${config.pixelFormat}")
+
+        config.preset?.let {
+            add("-preset"); add("${config.preset}")
+        }
+    }
+
+    /**
+     * Stabilizes, extracts frames and creates a video from them in one invocation: the input is decoded once and
+     * split into the requested outputs, without intermediate files or JPEG decoding.
+     *
+     * -filter_complex : [0:v] → stabilization (optional) → split → video output
+     *                                                         → select → setpts → images
+     *                                                                           → video of the selected frames
+     * -map [label] : output fed by a branch of the graph
+     * -map 0:a? -c:a copy : keeps the audio of the input in the video output, if there is any
+     * setpts, -r : the selected frames get consecutive timestamps at the rate of the images output, so it writes each
+     * once without a global -vsync 0 affecting the other outputs
+     *
+     * @param transforms transforms of [analyseStabilization], null to not stabilize
+     * @param stabilization transform parameters, used with transforms
+     * @param videoOutput path of the (stabilized) video, null for none
+     * @param frameTimes requested frame times in seconds for the other outputs
+     * @param frameOutputPattern output image pattern of the selected frames, e.g. "/path/image_%03d.jpg", null for none
+     * @param photoQuality quality of the images - Effective range for JPEG is 2-31 with 31 being the worst quality
+     * @param framesVideoOutput path of a video of the selected frames, null for none
+     * @param framesVideoConfig encoding of that video, its source frame rate is the rate of the selected frames
+     */
+    fun fusedGraph(
+        inputVideo: String,
+        transforms: String?,
+        stabilization: StabilizationConfig,
+        videoOutput: String?,
+        frameTimes: List<String>,
+        frameOutputPattern: String?,
+        photoQuality: Int,
+        framesVideoOutput: String?,
+        framesVideoConfig: EncodingConfig
+    ): Array<String> {
+        val selecting = frameOutputPattern != null || framesVideoOutput != null
+        require(videoOutput != null || selecting) { "graph has no output" }
+        require(!selecting || frameTimes.isNotEmpty()) { "no frame times to select" }
+
+        val graph = StringBuilder("[0:v]")
+        if (transforms != null) {
+            val unsharp = stabilization.unsharp?.let { ",unsharp=$it" } ?: ""
+            graph.append("deflicker,dejudder,vidstabtransform=input=$transforms:zoom=${stabilization.zoom}:smoothing=${stabilization.smoothing}$unsharp,fps=${stabilization.frameRate},")
+        }
+        val branches = listOfNotNull(videoOutput?.let { "video" }, if (selecting) "selected" else null)
+        graph.append("split=${branches.size}").append(branches.joinToString("") { "[$it]" })
+
+        val frameRate = framesVideoConfig.sourceFrameRate ?: IMAGE_FRAME_RATE
+        if (selecting) {
+            graph.append(";[selected]select='${selectExpression(frameTimes)}',setpts=N/($frameRate*TB)")
+            // images and video need their own copy of the selected frames
+            when {
+                frameOutputPattern != null && framesVideoOutput != null -> graph.append(",split=2[frames][framesvideo]")
+                frameOutputPattern != null -> graph.append("[frames]")
+                else -> graph.append("[framesvideo]")
+            }
+        }
+
+        return mutableListOf<String>().apply {
+            add("-y")
+            add("-threads"); add("$threads")
+            add("-i"); add(inputVideo)
+            add("-filter_complex"); add(graph.toString())
+
+            videoOutput?.let {
+                add("-map"); add("[video]")
+                add("-map"); add("0:a?")
+                add("-c:a"); add("copy")
+                add(it)
+            }
+            frameOutputPattern?.let {
+                add("-map"); add("[frames]")
+                add("-r"); add("$frameRate")
+                add("-qscale:v"); add("$photoQuality")
+                add(it)
+            }
+            framesVideoOutput?.let {
+                add("-map"); add("[framesvideo]")
+                addAll(encoding(framesVideoConfig))
+                add(it)
+            }
+        }.toTypedArray()
+    }
+}
@@ -0,0 +1,91 @@
+package com.exozet.transcoder.ffmpeg
+
+import android.net.Uri
+
+/**
+ * Operations on one video run by a single FFmpeg invocation, see [FFMpegTranscoder.process].
+ *
+ * Instead of stabilizing into a file, extracting frames from that file and encoding the frames into another video,
+ * the input is decoded once and the frames flow through one filter graph into all outputs. Intermediate videos and
+ * images are neither encoded nor decoded again. Only the analysis of a stabilization needs a pass of its own, its
+ * transforms are cached like for [FFMpegTranscoder.stabilize].
+ *
+ * ```
+ * val graph = FFMpegJobGraph(inputVideo)
+ *     .stabilize(StabilizationConfig(smoothing = 30))
+ *     .writeVideo(stabilizedVideo)
+ *     .extractFrames(listOf("1.0", "2.5", "4.0"), frameFolder)
+ *     .createVideoFromFrames(timelapse, EncodingConfig(sourceFrameRate = 10))
+ * FFMpegTranscoder.process(context, graph).subscribe()
+ * ```
+ *
+ * Frames are selected from the stabilized video if the graph stabilizes.
+ */
+class FFMpegJobGraph(val inputVideo: Uri) {
+
+    var stabilization: StabilizationConfig? = null
+        private set
+
+    var videoOutput: Uri? = null
+        private set
+
+    var frameTimes: List<String> = emptyList()
+        private set
+
+    var frameFolder: Uri? = null
+        private set
+
+    var photoQuality: Int = 5
+        private set
+
+    var framesVideoOutput: Uri? = null
+        private set
+
+    var framesVideoConfig: EncodingConfig = EncodingConfig()
+        private set
+
+    /**
+     * Stabilizes the input before it reaches the outputs.
+     */
+    fun stabilize(config: StabilizationConfig = StabilizationConfig()) = apply { stabilization = config }
+
+    /**
+     * Writes the (stabilized) input to outputUri.
+     */
+    fun writeVideo(outputUri: Uri) = apply { videoOutput = outputUri }
+
+    /**
+     * Writes the frames at frameTimes as images to outputDir, named like by [FFMpegTranscoder.extractFramesFromVideo].
+     *
+     * @param frameTimes times in seconds
+     * @param photoQuality quality of the images - Effective range for JPEG is 2-31 with 31 being the worst quality
+     */
+    fun extractFrames(frameTimes: List<String>, outputDir: Uri, photoQuality: Int = 5) = apply {
+        this.frameTimes = frameTimes
+        this.frameFolder = outputDir
+        this.photoQuality = photoQuality
+    }
+
+    /**
+     * Encodes the frames of [extractFrames] or [selectFrames] into a video, one frame every 1 / config.sourceFrameRate
+     * seconds.
+     */
+    fun createVideoFromFrames(outputUri: Uri, config: EncodingConfig) = apply {
+        framesVideoOutput = outputUri
+        framesVideoConfig = config
+    }
+
+    /**
+     * Selects the frames at frameTimes for [createVideoFromFrames] without writing them as images.
+     */
+    fun selectFrames(frameTimes: List<String>) = apply {
+        this.frameTimes = frameTimes
+        this.frameFolder = null
+    }
+
+    /**
+     * The main output, reported in the [Progress] of [FFMpegTranscoder.process].
+     */
+    internal val primaryOutput: Uri
+        get() = videoOutput ?: framesVideoOutput ?: frameFolder ?: inputVideo
+}
@@ -0,0 +1,98 @@
+package com.exozet.transcoder.ffmpeg
+
+import android.content.Context
+import com.arthenica.mobileffmpeg.Config
+import io.reactivex.Completable
+import io.reactivex.schedulers.Schedulers
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Named pipe between FFmpeg and a [FrameStore], served on an io thread while FFmpeg runs.
+ *
+ * Opening a pipe blocks until the other end is opened as well. If FFmpeg exits without ever opening its end,
+ * [finish] opens it instead, so the transfer thread never hangs.
+ *
+ * Every transferred frame is recorded as [Stage.WRITE].
+ */
+internal class FFMpegPipe private constructor(
+    context: Context,
+    private val ffmpegWrites: Boolean,
+    private val transfer: (pipe: String, opened: AtomicBoolean) -> Unit
+) {
+
+    /**
+     * Path to pass to FFmpeg as input or output.
+     */
+    val path: String = Config.registerNewFFmpegPipe(context)
+
+    private val opened = AtomicBoolean(false)
+
+    private val transferring: Completable = Completable.fromAction { transfer(path, opened) }
+        .subscribeOn(Schedulers.io())
+        .cache()
+
+    init {
+        transferring.subscribe({}, { log { "FFMpeg pipe transfer failed: ${it.message}" } })
+    }
+
+    /**
+     * Waits for the transfer after FFmpeg returned and removes the pipe.
+     *
+     * @return false if the transfer failed
+     */
+    fun finish(): Boolean {
+        if (!opened.get()) {
+            // unblocks the transfer thread waiting for FFmpeg to open its end
+            if (ffmpegWrites) FileOutputStream(path).close() else FileInputStream(path).close()
+        }
+        val error = transferring.blockingGet()
+        Config.closeFFmpegPipe(path)
+        return error == null
+    }
+
+    companion object {
+
+        /**
+         * FFmpeg writes concatenated JPEGs into the pipe, see [FFMpegCommands.extractFramesToPipe],
+         * every image is appended to store.
+         */
+        fun toStore(context: Context, store: FrameStoreWriter, metrics: TranscodeMetrics): FFMpegPipe {
+            return FFMpegPipe(context, true) { path, opened ->
+                FileInputStream(path).use { input ->
+                    opened.set(true)
+                    val splitter = JpegFrameSplitter { frame, length ->
+                        metrics.time(Stage.WRITE) { store.append(frame, 0, length) }
+                    }
+                    val buffer = ByteArray(64 * 1024)
+                    while (true) {
+                        val count = input.read(buffer)
+                        if (count < 0) break
+                        splitter.feed(buffer, count)
+                    }
+                }
+            }
+        }
+
+        /**
+         * FFmpeg reads the frames of store from the pipe, see [FFMpegCommands.createVideo].
+         */
+        fun fromStore(context: Context, store: FrameStoreReader, metrics: TranscodeMetrics): FFMpegPipe {
+            return FFMpegPipe(context, false) { path, opened ->
+                FileOutputStream(path).use { output ->
+                    opened.set(true)
+                    val channel = output.channel
+                    for (i in 0 until store.frameCount) {
+                        val frame = store.frame(i)
+                        metrics.time(Stage.WRITE) {
+                            while (frame.hasRemaining()) {
+                                channel.write(frame)
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
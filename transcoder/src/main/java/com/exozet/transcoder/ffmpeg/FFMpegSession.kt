@@ -0,0 +1,260 @@
+package com.exozet.transcoder.ffmpeg
+
+import com.arthenica.mobileffmpeg.Config
+import com.arthenica.mobileffmpeg.FFmpeg
+import com.arthenica.mobileffmpeg.FFprobe
+import com.arthenica.mobileffmpeg.Level
+import com.arthenica.mobileffmpeg.LogMessage
+import com.arthenica.mobileffmpeg.MediaInformation
+import com.arthenica.mobileffmpeg.Statistics
+import java.util.concurrent.Callable
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * FFmpeg commands of one job, e.g. one subscription of an [FFMpegTranscoder] Observable. A cancelled session stays
+ * cancelled, so every subscription creates its own.
+ *
+ * Executions of different sessions run at the same time, see [FFMpegSessions]. Statistics and log lines are routed to
+ * the session which started the execution and [cancel] only stops its own execution.
+ *
+ * @param name prefix of the logged FFmpeg lines
+ */
+internal class FFMpegSession(private val name: String) {
+
+    private val output = RingBufferLogSink(OUTPUT_LINES)
+
+    private var executionId = NO_EXECUTION
+
+    /**
+     * Set once the session was cancelled, executions still queued for a thread are dropped.
+     */
+    @Volatile
+    var cancelled = false
+        private set
+
+    @Volatile
+    private var onStatistics: ((Statistics) -> Unit)? = null
+
+    private var probe: Future<MediaInformation?>? = null
+
+    /**
+     * Runs arguments and blocks until FFmpeg returned.
+     *
+     * @param onStatistics called with the statistics of this execution, on a thread of FFmpeg
+     * @return the FFmpeg return code, [Config.RETURN_CODE_CANCEL] if the session was cancelled
+     */
+    fun execute(arguments: Array<String>, onStatistics: (Statistics) -> Unit = {}): Int {
+        val done = CountDownLatch(1)
+        val returnCode = AtomicInteger(Config.RETURN_CODE_CANCEL)
+
+        synchronized(this) {
+            if (cancelled) {
+                return Config.RETURN_CODE_CANCEL
+            }
+            this.onStatistics = onStatistics
+            executionId = FFMpegSessions.start(this, arguments) { rc ->
+                returnCode.set(rc)
+                done.countDown()
+            }
+        }
+
+        try {
+            done.await()
+        } catch (e: InterruptedException) {
+            // the job was disposed while waiting, the execution is stopped and reported as cancelled
+            cancel()
+            Thread.currentThread().interrupt()
+        } finally {
+            synchronized(this) {
+                executionId = NO_EXECUTION
+                this.onStatistics = null
+            }
+        }
+        return returnCode.get()
+    }
+
+    /**
+     * Runs FFprobe for the media information of path on the threads of the executions and blocks until it's done.
+     *
+     * FFprobe can't be stopped, a cancelled session returns right away and the result is dropped.
+     *
+     * @return null if FFprobe failed or the session was cancelled
+     */
+    fun probe(path: String): MediaInformation? {
+        val probe = synchronized(this) {
+            if (cancelled) {
+                return null
+            }
+            FFMpegSessions.submit { if (cancelled) null else FFprobe.getMediaInformation(path) }.also { probe = it }
+        }
+
+        return try {
+            probe.get()
+        } catch (e: InterruptedException) {
+            cancel()
+            Thread.currentThread().interrupt()
+            null
+        } catch (e: CancellationException) {
+            null
+        } catch (e: ExecutionException) {
+            log(LogLevel.WARN) { "$name: probing $path failed: ${e.cause?.message}" }
+            null
+        } finally {
+            synchronized(this) {
+                this.probe = null
+            }
+        }
+    }
+
+    /**
+     * Stops the running execution or probe and all later ones of this session.
+     */
+    fun cancel() {
+        synchronized(this) {
+            cancelled = true
+            if (executionId != NO_EXECUTION) {
+                FFmpeg.cancel(executionId)
+            }
+            probe?.cancel(true)
+        }
+    }
+
+    /**
+     * Last lines FFmpeg logged for this session, e.g. to report why it failed.
+     */
+    val lastOutput: List<String>
+        get() = output.snapshot()
+
+    fun statistics(statistics: Statistics) {
+        onStatistics?.invoke(statistics)
+    }
+
+    /**
+     * Keeps a native log line for [lastOutput] and forwards it at its FFmpeg level. Neither formats it: the kept line
+     * is formatted when [lastOutput] is read, the forwarded one only if its level is logged.
+     */
+    fun logLine(message: LogMessage) {
+        val level = logLevel(message.level)
+        output.log(level, name, message.text)
+        log(level) { "$name: ${message.text}" }
+    }
+
+    private fun logLevel(level: Level): LogLevel = when (level) {
+        Level.AV_LOG_STDERR, Level.AV_LOG_PANIC, Level.AV_LOG_FATAL, Level.AV_LOG_ERROR -> LogLevel.ERROR
+        Level.AV_LOG_WARNING -> LogLevel.WARN
+        Level.AV_LOG_INFO -> LogLevel.INFO
+        else -> LogLevel.VERBOSE
+    }
+
+    private companion object {
+
+        const val NO_EXECUTION = -1L
+
+        /**
+         * Lines kept for [lastOutput].
+         */
+        const val OUTPUT_LINES = 30
+    }
+}
+
+/**
+ * Runs the executions of all [FFMpegSession]s on a bounded pool.
+ *
+ * mobile-ffmpeg has a single statistics and a single log callback per process. They are registered once and dispatch
+ * by execution id, instead of every job replacing them with its own.
+ */
+internal object FFMpegSessions {
+
+    private val sessions = HashMap<Long, FFMpegSession>()
+
+    private val executor: ThreadPoolExecutor by lazy {
+        val threads = AtomicInteger()
+        ThreadPoolExecutor(maxConcurrent, maxConcurrent, 30, TimeUnit.SECONDS, LinkedBlockingQueue<Runnable>()) { runnable ->
+            Thread(runnable, "ffmpeg-session-${threads.incrementAndGet()}").apply { isDaemon = true }
+        }.also {
+            it.allowCoreThreadTimeOut(true)
+            enableCallbacks()
+        }
+    }
+
+    /**
+     * Executions running at the same time, further ones wait. Every execution decodes on several threads itself, so
+     * by default half of the cores.
+     */
+    @Volatile
+    var maxConcurrent: Int = Math.max(1, Runtime.getRuntime().availableProcessors() / 2)
+        set(value) {
+            require(value > 0) { "maxConcurrent must be positive" }
+            field = value
+            synchronized(this) {
+                if (executor.maximumPoolSize < value) {
+                    executor.maximumPoolSize = value
+                    executor.corePoolSize = value
+                } else {
+                    executor.corePoolSize = value
+                    executor.maximumPoolSize = value
+                }
+            }
+        }
+
+    /**
+     * Starts arguments for session.
+     *
+     * @param onReturn called with the return code once the execution ended
+     * @return the execution id
+     */
+    fun start(session: FFMpegSession, arguments: Array<String>, onReturn: (Int) -> Unit): Long {
+        val pool = executor
+        val gate = Executor { task ->
+            pool.execute {
+                if (session.cancelled) {
+                    // cancelled while waiting for a thread, FFmpeg can only cancel running executions
+                    synchronized(sessions) {
+                        sessions.values.remove(session)
+                    }
+                    onReturn(Config.RETURN_CODE_CANCEL)
+                } else {
+                    task.run()
+                }
+            }
+        }
+        // callbacks of the new execution wait for the lock until the session is registered
+        synchronized(sessions) {
+            val executionId = FFmpeg.executeAsync(arguments, { id, returnCode ->
+                synchronized(sessions) {
+                    sessions.remove(id)
+                }
+                onReturn(returnCode)
+            }, gate)
+            sessions[executionId] = session
+            return executionId
+        }
+    }
+
+    /**
+     * Runs task on the threads of the executions, e.g. FFprobe, which counts against [maxConcurrent] as well.
+     */
+    fun <T> submit(task: () -> T): Future<T> = executor.submit(Callable { task() })
+
+    private fun session(executionId: Long): FFMpegSession? = synchronized(sessions) { sessions[executionId] }
+
+    private fun enableCallbacks() {
+        Config.enableStatisticsCallback { statistics -> session(statistics.executionId)?.statistics(statistics) }
+        Config.enableLogCallback { message ->
+            val session = session(message.executionId)
+            if (session != null) {
+                session.logLine(message)
+            } else {
+                log(LogLevel.VERBOSE) { "FFMpeg: ${message.text}" }
+            }
+        }
+    }
+}
@@ -2,19 +2,28 @@ package com.exozet.transcoder.ffmpeg
 
 import android.content.Context
 import android.net.Uri
-import android.util.Log
 import androidx.annotation.IntRange
 import com.arthenica.mobileffmpeg.Config
-import com.arthenica.mobileffmpeg.FFmpeg
+import com.arthenica.mobileffmpeg.Statistics
 import io.reactivex.Observable
 import java.io.File
+import java.io.IOException
 import java.util.*
-import java.util.concurrent.atomic.AtomicInteger
-import kotlin.math.ceil
 
 
 object FFMpegTranscoder {
 
+    /**
+     * FFmpeg executions running at the same time, of all jobs. Further ones wait for a free slot. Each job reports its
+     * own progress and is cancelled on its own; by default half of the cores, as FFmpeg decodes on several threads.
+     */
+    @JvmStatic
+    var maxConcurrentSessions: Int
+        get() = FFMpegSessions.maxConcurrent
+        set(value) {
+            FFMpegSessions.maxConcurrent = value
+        }
+
     /**
      * true if FFmpeg is supported.
      *
@@ -23,29 +32,40 @@ object FFMpegTranscoder {
     fun isSupported(context: Context): Boolean = Config.getSupportedCameraIds(context).isNotEmpty()
 
     /**
+     * By default the requested times are extracted in clusters, FFmpeg seeks to each cluster and only decodes from
+     * there to its last time, see [FFMpegCommands.clusterTimes]. The cost follows the amount of requested frames
+     * instead of the length of the video; images are numbered and progress is reported as with a single run.
+     *
      * @param context application context
      * @param frameTimes list of ms of the requested frames at source video - example "1.023"</pre>
      * @param inputVideo Uri of the source video
      * @param id unique output folder id
      * @param outputDir optional - output directory, if not provided internal storage will be used
      * @param photoQuality quality of extracted frames - Effective range for JPEG is 2-31 with 31 being the worst quality
+     * @param seek false to decode the whole video in one run with a single select filter
      */
-    fun extractFramesFromVideo(context: Context, frameTimes: List<String>, inputVideo: Uri, id: String, outputDir: Uri?, @IntRange(from = 1, to = 31) photoQuality: Int = 5): Observable<Progress> {
+    fun extractFramesFromVideo(context: Context, frameTimes: List<String>, inputVideo: Uri, id: String, outputDir: Uri?, @IntRange(from = 1, to = 31) photoQuality: Int = 5, seek: Boolean = true): Observable<Progress> {
 
         val internalStoragePath: String = context.filesDir.absolutePath
 
         return Observable.create<Progress> { emitter ->
 
+            // one session per subscription, so a resubscription or a concurrent subscriber gets its own
+            val session = FFMpegSession("FFMpeg Extract Frames Logger")
+            emitter.setCancellable { session.cancel() }
+
             if (emitter.isDisposed) {
                 return@create
             }
 
-            val percent = AtomicInteger()
+            val estimator = ProgressEstimator()
 
             val total = frameTimes.size
 
             val startTime = System.currentTimeMillis()
 
+            val metrics = TranscodeMetrics()
+
             val localSavePath = "${outputDir ?: "$internalStoragePath/postProcess/$id/$startTime/"}"
 
             //create new folder
@@ -53,60 +73,72 @@ object FFMpegTranscoder {
             if (!file.exists())
                 file.mkdirs()
 
-            // https://superuser.com/a/1330042
-            val result = frameTimes.joinToString(separator = "+") {
-                "lt(prev_pts*TB\\,$it)*gte(pts*TB\\,$it)"
-            }
+            val outputPattern = "${localSavePath}image_%03d.jpg"
 
-            /**
-             * -i : input
-             * -vf : filter_graph set video filters
-             * -filter:v : video filter for given parameters - like requested frame times
-             * -qscale:v :quality parameter [1,31]
-             * -vsync : drop : This allows to work around any non-monotonic time-stamp errors //not sure how it totally works - if we set it to 0 it skips duplicate frames I guess
-             */
-            val cmd = arrayOf(
-                "-threads", "${Runtime.getRuntime().availableProcessors()}",
-                "-i", inputVideo.toString(),
-                "-qscale:v", "$photoQuality",
-                "-filter:v", "select='$result'",
-                "-vsync", "0",
-                "${localSavePath}image_%03d.jpg"
-            )
+            // every run writes into an empty folder first, so only its own images are counted and renumbered, not
+            // stale ones of an earlier job in outputDir
+            val staging = File(file, ".staging")
+            val stagingPattern = "${staging.path}/image_%03d.jpg"
 
-            Config.enableStatisticsCallback { newStatistics ->
-                percent.set(
-                    ceil((100.0 * newStatistics.videoFrameNumber / total)).coerceIn(
-                        0.0,
-                        100.0
-                    ).toInt()
-                )
-                emitter.onNext(
-                    Progress(
-                        uri = Uri.fromFile(file),
-                        message = "",
-                        progress = percent.get(),
-                        duration = System.currentTimeMillis() - startTime
+            val clusters = if (seek) FFMpegCommands.clusterTimes(frameTimes) else listOf(FrameCluster(frameTimes, 0.0, 0.0))
+
+            // frames and bytes of the finished clusters
+            var savedFrames = 0
+            var savedBytes = 0L
+
+            var cmd = emptyArray<String>()
+            var rc: Int = Config.RETURN_CODE_SUCCESS
+
+            for (cluster in clusters) {
+                if (emitter.isDisposed) {
+                    staging.deleteRecursively()
+                    return@create
+                }
+
+                staging.deleteRecursively()
+                staging.mkdirs()
+
+                cmd = if (seek) {
+                    FFMpegCommands.extractFramesSeeking(
+                        inputVideo = inputVideo.toString(),
+                        cluster = cluster,
+                        photoQuality = photoQuality,
+                        outputPattern = stagingPattern,
+                        startNumber = 1
                     )
-                )
-            }
-            Config.enableLogCallback {
-                    message -> log("FFMpeg Extract Frames Logger: ${message.text}")
+                } else {
+                    FFMpegCommands.extractFrames(
+                        inputVideo = inputVideo.toString(),
+                        selectExpression = FFMpegCommands.selectExpression(frameTimes),
+                        photoQuality = photoQuality,
+                        outputPattern = stagingPattern
+                    )
+                }
+
+                val clusterStart = savedFrames
+                val bytesStart = savedBytes
+                rc = session.execute(cmd) { newStatistics ->
+                    metrics.setFrames(clusterStart + newStatistics.videoFrameNumber.toLong())
+                    metrics.setBytesWritten(bytesStart + newStatistics.size)
+                    estimator.updateFrames(newStatistics, clusterStart + newStatistics.videoFrameNumber, total, bytesStart + newStatistics.size)
+                    emitter.onNext(progress(Uri.fromFile(file), "", estimator, startTime, metrics))
+                }
+                if (rc != Config.RETURN_CODE_SUCCESS) {
+                    break
+                }
+
+                // FFmpeg writes one image per distinct frame, requested times can share one
+                savedFrames += moveImages(stagingPattern, outputPattern, savedFrames + 1)
+                savedBytes = metrics.bytesWritten
             }
-            val rc: Int = FFmpeg.execute(cmd)
+            staging.deleteRecursively()
 
             if (rc == Config.RETURN_CODE_SUCCESS) {
-                emitter.onNext(
-                    Progress(
-                        uri = Uri.fromFile(file),
-                        message = "Finished ${Arrays.toString(cmd)}",
-                        progress = percent.get(),
-                        duration = System.currentTimeMillis() - startTime
-                    )
-                )
+                estimator.finish()
+                emitter.onNext(progress(Uri.fromFile(file), "Finished ${Arrays.toString(cmd)}", estimator, startTime, metrics))
                 emitter.onComplete()
             } else if (rc == Config.RETURN_CODE_CANCEL) {
-                emitter.onError(Throwable(result))
+                emitter.onError(Throwable(FFMpegCommands.selectExpression(frameTimes)))
                 //delete failed process folder
                 deleteFolder(localSavePath)
             } else {
@@ -118,11 +150,92 @@ object FFMpegTranscoder {
                         )
                     )
                 )
-                Config.printLastCommandOutput(Log.INFO)
+                loge { session.lastOutput.joinToString("\n") }
+            }
+
+        }
+    }
+
+    /**
+     * Extracts the frames of many videos, each job like [extractFramesFromVideo]. Failed jobs don't stop the batch,
+     * see [BatchProgress].
+     *
+     * @param context application context
+     * @param jobs videos, frame times and output directories, see [extractFramesFromVideo]
+     * @param photoQuality quality of extracted frames - Effective range for JPEG is 2-31 with 31 being the worst quality
+     * @param concurrency jobs running at the same time, 0 for [maxConcurrentSessions]
+     */
+    fun extractFramesFromVideos(context: Context, jobs: List<ExtractionJob<String>>, @IntRange(from = 1, to = 31) photoQuality: Int = 5, @IntRange(from = 0) concurrency: Int = 0): Observable<BatchProgress> =
+        TranscodeBatch.run(jobs.size, if (concurrency > 0) concurrency else maxConcurrentSessions) { index ->
+            val job = jobs[index]
+            extractFramesFromVideo(context, job.frameTimes, job.inputVideo, "batch-$index", job.outputDir, photoQuality)
+        }
+
+    /**
+     * Extracts frames into a single [FrameStore] file instead of one image per frame, the images are piped out of
+     * FFmpeg and appended to the store.
+     *
+     * @param context application context
+     * @param frameTimes list of ms of the requested frames at source video - example "1.023"</pre>
+     * @param inputVideo Uri of the source video
+     * @param storeFile frame store output file, replaced if it exists
+     * @param photoQuality quality of extracted frames - Effective range for JPEG is 2-31 with 31 being the worst quality
+     */
+    fun extractFramesToStore(context: Context, frameTimes: List<String>, inputVideo: Uri, storeFile: Uri, @IntRange(from = 1, to = 31) photoQuality: Int = 5): Observable<Progress> {
+
+        return Observable.create<Progress> { emitter ->
+
+            val session = FFMpegSession("FFMpeg Extract Frames Logger")
+            emitter.setCancellable { session.cancel() }
+
+            if (emitter.isDisposed) {
+                return@create
+            }
+
+            val estimator = ProgressEstimator()
+
+            val total = frameTimes.size
+
+            val startTime = System.currentTimeMillis()
+
+            val metrics = TranscodeMetrics()
+
+            val file = File(storeFile.path!!)
+            file.parentFile?.mkdirs()
+
+            val store = FrameStoreWriter(file)
+            val pipe = FFMpegPipe.toStore(context, store, metrics)
+
+            val cmd = FFMpegCommands.extractFramesToPipe(
+                inputVideo = inputVideo.toString(),
+                selectExpression = FFMpegCommands.selectExpression(frameTimes),
+                photoQuality = photoQuality,
+                pipe = pipe.path
+            )
+
+            val rc: Int = session.execute(cmd) { newStatistics ->
+                metrics.setFrames(newStatistics.videoFrameNumber.toLong())
+                metrics.setBytesWritten(newStatistics.size)
+                estimator.updateFrames(newStatistics, newStatistics.videoFrameNumber, total)
+                emitter.onNext(progress(storeFile, "", estimator, startTime, metrics))
+            }
+
+            val transferred = pipe.finish()
+            store.close()
+
+            if (rc == Config.RETURN_CODE_SUCCESS && transferred) {
+                estimator.finish()
+                emitter.onNext(progress(storeFile, "Finished ${Arrays.toString(cmd)}", estimator, startTime, metrics))
+                emitter.onComplete()
+            } else if (rc == Config.RETURN_CODE_CANCEL) {
+                emitter.onError(Throwable(String.format("Command execution failed with rc=%d and the output below.", rc)))
+                //delete failed store
+                deleteFolder(file.path)
+            } else {
+                emitter.onError(Throwable(String.format("Command execution failed with rc=%d and the output below.", rc)))
+                loge { session.lastOutput.joinToString("\n") }
             }
 
-        }.doOnDispose {
-            FFmpeg.cancel()
         }
     }
 
@@ -137,14 +250,21 @@ object FFMpegTranscoder {
 
         return Observable.create<Progress> { emitter ->
 
+            val session = FFMpegSession("FFMpeg Transcode Logger")
+            emitter.setCancellable { session.cancel() }
+
             if (emitter.isDisposed) {
                 return@create
             }
 
-            val percent = AtomicInteger()
+            val estimator = ProgressEstimator()
+
+            val durationMs = probeDurationMs(session, inputVideo)
 
             val startTime = System.currentTimeMillis()
 
+            val metrics = TranscodeMetrics()
+
             // ffmpeg -i example_walkaround.mov -vf vidstabdetect=shakiness=10:accuracy=15 -f null -
             // ffmpeg -i example_walkaround.mov -vf vidstabtransform=smoothing=30:input="transforms.trf" example_walkaround_stabilized.mp4
 
@@ -158,16 +278,16 @@ object FFMpegTranscoder {
 
             }.toTypedArray()
 
-            Config.enableStatisticsCallback {
-                emitter.onNext(Progress(uri = outputUri, message = "", progress = percent.get(), duration = System.currentTimeMillis() - startTime))
-            }
-            Config.enableLogCallback {
-                    message -> log("FFMpeg Transcode Logger: ${message.text}")
+            val rc: Int = session.execute(cmd) {
+                metrics.setFrames(it.videoFrameNumber.toLong())
+                metrics.setBytesWritten(it.size)
+                estimator.updateTime(it, durationMs)
+                emitter.onNext(progress(outputUri, "", estimator, startTime, metrics))
             }
-            val rc: Int = FFmpeg.execute(cmd)
 
             if (rc == Config.RETURN_CODE_SUCCESS) {
-                emitter.onNext(Progress(uri = outputUri, message = "Finished ${Arrays.toString(cmd)}", progress = percent.get(), duration = System.currentTimeMillis() - startTime))
+                estimator.finish()
+                emitter.onNext(progress(outputUri, "Finished ${Arrays.toString(cmd)}", estimator, startTime, metrics))
                 emitter.onComplete()
 
             } else if (rc == Config.RETURN_CODE_CANCEL) {
@@ -177,11 +297,9 @@ object FFMpegTranscoder {
 
             } else {
                 emitter.onError(Throwable(String.format("Command execution failed with rc=%d and the output below.", rc)))
-                Config.printLastCommandOutput(Log.INFO)
+                loge { session.lastOutput.joinToString("\n") }
             }
 
-        }.doOnDispose {
-            FFmpeg.cancel()
         }
     }
 
@@ -189,22 +307,36 @@ object FFMpegTranscoder {
      * Merges a sequence of images into a video. Returns a stream with [Progress].
      *
      * @param context application context
-     * @param frameFolder extracted frames directory
+     * @param frameFolder extracted frames directory or a [FrameStore] file
      * @param outputUri video output directory
      * @param [EncodingConfig] Encoding configurations.
      * @param deleteFramesOnComplete removes image sequence directory after successful completion.
+     * @param context application context, only required if frameFolder is a [FrameStore]
      */
-    fun createVideoFromFrames(frameFolder: Uri, outputUri: Uri, config: EncodingConfig, deleteFramesOnComplete: Boolean = true): Observable<Progress> {
+    fun createVideoFromFrames(frameFolder: Uri, outputUri: Uri, config: EncodingConfig, deleteFramesOnComplete: Boolean = true, context: Context? = null): Observable<Progress> {
         return Observable.create<Progress> { emitter ->
 
+            val session = FFMpegSession("FFMpeg Logger")
+            emitter.setCancellable { session.cancel() }
+
             if (emitter.isDisposed) {
                 return@create
             }
 
-            val percent = AtomicInteger()
+            val estimator = ProgressEstimator()
 
-            val total = try {
-                File(frameFolder.path).listFiles().size
+            val metrics = TranscodeMetrics()
+
+            val input = File(frameFolder.path!!)
+
+            val store = if (FrameStore.isFrameStore(input)) FrameStoreReader(input) else null
+
+            val pipe = store?.let {
+                FFMpegPipe.fromStore(context ?: throw IllegalArgumentException("context is required to read a frame store"), it, metrics)
+            }
+
+            val total = store?.frameCount ?: try {
+                input.listFiles().size
             } catch (e: Exception) {
                 e.printStackTrace()
                 0
@@ -212,217 +344,338 @@ object FFMpegTranscoder {
 
             val startTime = System.currentTimeMillis()
 
-            /**
-             * -y overrides output file
-             * -r set source frame rate
-             * -threads sets threads
-             * -i input
-             * -c:v encoding, here: libx264
-             * -x264opts .h264 settings, we extract frames by a fixed gop size, (10 would mean out of 30 fps video, we extract 3 frames per second)
-             * no-scenecut means no extra i-frames, since we never change scene during recording
-             * -g fixed gop size; different than dynamic gop size which can be set with keyInt (max gop size interval) and min-keyint (min gop size interval)
-             * -crf sets video quality
-             * -maxrate:v sets max bit-rate
-             * -bufsize:v sets buffer size (manages average bitrate)
-             * -pix_fmt sets pixel format
-             * -preset sets ffmpeg encoding pre-sets, most likely will not end with good results
-             * -movflags +faststart: Allows video to playback before it is completely downloaded in
-             *  the case of progressive download viewing. Useful if you are hosting the video,
-             *  otherwise superfluous if uploading to a video service like YouTube.
-             */
-            val cmd = mutableListOf<String>().apply {
-                add("-y")
+            val cmd = FFMpegCommands.createVideo(
+                inputPattern = pipe?.path ?: "${frameFolder.path}/image_%03d.jpg",
+                output = "${outputUri.path}",
+                config = config,
+                pipedInput = pipe != null
+            )
 
-                config.sourceFrameRate?.let {
-                    add("-framerate"); add("${config.sourceFrameRate}")
-                }
+            val rc: Int = session.execute(cmd) { newStatistics ->
+                metrics.setFrames(newStatistics.videoFrameNumber.toLong())
+                metrics.setBytesWritten(newStatistics.size)
+                estimator.updateFrames(newStatistics, newStatistics.videoFrameNumber, total)
+                emitter.onNext(progress(outputUri, "", estimator, startTime, metrics))
+            }
 
-                add("-threads"); add("${Runtime.getRuntime().availableProcessors()}")
+            pipe?.finish()
+            store?.close()
 
-                add("-i"); add("${frameFolder.path}/image_%03d.jpg")
+            if (rc == Config.RETURN_CODE_SUCCESS) {
+                estimator.finish()
+                emitter.onNext(progress(outputUri, "Finished ${Arrays.toString(cmd)}", estimator, startTime, metrics))
 
-                add("-r"); add("${config.outputFrameRate}")
+                if (deleteFramesOnComplete) {
+                    val deleteStatus = deleteFolder(frameFolder.path!!)
+                    log { "Delete temp frame save path status: $deleteStatus" }
+                }
+                emitter.onComplete()
 
-                add("-c:v"); add("${config.encoding}")
-                add("-x264opts"); add("keyint=${config.keyInt}:min-keyint=${config.minKeyInt}:no-scenecut")
+            } else if (rc == Config.RETURN_CODE_CANCEL) {
+                emitter.onError(Throwable(String.format("Command execution failed with rc=%d and the output below.", rc)))
+                //delete failed process folder
+                deleteFolder(outputUri.path!!)
 
-                config.gopValue?.let {
-                    add("-g"); add("${config.gopValue}")
-                }
+            } else {
+                emitter.onError(Throwable(String.format("Command execution failed with rc=%d and the output below.", rc)))
+                loge { session.lastOutput.joinToString("\n") }
+            }
 
-                config.videoQuality?.let {
-                    add("-crf"); add("${config.videoQuality}")
-                }
+        }
+    }
 
-                config.maxrate?.let {
-                    add("-maxrate:v"); add("${config.maxrate}k")
-                }
+    /**
+     * FFMPEG Analysis and Filter
+     * # Analyze video, apply some filter to reduce weird effects with reflections
+     *
+     * Writes the transforms [stabilize] applies into a cache keyed by the content of inputVideo and analysis, see
+     * [TransformsCache]. Completes right away if they are cached already.
+     */
+    fun analyseAndFilter(context: Context, inputVideo: Uri, analysis: StabilizationAnalysis = StabilizationAnalysis()): Observable<Progress> {
 
-                config.bufsize?.let {
-                    add("-bufsize:v"); add("${config.bufsize}k")
-                }
+        return Observable.create<Progress> { emitter ->
 
-                add("-pix_fmt"); add("${config.pixelFormat}")
+            val session = FFMpegSession("FFMpeg Analyze Logger")
+            emitter.setCancellable { session.cancel() }
 
-                config.preset?.let {
-                    add("-preset"); add("${config.preset}")
-                }
+            if (emitter.isDisposed) {
+                return@create
+            }
 
-                //add("-movflags"); add("+faststart")
+            val estimator = ProgressEstimator()
 
-                add("${outputUri.path}")
+            val durationMs = probeDurationMs(session, inputVideo)
 
-            }.toTypedArray()
+            val startTime = System.currentTimeMillis()
 
-            Config.enableStatisticsCallback { newStatistics ->
-                percent.set(ceil((100.0 * newStatistics.videoFrameNumber / total)).coerceIn(0.0, 100.0).toInt())
-                emitter.onNext(Progress(uri = outputUri, message = "", progress = percent.get(), duration = System.currentTimeMillis() - startTime))
-            }
-            Config.enableLogCallback {
-                    message -> log(message.text)
+            val metrics = TranscodeMetrics()
+
+            //ffmpeg -i <FILE> -threads 2 -vf "[in]deflicker,dejudder[p0];[p0]vidstabdetect=shakiness=10:accuracy=15[out]" -f null - &&
+
+            val analysed = analyse(context, session, inputVideo, analysis) {
+                metrics.setFrames(it.videoFrameNumber.toLong())
+                metrics.setBytesWritten(it.size)
+                estimator.updateTime(it, durationMs)
+                emitter.onNext(progress(Uri.EMPTY, "", estimator, startTime, metrics))
             }
-            val rc: Int = FFmpeg.execute(cmd)
+            val rc = analysed.returnCode
 
             if (rc == Config.RETURN_CODE_SUCCESS) {
-                emitter.onNext(Progress(uri = outputUri, message = "Finished ${Arrays.toString(cmd)}", progress = percent.get(), duration = System.currentTimeMillis() - startTime))
-
-                if (deleteFramesOnComplete) {
-                    val deleteStatus = deleteFolder(frameFolder.path!!)
-                    log("Delete temp frame save path status: $deleteStatus")
-                }
+                estimator.finish()
+                emitter.onNext(progress(Uri.EMPTY, "Finished ${analysed.transforms}", estimator, startTime, metrics))
                 emitter.onComplete()
 
             } else if (rc == Config.RETURN_CODE_CANCEL) {
                 emitter.onError(Throwable(String.format("Command execution failed with rc=%d and the output below.", rc)))
-                //delete failed process folder
-                deleteFolder(outputUri.path!!)
 
             } else {
                 emitter.onError(Throwable(String.format("Command execution failed with rc=%d and the output below.", rc)))
-                Config.printLastCommandOutput(Log.INFO)
+                loge { session.lastOutput.joinToString("\n") }
             }
 
-        }.doOnDispose {
-            FFmpeg.cancel()
         }
     }
 
     /**
-     * FFMPEG Analysis and Filter
-     * # Analyze video, apply some filter to reduce weird effects with reflections
+     * FFMPEG Stabilization
+     * # Stabilize and output as video
+     *
+     * Applies the cached transforms of inputVideo, see [analyseAndFilter]; the video is analysed first if there are
+     * none for config.analysis. Rendering again with other smoothing, zoom or sharpening decodes the video only once.
      */
-    fun analyseAndFilter(context: Context, inputVideo: Uri): Observable<Progress> {
+    fun stabilize(context: Context, inputVideo: Uri, outputUri: Uri, config: StabilizationConfig = StabilizationConfig()): Observable<Progress> {
 
         return Observable.create<Progress> { emitter ->
 
+            val session = FFMpegSession("FFMpeg Stabilize Logger")
+            emitter.setCancellable { session.cancel() }
+
             if (emitter.isDisposed) {
                 return@create
             }
 
-            val percent = AtomicInteger()
+            val estimator = ProgressEstimator()
 
-            val startTime = System.currentTimeMillis()
+            val durationMs = probeDurationMs(session, inputVideo)
 
-            val transformsFile = getTransformsFile(context)
+            val startTime = System.currentTimeMillis()
 
-            //ffmpeg -i <FILE> -threads 2 -vf "[in]deflicker,dejudder[p0];[p0]vidstabdetect=shakiness=10:accuracy=15[out]" -f null - &&
+            val metrics = TranscodeMetrics()
 
-            val cmd = mutableListOf<String>().apply {
-                add("-i"); add("${inputVideo.path}")
-                add("-threads"); add("${Runtime.getRuntime().availableProcessors()}")
-                add("-vf"); add("[in]deflicker,dejudder[p0];[p0]vidstabdetect=shakiness=10:accuracy=15:result=transforms.trf[out]")
+            val onStatistics = { statistics: Statistics ->
+                metrics.setFrames(statistics.videoFrameNumber.toLong())
+                metrics.setBytesWritten(statistics.size)
+                estimator.updateTime(statistics, durationMs)
+                emitter.onNext(progress(outputUri, "", estimator, startTime, metrics))
+            }
 
-            }.toTypedArray()
+            //ffmpeg -y -i <FILE> -threads 2 -vf "[in]deflicker,dejudder[p0];[p0]vidstabtransform=smoothing=40:input="transforms.trf"[p1];[p1]fps=30[out]" ./output/temp.mp4 &&
 
-            val c = "-i ${inputVideo.path} -threads ${Runtime.getRuntime().availableProcessors()} -vf [in]deflicker,dejudder[p0];[p0]vidstabdetect=stepsize=32:shakiness=10:accuracy=15:result=${transformsFile.path}[out] -f null -"
+            val analysed = analyse(context, session, inputVideo, config.analysis, { estimator.addPass() }, onStatistics)
+            estimator.nextPass()
 
-            Config.enableStatisticsCallback {
-                emitter.onNext(Progress(uri = Uri.EMPTY, message = "", progress = percent.get(), duration = System.currentTimeMillis() - startTime))
-            }
-            Config.enableLogCallback {
-                    message -> log("FFMpeg Analyze Logger: ${message.text}")
-            }
-            val rc: Int = FFmpeg.execute(c)
+            var cmd = emptyArray<String>()
+            val rc: Int = analysed.transforms?.let { transforms ->
+                cmd = FFMpegCommands.stabilize("${inputVideo.path}", transforms.path, config, "${outputUri.path}")
+                session.execute(cmd, onStatistics)
+            } ?: analysed.returnCode
 
             if (rc == Config.RETURN_CODE_SUCCESS) {
-                emitter.onNext(Progress(uri = Uri.EMPTY, message = "Finished ${Arrays.toString(cmd)}", progress = percent.get(), duration = System.currentTimeMillis() - startTime))
+                estimator.finish()
+                emitter.onNext(progress(outputUri, "Finished ${Arrays.toString(cmd)}", estimator, startTime, metrics))
                 emitter.onComplete()
 
             } else if (rc == Config.RETURN_CODE_CANCEL) {
                 emitter.onError(Throwable(String.format("Command execution failed with rc=%d and the output below.", rc)))
+                //delete failed process folder
+                deleteFolder(outputUri.path!!)
 
             } else {
                 emitter.onError(Throwable(String.format("Command execution failed with rc=%d and the output below.", rc)))
-                Config.printLastCommandOutput(Log.INFO)
+                loge { session.lastOutput.joinToString("\n") }
             }
 
-        }.doOnDispose {
-            FFmpeg.cancel()
         }
     }
 
     /**
-     * FFMPEG Stabilization
-     * # Stabilize and output as video
+     * Runs the operations of graph in a single FFmpeg invocation, see [FFMpegJobGraph]. A stabilizing graph analyses
+     * the input first unless its transforms are cached.
+     *
+     * @return progress of the graph, uri is its main output: the video, else the video of the frames, else the frame folder
      */
-    fun stabilize(context: Context, inputVideo: Uri, outputUri: Uri): Observable<Progress> {
+    fun process(context: Context, graph: FFMpegJobGraph): Observable<Progress> {
 
         return Observable.create<Progress> { emitter ->
 
+            val session = FFMpegSession("FFMpeg Graph Logger")
+            emitter.setCancellable { session.cancel() }
+
             if (emitter.isDisposed) {
                 return@create
             }
 
-            val percent = AtomicInteger()
+            val outputUri = graph.primaryOutput
 
-            val startTime = System.currentTimeMillis()
+            val estimator = ProgressEstimator()
 
-            val transformsFile = getTransformsFile(context)
+            val durationMs = probeDurationMs(session, graph.inputVideo)
 
-            //ffmpeg -y -i <FILE> -threads 2 -vf "[in]deflicker,dejudder[p0];[p0]vidstabtransform=smoothing=40:input="transforms.trf"[p1];[p1]fps=30[out]" ./output/temp.mp4 &&
+            val startTime = System.currentTimeMillis()
 
-            val cmd = mutableListOf<String>().apply {
-                add("-y")
-                add("-i"); add("${inputVideo.path}")
-                add("-threads"); add("${Runtime.getRuntime().availableProcessors()}")
-                add("-vf"); add("[in]deflicker,dejudder[p0];[p0]vidstabtransform=input=${transformsFile.path}:zoom=0:smoothing=10,unsharp=5:5:0.8:3:3:0.4[p1];[p1]fps=30[out]")
-                add("${outputUri.path}")
+            val metrics = TranscodeMetrics()
 
-            }.toTypedArray()
+            val onStatistics = { statistics: Statistics ->
+                metrics.setFrames(statistics.videoFrameNumber.toLong())
+                metrics.setBytesWritten(statistics.size)
+                estimator.updateTime(statistics, durationMs)
+                emitter.onNext(progress(outputUri, "", estimator, startTime, metrics))
+            }
 
+            val analysed = graph.stabilization?.let { analyse(context, session, graph.inputVideo, it.analysis, { estimator.addPass() }, onStatistics) }
+            estimator.nextPass()
 
-            Config.enableStatisticsCallback {
-                emitter.onNext(Progress(uri = outputUri, message = "", progress = percent.get(), duration = System.currentTimeMillis() - startTime))
+            val frameOutputPattern = graph.frameFolder?.let { folder ->
+                File(folder.path!!).mkdirs()
+                File(folder.path!!, "image_%03d.jpg").path
             }
-            Config.enableLogCallback {
-                    message -> log("FFMpeg Stabilize Logger: ${message.text}")
+
+            var cmd = emptyArray<String>()
+            val rc: Int = if (analysed != null && analysed.transforms == null) {
+                analysed.returnCode
+            } else {
+                cmd = FFMpegCommands.fusedGraph(
+                    inputVideo = "${graph.inputVideo.path}",
+                    transforms = analysed?.transforms?.path,
+                    stabilization = graph.stabilization ?: StabilizationConfig(),
+                    videoOutput = graph.videoOutput?.path,
+                    frameTimes = graph.frameTimes,
+                    frameOutputPattern = frameOutputPattern,
+                    photoQuality = graph.photoQuality,
+                    framesVideoOutput = graph.framesVideoOutput?.path,
+                    framesVideoConfig = graph.framesVideoConfig
+                )
+                session.execute(cmd, onStatistics)
             }
-            val rc: Int = FFmpeg.execute(cmd)
 
             if (rc == Config.RETURN_CODE_SUCCESS) {
-                emitter.onNext(Progress(uri = outputUri, message = "Finished ${Arrays.toString(cmd)}", progress = percent.get(), duration = System.currentTimeMillis() - startTime))
+                estimator.finish()
+                emitter.onNext(progress(outputUri, "Finished ${Arrays.toString(cmd)}", estimator, startTime, metrics))
                 emitter.onComplete()
 
             } else if (rc == Config.RETURN_CODE_CANCEL) {
                 emitter.onError(Throwable(String.format("Command execution failed with rc=%d and the output below.", rc)))
-                //delete failed process folder
-                deleteFolder(outputUri.path!!)
+                //delete failed outputs
+                listOfNotNull(graph.videoOutput, graph.framesVideoOutput, graph.frameFolder).forEach { deleteFolder(it.path!!) }
 
             } else {
                 emitter.onError(Throwable(String.format("Command execution failed with rc=%d and the output below.", rc)))
-                Config.printLastCommandOutput(Log.INFO)
+                loge { session.lastOutput.joinToString("\n") }
             }
 
-        }.doOnDispose {
-            FFmpeg.cancel()
         }
     }
 
     /**
-     * Creates and gets transforms.trf file
+     * Result of [analyse].
+     *
+     * @param transforms the cached transforms, null if the analysis failed
+     */
+    private class Analysed(val returnCode: Int, val transforms: File?)
+
+    /**
+     * Runs the analysis pass of the stabilization of inputVideo, unless its transforms are cached.
+     *
+     * @param onAnalysing called before the analysis pass runs
+     */
+    private fun analyse(context: Context, session: FFMpegSession, inputVideo: Uri, analysis: StabilizationAnalysis, onAnalysing: () -> Unit = {}, onStatistics: (Statistics) -> Unit): Analysed {
+        val cache = transformsCache(context)
+        val key = cache.key(File(inputVideo.path!!), analysis)
+        cache.get(key)?.let {
+            log { "using cached transforms $it" }
+            return Analysed(Config.RETURN_CODE_SUCCESS, it)
+        }
+
+        onAnalysing()
+        val temp = cache.tempFile(key)
+        val rc = session.execute(FFMpegCommands.analyseStabilization("${inputVideo.path}", temp.path, analysis), onStatistics)
+        if (rc != Config.RETURN_CODE_SUCCESS) {
+            temp.delete()
+            return Analysed(rc, null)
+        }
+        return Analysed(rc, cache.commit(key, temp))
+    }
+
+    @Volatile
+    private var transformsCache: TransformsCache? = null
+
+    /**
+     * Transforms of all stabilizations, in the app cache directory.
+     */
+    private fun transformsCache(context: Context): TransformsCache = transformsCache ?: synchronized(this) {
+        transformsCache ?: TransformsCache(File(context.cacheDir, "stabilization")).also { transformsCache = it }
+    }
+
+    /**
+     * Duration of inputVideo in ms, probed within session, 0 if FFprobe can't tell or the session was cancelled.
      */
-    private fun getTransformsFile(context: Context): File {
-        return File(context.cacheDir, "transforms.trf")
+    private fun probeDurationMs(session: FFMpegSession, inputVideo: Uri): Long =
+        session.probe(inputVideo.path!!)?.duration?.toDoubleOrNull()?.let { (it * 1000).toLong() } ?: 0L
+
+    /**
+     * Updates from statistics of a pass over the whole input, its progress is the time encoded of durationMs.
+     */
+    private fun ProgressEstimator.updateTime(statistics: Statistics, durationMs: Long) =
+        update(statistics.time.toLong(), durationMs, statistics.videoFps.toDouble(), statistics.speed, statistics.bitrate, statistics.size)
+
+    /**
+     * Updates from statistics of a pass which selects frames, its progress is the frames written of total.
+     *
+     * @param size output size, if the job writes more than this execution
+     */
+    private fun ProgressEstimator.updateFrames(statistics: Statistics, frames: Int, total: Int, size: Long = statistics.size) =
+        update(if (total > 0) frames.toDouble() / total else 0.0, statistics.videoFps.toDouble(), statistics.speed, statistics.bitrate, size)
+
+    private fun progress(uri: Uri?, message: String, estimator: ProgressEstimator, startTime: Long, metrics: TranscodeMetrics) = Progress(
+        uri = uri,
+        message = message,
+        progress = estimator.percent,
+        duration = System.currentTimeMillis() - startTime,
+        metrics = metrics,
+        fps = estimator.fps,
+        speed = estimator.speed,
+        bitrate = estimator.bitrate,
+        size = estimator.size,
+        eta = estimator.etaMs
+    )
+
+    /**
+     * Last number of the consecutive images of outputPattern from first on, first - 1 if there are none.
+     */
+    private fun countImages(outputPattern: String, first: Int): Int {
+        var number = first
+        while (File(String.format(Locale.US, outputPattern, number)).exists()) {
+            number++
+        }
+        return number - 1
+    }
+
+    /**
+     * Moves the consecutive images of stagingPattern from 1 on to the numbers of outputPattern from first on,
+     * replacing images left there by an earlier job.
+     *
+     * @return amount of images moved
+     */
+    @Throws(IOException::class)
+    private fun moveImages(stagingPattern: String, outputPattern: String, first: Int): Int {
+        val count = countImages(stagingPattern, 1)
+        for (i in 0 until count) {
+            val target = File(String.format(Locale.US, outputPattern, first + i))
+            if (!File(String.format(Locale.US, stagingPattern, 1 + i)).renameTo(target)) {
+                throw IOException("Unable to move image to $target")
+            }
+        }
+        return count
     }
 
     /**
@@ -0,0 +1,344 @@
+package com.exozet.transcoder.ffmpeg
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Single file container for encoded frames, replaces a directory of image_%03d.jpg files.
+ *
+ * Layout, little endian:
+ *
+ * header   magic "EXFS", version, frame count, reserved, index offset (8 bytes), reserved (8 bytes)
+ * records  per frame: length (4 bytes) followed by the frame bytes, appended in order
+ * index    per frame: record offset (8 bytes) and frame length (4 bytes), written on close
+ *
+ * Writing only appends and doesn't touch the file system per frame. Reading maps the file and returns frames as slices
+ * of the mapping, so random access costs no system call. A store which hasn't been closed has no index, it is
+ * recovered by walking the length prefixed records.
+ */
+object FrameStore {
+
+    const val MAGIC = 0x53465845 // "EXFS"
+
+    const val VERSION = 1
+
+    const val HEADER_SIZE = 32
+
+    internal const val INDEX_ENTRY_SIZE = 12
+
+    internal const val RECORD_HEADER_SIZE = 4
+
+    /**
+     * File extension used by the transcoders for frame stores.
+     */
+    const val EXTENSION = "frames"
+
+    /**
+     * true if file starts with a frame store header.
+     */
+    fun isFrameStore(file: File): Boolean {
+        if (!file.isFile || file.length() < HEADER_SIZE) {
+            return false
+        }
+        return try {
+            RandomAccessFile(file, "r").use { raf ->
+                val header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+                raf.channel.read(header, 0)
+                header.flip()
+                header.int == MAGIC && header.int == VERSION
+            }
+        } catch (e: IOException) {
+            false
+        }
+    }
+}
+
+/**
+ * Appends frames to a [FrameStore] file, existing files are overwritten.
+ */
+class FrameStoreWriter(file: File) : Closeable {
+
+    private val channel: FileChannel = RandomAccessFile(file, "rw").channel
+
+    private val recordHeader = ByteBuffer.allocate(FrameStore.RECORD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+
+    private var offsets = LongArray(64)
+
+    private var lengths = IntArray(64)
+
+    private var position = FrameStore.HEADER_SIZE.toLong()
+
+    private var closed = false
+
+    /**
+     * Amount of frames appended so far.
+     */
+    var frameCount: Int = 0
+        private set
+
+    init {
+        channel.truncate(0)
+        writeHeader(0, 0L)
+    }
+
+    /**
+     * Appends the remaining bytes of frame.
+     *
+     * @return index of the frame
+     */
+    @Throws(IOException::class)
+    fun append(frame: ByteBuffer): Int {
+        check(!closed) { "frame store closed" }
+
+        val length = frame.remaining()
+        recordHeader.clear()
+        recordHeader.putInt(length)
+        recordHeader.flip()
+
+        val buffers = arrayOf(recordHeader, frame)
+        while (frame.hasRemaining() || recordHeader.hasRemaining()) {
+            channel.write(buffers)
+        }
+
+        if (frameCount == offsets.size) {
+            offsets = offsets.copyOf(frameCount * 2)
+            lengths = lengths.copyOf(frameCount * 2)
+        }
+        offsets[frameCount] = position
+        lengths[frameCount] = length
+        position += FrameStore.RECORD_HEADER_SIZE + length
+        return frameCount++
+    }
+
+    /**
+     * Appends length bytes of frame starting at offset.
+     *
+     * @return index of the frame
+     */
+    @Throws(IOException::class)
+    fun append(frame: ByteArray, offset: Int = 0, length: Int = frame.size): Int = append(ByteBuffer.wrap(frame, offset, length))
+
+    /**
+     * Writes the index and the final header.
+     */
+    @Throws(IOException::class)
+    override fun close() {
+        if (closed) {
+            return
+        }
+        closed = true
+        try {
+            val index = ByteBuffer.allocate(frameCount * FrameStore.INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+            for (i in 0 until frameCount) {
+                index.putLong(offsets[i])
+                index.putInt(lengths[i])
+            }
+            index.flip()
+            while (index.hasRemaining()) {
+                channel.write(index, position + index.position())
+            }
+            // header last, a crash before leaves a store without index which is still recoverable
+            writeHeader(frameCount, position)
+        } finally {
+            channel.close()
+        }
+    }
+
+    private fun writeHeader(frameCount: Int, indexOffset: Long) {
+        val header = ByteBuffer.allocate(FrameStore.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        header.putInt(FrameStore.MAGIC)
+        header.putInt(FrameStore.VERSION)
+        header.putInt(frameCount)
+        header.putInt(0)
+        header.putLong(indexOffset)
+        header.putLong(0L)
+        header.flip()
+        while (header.hasRemaining()) {
+            channel.write(header, header.position().toLong())
+        }
+        channel.position(position)
+    }
+}
+
+/**
+ * Random access to the frames of a [FrameStore] file through a memory mapping.
+ */
+class FrameStoreReader(file: File) : Closeable {
+
+    private val channel: FileChannel
+
+    /**
+     * Whole file, null if it is too large for a single mapping, then frames are mapped one by one.
+     */
+    private val mapping: MappedByteBuffer?
+
+    private val offsets: LongArray
+
+    private val lengths: IntArray
+
+    val frameCount: Int
+
+    init {
+        channel = RandomAccessFile(file, "r").channel
+        try {
+            val size = channel.size()
+            if (size < FrameStore.HEADER_SIZE) {
+                throw IOException("$file is not a frame store")
+            }
+            mapping = if (size <= Int.MAX_VALUE) channel.map(FileChannel.MapMode.READ_ONLY, 0, size) else null
+
+            val header = read(0, FrameStore.HEADER_SIZE)
+            if (header.int != FrameStore.MAGIC) {
+                throw IOException("$file is not a frame store")
+            }
+            val version = header.int
+            if (version != FrameStore.VERSION) {
+                throw IOException("Unsupported frame store version $version")
+            }
+            val count = header.int
+            header.int
+            val indexOffset = header.long
+
+            if (indexOffset > 0) {
+                frameCount = count
+                offsets = LongArray(count)
+                lengths = IntArray(count)
+                val index = read(indexOffset, count * FrameStore.INDEX_ENTRY_SIZE)
+                for (i in 0 until count) {
+                    offsets[i] = index.long
+                    lengths[i] = index.int
+                }
+            } else {
+                // not closed, walk the records
+                val recoveredOffsets = ArrayList<Long>()
+                val recoveredLengths = ArrayList<Int>()
+                var position = FrameStore.HEADER_SIZE.toLong()
+                while (position + FrameStore.RECORD_HEADER_SIZE <= size) {
+                    val length = read(position, FrameStore.RECORD_HEADER_SIZE).int
+                    if (length < 0 || position + FrameStore.RECORD_HEADER_SIZE + length > size) {
+                        break
+                    }
+                    recoveredOffsets.add(position)
+                    recoveredLengths.add(length)
+                    position += FrameStore.RECORD_HEADER_SIZE + length
+                }
+                frameCount = recoveredOffsets.size
+                offsets = recoveredOffsets.toLongArray()
+                lengths = recoveredLengths.toIntArray()
+            }
+        } catch (e: IOException) {
+            channel.close()
+            throw e
+        }
+    }
+
+    /**
+     * Size in bytes of frame index.
+     */
+    fun frameSize(index: Int): Int = lengths[index]
+
+    /**
+     * Read only view of frame index, valid until the reader is closed.
+     */
+    @Throws(IOException::class)
+    fun frame(index: Int): ByteBuffer {
+        if (index < 0 || index >= frameCount) {
+            throw IndexOutOfBoundsException("frame $index of $frameCount")
+        }
+        return read(offsets[index] + FrameStore.RECORD_HEADER_SIZE, lengths[index])
+    }
+
+    /**
+     * Copies frame index into a new array, e.g. for BitmapFactory.decodeByteArray.
+     */
+    @Throws(IOException::class)
+    fun frameBytes(index: Int): ByteArray {
+        val frame = frame(index)
+        val bytes = ByteArray(frame.remaining())
+        frame.get(bytes)
+        return bytes
+    }
+
+    override fun close() = channel.close()
+
+    private fun read(position: Long, length: Int): ByteBuffer {
+        val view = if (mapping != null) {
+            val duplicate = mapping.duplicate()
+            duplicate.position(position.toInt())
+            duplicate.limit(position.toInt() + length)
+            duplicate.slice()
+        } else {
+            channel.map(FileChannel.MapMode.READ_ONLY, position, length.toLong())
+        }
+        return view.order(ByteOrder.LITTLE_ENDIAN)
+    }
+}
+
+/**
+ * Splits a stream of concatenated JPEG images, as written by FFmpeg's image2pipe muxer, at the SOI and EOI markers.
+ *
+ * FFmpeg's mjpeg encoder doesn't embed thumbnails and entropy coded data has every 0xFF byte stuffed, so the first
+ * EOI after a SOI ends the image.
+ */
+internal class JpegFrameSplitter(private val onFrame: (ByteArray, Int) -> Unit) {
+
+    private var frame = ByteArray(256 * 1024)
+
+    private var length = 0
+
+    private var inFrame = false
+
+    private var previous = 0
+
+    /**
+     * Consumes count bytes of data, calls onFrame with every completed image and its length. The array passed to
+     * onFrame is reused afterwards.
+     */
+    fun feed(data: ByteArray, count: Int) {
+        var start = if (inFrame) 0 else -1
+        for (i in 0 until count) {
+            val current = data[i].toInt() and 0xff
+            if (previous == 0xff) {
+                if (!inFrame && current == 0xd8) {
+                    inFrame = true
+                    length = 0
+                    append(0xff)
+                    start = i
+                } else if (inFrame && current == 0xd9) {
+                    copy(data, start, i + 1)
+                    onFrame(frame, length)
+                    inFrame = false
+                    start = -1
+                }
+            }
+            previous = current
+        }
+        if (inFrame && start >= 0) {
+            copy(data, start, count)
+        }
+    }
+
+    private fun append(value: Int) {
+        ensureCapacity(length + 1)
+        frame[length++] = value.toByte()
+    }
+
+    private fun copy(data: ByteArray, from: Int, to: Int) {
+        val count = to - from
+        ensureCapacity(length + count)
+        System.arraycopy(data, from, frame, length, count)
+        length += count
+    }
+
+    private fun ensureCapacity(capacity: Int) {
+        if (capacity > frame.size) {
+            frame = frame.copyOf(maxOf(capacity, frame.size * 2))
+        }
+    }
+}
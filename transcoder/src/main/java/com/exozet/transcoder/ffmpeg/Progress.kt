@@ -2,9 +2,33 @@ package com.exozet.transcoder.ffmpeg
 
 import android.net.Uri
 
-data class Progress(
+data class Progress @JvmOverloads constructor(
     var progress: Int = 0,
     var message: String? = null,
     var uri: Uri? = null,
-    var duration: Long = 0L
+    var duration: Long = 0L,
+    /**
+     * Live timing and throughput of the job, the same instance for all progress updates of a job.
+     */
+    var metrics: TranscodeMetrics? = null,
+    /**
+     * Frames per second FFmpeg currently encodes, 0 for jobs which don't run FFmpeg.
+     */
+    var fps: Double = 0.0,
+    /**
+     * Media time processed per wall clock time, e.g. 2.0 at twice real time.
+     */
+    var speed: Double = 0.0,
+    /**
+     * Bitrate of the output in kbit/s.
+     */
+    var bitrate: Double = 0.0,
+    /**
+     * Output size in bytes.
+     */
+    var size: Long = 0L,
+    /**
+     * Estimated milliseconds until the job is done, -1 if unknown.
+     */
+    var eta: Long = -1L
 )
\ No newline at end of file
@@ -0,0 +1,143 @@
+package com.exozet.transcoder.ffmpeg
+
+/**
+ * Progress, throughput and remaining time of an FFmpeg job, updated from the statistics of its executions.
+ *
+ * A job runs one or more passes over its input, e.g. the analysis and the transform of a stabilization, which count
+ * the same. The ETA divides the remaining part of the job by its rate, smoothed over roughly [RATE_WINDOW_NS] so
+ * that the noisy start of an execution and single slow frames don't make it jump.
+ *
+ * Not thread safe, statistics of a job arrive one after another.
+ *
+ * @param clock nanosecond time source
+ */
+internal class ProgressEstimator(private val clock: () -> Long = System::nanoTime) {
+
+    private var passes = 1
+
+    private var pass = 0
+
+    private var passFraction = 0.0
+
+    private var rate = 0.0
+
+    private var lastFraction = 0.0
+
+    private var lastNanos = clock()
+
+    /**
+     * Encoding frame rate FFmpeg reported last.
+     */
+    var fps = 0.0
+        private set
+
+    /**
+     * Media time encoded per wall clock time, e.g. 2.0 at twice real time.
+     */
+    var speed = 0.0
+        private set
+
+    /**
+     * Bitrate of the output in kbit/s.
+     */
+    var bitrate = 0.0
+        private set
+
+    /**
+     * Output size in bytes.
+     */
+    var size = 0L
+        private set
+
+    /**
+     * 0 - 1 part of the whole job done.
+     */
+    val fraction: Double
+        get() = ((pass + passFraction) / passes).coerceIn(0.0, 1.0)
+
+    val percent: Int
+        get() = Math.floor(fraction * 100).toInt()
+
+    /**
+     * Estimated milliseconds until the job is done, -1 until there's a rate to estimate from.
+     */
+    val etaMs: Long
+        get() = when {
+            fraction >= 1.0 -> 0L
+            rate <= 0.0 -> -1L
+            else -> ((1.0 - fraction) / rate * 1000).toLong()
+        }
+
+    /**
+     * Adds a pass before the remaining ones, e.g. an analysis which isn't cached.
+     */
+    fun addPass() {
+        passes++
+    }
+
+    /**
+     * The current pass is done, later statistics belong to the next one.
+     */
+    fun nextPass() {
+        if (pass < passes - 1) {
+            pass++
+            passFraction = 0.0
+        }
+    }
+
+    /**
+     * Updates from statistics of a pass whose output covers timeMs of durationMs, the probed duration of the input.
+     * Leaves the progress unchanged if the duration is unknown.
+     */
+    fun update(timeMs: Long, durationMs: Long, fps: Double, speed: Double, bitrate: Double, size: Long) {
+        update(if (durationMs > 0) timeMs.toDouble() / durationMs else passFraction, fps, speed, bitrate, size)
+    }
+
+    /**
+     * Updates from statistics of a pass which is passFraction done, e.g. by frames written of frames requested.
+     */
+    fun update(passFraction: Double, fps: Double, speed: Double, bitrate: Double, size: Long) {
+        this.fps = fps
+        this.speed = speed
+        this.bitrate = bitrate
+        this.size = size
+        // statistics of a restarted or seeking execution may go back in time
+        this.passFraction = Math.max(this.passFraction, passFraction.coerceIn(0.0, 1.0))
+        sample()
+    }
+
+    /**
+     * The job succeeded.
+     */
+    fun finish() {
+        pass = passes - 1
+        passFraction = 1.0
+    }
+
+    private fun sample() {
+        val now = clock()
+        val elapsed = now - lastNanos
+        if (elapsed < MIN_SAMPLE_NS) {
+            return
+        }
+        val sampleRate = (fraction - lastFraction) * 1_000_000_000.0 / elapsed
+        // time weighted moving average, the first sample is taken as is
+        val weight = if (rate == 0.0) 1.0 else 1.0 - Math.exp(-elapsed.toDouble() / RATE_WINDOW_NS)
+        rate += (sampleRate - rate) * weight
+        lastFraction = fraction
+        lastNanos = now
+    }
+
+    private companion object {
+
+        /**
+         * Time the rate of the ETA is averaged over.
+         */
+        const val RATE_WINDOW_NS = 5_000_000_000L
+
+        /**
+         * Shorter intervals are merged into the next sample, FFmpeg reports about every 500 ms.
+         */
+        const val MIN_SAMPLE_NS = 100_000_000L
+    }
+}
@@ -0,0 +1,97 @@
+package com.exozet.transcoder.ffmpeg
+
+import android.net.Uri
+import io.reactivex.Observable
+import io.reactivex.schedulers.Schedulers
+
+/**
+ * One video of a batch, the frames at frameTimes of inputVideo are extracted into outputDir.
+ *
+ * @param frameTimes times in seconds, in the type taken by the transcoder running the batch
+ */
+data class ExtractionJob<T>(
+    val inputVideo: Uri,
+    val frameTimes: List<T>,
+    val outputDir: Uri
+)
+
+/**
+ * Update of a batch, emitted for every progress of one of its jobs and once more when that job ended.
+ *
+ * @param job index of the job in the batch
+ * @param progress last progress of the job, null if it failed before reporting any
+ * @param finished true on the last update of the job
+ * @param error why the job failed, only set on its last update
+ * @param completedJobs jobs finished successfully so far
+ * @param failedJobs jobs failed so far
+ * @param totalJobs jobs in the batch
+ * @param overallProgress 0 - 100 progress of the batch, the mean progress of all jobs where ended ones count as 100
+ */
+data class BatchProgress(
+    val job: Int,
+    val progress: Progress?,
+    val finished: Boolean,
+    val error: Throwable?,
+    val completedJobs: Int,
+    val failedJobs: Int,
+    val totalJobs: Int,
+    val overallProgress: Int
+)
+
+/**
+ * Runs the jobs of a batch on a bounded amount of workers and merges their progress.
+ *
+ * A failing job doesn't end the batch, its error is reported on its last [BatchProgress]. Disposing cancels the
+ * running jobs, pending ones are not started.
+ */
+internal object TranscodeBatch {
+
+    private class JobEvent(val job: Int, val progress: Progress?, val finished: Boolean, val error: Throwable?)
+
+    /**
+     * @param jobCount amount of jobs
+     * @param concurrency jobs running at the same time
+     * @param job creates the job of an index, called on its worker thread when the job starts
+     */
+    fun run(jobCount: Int, concurrency: Int, job: (Int) -> Observable<Progress>): Observable<BatchProgress> =
+        Observable.defer {
+            val percents = IntArray(jobCount)
+            val lastProgress = arrayOfNulls<Progress>(jobCount)
+            var percentSum = 0L
+            var completed = 0
+            var failed = 0
+
+            Observable.range(0, jobCount)
+                .flatMap({ index ->
+                    Observable.defer { job(index) }
+                        .subscribeOn(Schedulers.io())
+                        .map { JobEvent(index, it, false, null) }
+                        .concatWith(Observable.fromCallable { JobEvent(index, null, true, null) })
+                        .onErrorReturn { JobEvent(index, null, true, it) }
+                }, Math.max(1, concurrency))
+                // merged events arrive one at a time, so the aggregate needs no locking
+                .map { event ->
+                    val index = event.job
+                    event.progress?.let { lastProgress[index] = it }
+                    val percent = when {
+                        event.finished -> 100
+                        else -> event.progress?.progress?.coerceIn(0, 100) ?: percents[index]
+                    }
+                    percentSum += percent - percents[index]
+                    percents[index] = percent
+                    if (event.finished) {
+                        if (event.error == null) completed++ else failed++
+                    }
+                    BatchProgress(
+                        job = index,
+                        progress = lastProgress[index],
+                        finished = event.finished,
+                        error = event.error,
+                        completedJobs = completed,
+                        failedJobs = failed,
+                        totalJobs = jobCount,
+                        overallProgress = if (jobCount == 0) 100 else (percentSum / jobCount).toInt()
+                    )
+                }
+        }
+}
@@ -0,0 +1,212 @@
+package com.exozet.transcoder.ffmpeg
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Per frame stages of a transcoding job.
+ */
+enum class Stage {
+    /** Reading samples from the container. */
+    DEMUX,
+    /** Decoding, time spent feeding and waiting for the decoder or decoding an image file. */
+    DECODE,
+    /** Latching and drawing a decoded frame with GL. */
+    DRAW,
+    /** glReadPixels of a drawn frame. */
+    READ_PIXELS,
+    /** JPEG compression. */
+    COMPRESS,
+    /** Writing frames to files, frame stores or pipes. */
+    WRITE,
+    /** RGB to YUV conversion or YUV layout changes. */
+    COLOR_CONVERT,
+    /** Feeding the encoder, including the wait for a free input buffer. */
+    ENCODE,
+    /** Writing encoded samples to the container. */
+    MUX
+}
+
+/**
+ * Latency distribution of a single [Stage].
+ *
+ * Latencies go into log2 buckets, bucket i counts latencies in [2^i, 2^(i+1)) ns, so recording is a few atomic adds
+ * and percentiles are accurate to a factor of 2.
+ */
+class StageMetrics internal constructor(val stage: Stage) {
+
+    private val buckets = AtomicLongArray(BUCKETS)
+
+    private val recorded = AtomicLong()
+
+    private val total = AtomicLong()
+
+    private val max = AtomicLong()
+
+    fun record(nanos: Long) {
+        val value = if (nanos < 1) 1 else nanos
+        buckets.incrementAndGet(63 - java.lang.Long.numberOfLeadingZeros(value))
+        recorded.incrementAndGet()
+        total.addAndGet(value)
+        var current = max.get()
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get()
+        }
+    }
+
+    /**
+     * Amount of recorded operations.
+     */
+    val count: Long
+        get() = recorded.get()
+
+    val totalNanos: Long
+        get() = total.get()
+
+    val maxNanos: Long
+        get() = max.get()
+
+    val meanNanos: Long
+        get() = recorded.get().let { if (it == 0L) 0L else total.get() / it }
+
+    /**
+     * Upper bound of the bucket holding the given percentile, 0 if nothing has been recorded.
+     *
+     * @param percentile in (0, 100]
+     */
+    fun percentileNanos(percentile: Double): Long {
+        val recordedCount = recorded.get()
+        if (recordedCount == 0L) {
+            return 0L
+        }
+        val rank = Math.ceil(recordedCount * percentile / 100.0).toLong().coerceIn(1L, recordedCount)
+        var seen = 0L
+        for (i in 0 until BUCKETS) {
+            seen += buckets.get(i)
+            if (seen >= rank) {
+                return if (i >= 62) Long.MAX_VALUE else (1L shl (i + 1)) - 1
+            }
+        }
+        return max.get()
+    }
+
+    override fun toString(): String =
+        "$stage: n=$count mean=${meanNanos / 1000}us p50<${percentileNanos(50.0) / 1000}us p99<${percentileNanos(99.0) / 1000}us max=${maxNanos / 1000}us"
+
+    private companion object {
+        const val BUCKETS = 64
+    }
+}
+
+/**
+ * Timing and throughput of a single transcoding job, attached to every [Progress] it emits.
+ *
+ * All methods are thread safe, stages are usually recorded from different threads.
+ *
+ * FFmpeg runs its whole pipeline natively, so FFmpeg jobs only report frames, bytes written and the stages which
+ * happen on the JVM side, like writing frames into a frame store.
+ */
+class TranscodeMetrics {
+
+    private val stages = Array(Stage.values().size) { StageMetrics(Stage.values()[it]) }
+
+    private val startNanos = System.nanoTime()
+
+    private val frameCount = AtomicLong()
+
+    private val writtenBytes = AtomicLong()
+
+    private val buffersInUse = AtomicLong()
+
+    private val peakBufferCount = AtomicLong()
+
+    fun stage(stage: Stage): StageMetrics = stages[stage.ordinal]
+
+    /**
+     * Start timestamp for [record].
+     */
+    fun start(): Long = System.nanoTime()
+
+    /**
+     * Records the time since startNanos, see [start].
+     */
+    fun record(stage: Stage, startNanos: Long) = stages[stage.ordinal].record(System.nanoTime() - startNanos)
+
+    /**
+     * Times block as stage.
+     */
+    inline fun <T> time(stage: Stage, block: () -> T): T {
+        val start = start()
+        try {
+            return block()
+        } finally {
+            record(stage, start)
+        }
+    }
+
+    /**
+     * Counts a frame which passed the whole pipeline.
+     */
+    fun frameCompleted() {
+        frameCount.incrementAndGet()
+    }
+
+    /**
+     * Sets the frame count for pipelines which report their progress as absolute values, like FFmpeg.
+     */
+    fun setFrames(count: Long) = frameCount.set(count)
+
+    fun addBytesWritten(bytes: Long) {
+        writtenBytes.addAndGet(bytes)
+    }
+
+    /**
+     * Sets the bytes written for pipelines which report their output size as absolute value, like FFmpeg.
+     */
+    fun setBytesWritten(bytes: Long) = writtenBytes.set(bytes)
+
+    /**
+     * A frame buffer, e.g. a decoded bitmap or a pixel buffer, has been taken.
+     */
+    fun bufferAcquired() {
+        val inUse = buffersInUse.incrementAndGet()
+        var peak = peakBufferCount.get()
+        while (inUse > peak && !peakBufferCount.compareAndSet(peak, inUse)) {
+            peak = peakBufferCount.get()
+        }
+    }
+
+    fun bufferReleased() {
+        buffersInUse.decrementAndGet()
+    }
+
+    val frames: Long
+        get() = frameCount.get()
+
+    val bytesWritten: Long
+        get() = writtenBytes.get()
+
+    /**
+     * Highest amount of frame buffers in use at the same time.
+     */
+    val peakBuffers: Long
+        get() = peakBufferCount.get()
+
+    val elapsedNanos: Long
+        get() = System.nanoTime() - startNanos
+
+    val framesPerSecond: Double
+        get() = elapsedNanos.let { if (it <= 0L) 0.0 else frameCount.get() * 1_000_000_000.0 / it }
+
+    override fun toString(): String = buildString {
+        append("frames=").append(frames)
+        append(" fps=").append(String.format("%.1f", framesPerSecond))
+        append(" bytes=").append(bytesWritten)
+        append(" peakBuffers=").append(peakBuffers)
+        for (stage in stages) {
+            if (stage.count > 0) {
+                append('\n').append(stage)
+            }
+        }
+    }
+}
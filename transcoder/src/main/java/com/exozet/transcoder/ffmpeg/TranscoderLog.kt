@@ -0,0 +1,145 @@
+package com.exozet.transcoder.ffmpeg
+
+/**
+ * Log levels in the order of the android.util.Log priorities, [NONE] turns logging off.
+ */
+enum class LogLevel {
+    VERBOSE,
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    NONE
+}
+
+/**
+ * Receives the log lines of [TranscoderLog] at or above its level. Called on the logging thread.
+ */
+interface LogSink {
+
+    fun log(level: LogLevel, tag: String, message: String)
+}
+
+/**
+ * Keeps the last lines in memory instead of printing them, e.g. to attach the log of a failed job to a bug report
+ * without logging in release builds. Lines are kept as logged and only formatted by [snapshot], so logging a line
+ * doesn't allocate. Thread safe.
+ *
+ * @param capacity amount of lines kept, older ones are overwritten
+ */
+class RingBufferLogSink(val capacity: Int = 256) : LogSink {
+
+    private val levels = arrayOfNulls<LogLevel>(Math.max(1, capacity))
+
+    private val tags = arrayOfNulls<String>(levels.size)
+
+    private val messages = arrayOfNulls<String>(levels.size)
+
+    private var next = 0
+
+    private var count = 0
+
+    @Synchronized
+    override fun log(level: LogLevel, tag: String, message: String) {
+        levels[next] = level
+        tags[next] = tag
+        messages[next] = message
+        next = (next + 1) % levels.size
+        if (count < levels.size) {
+            count++
+        }
+    }
+
+    /**
+     * The kept lines, oldest first.
+     */
+    @Synchronized
+    fun snapshot(): List<String> {
+        val start = (next - count + levels.size) % levels.size
+        return List(count) {
+            val line = (start + it) % levels.size
+            "${levels[line]!!.name[0]}/${tags[line]}: ${messages[line]}"
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        levels.fill(null)
+        tags.fill(null)
+        messages.fill(null)
+        next = 0
+        count = 0
+    }
+}
+
+/**
+ * Logging of the transcoder.
+ *
+ * Messages are built by lambdas which are inlined at the call site and only run if their level is logged, so disabled
+ * logging neither formats strings nor allocates, also within the per frame decoding and encoding loops. Set [level]
+ * and [sink] before starting a job; on Android they default to logcat at [LogLevel.DEBUG] in debug builds and to no
+ * logging otherwise.
+ *
+ * Has no Android dependencies, so it can be measured on a plain JVM.
+ */
+object TranscoderLog {
+
+    @Volatile
+    private var configured = false
+
+    @Volatile
+    private var currentLevel = LogLevel.NONE
+
+    @Volatile
+    private var currentSink: LogSink? = null
+
+    /**
+     * Lowest level logged.
+     */
+    @JvmStatic
+    var level: LogLevel
+        get() = currentLevel
+        set(value) {
+            currentLevel = value
+            configured = true
+        }
+
+    /**
+     * Receives the logged lines, null disables logging.
+     */
+    @JvmStatic
+    var sink: LogSink?
+        get() = currentSink
+        set(value) {
+            currentSink = value
+            configured = true
+        }
+
+    @JvmStatic
+    fun isLoggable(level: LogLevel): Boolean = level.ordinal >= currentLevel.ordinal && currentSink != null
+
+    @JvmStatic
+    fun write(level: LogLevel, tag: String, message: String) {
+        currentSink?.log(level, tag, message)
+    }
+
+    /**
+     * Logs the message built by message if level is logged.
+     */
+    inline fun log(level: LogLevel, tag: String, message: () -> String) {
+        if (isLoggable(level)) {
+            write(level, tag, message())
+        }
+    }
+
+    /**
+     * Defaults of the platform, ignored if level or sink have been set before.
+     */
+    @Synchronized
+    internal fun setDefaults(level: LogLevel, sink: LogSink?) {
+        if (!configured) {
+            currentLevel = level
+            currentSink = sink
+        }
+    }
+}
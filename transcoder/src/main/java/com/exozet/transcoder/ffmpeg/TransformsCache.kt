@@ -0,0 +1,148 @@
+package com.exozet.transcoder.ffmpeg
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.security.MessageDigest
+
+/**
+ * Parameters of the vidstabdetect pass of [FFMpegTranscoder.stabilize], the transforms are cached per input and these.
+ *
+ * https://www.ffmpeg.org/ffmpeg-filters.html#vidstabdetect-1
+ */
+data class StabilizationAnalysis(
+    val shakiness: Int = 10,
+    val accuracy: Int = 15,
+    val stepSize: Int = 32
+)
+
+/**
+ * Parameters of [FFMpegTranscoder.stabilize]. Only [analysis] decides whether cached transforms are reused, with
+ * another smoothing, zoom or sharpening the video is rendered again from the same transforms in a single pass.
+ *
+ * https://www.ffmpeg.org/ffmpeg-filters.html#vidstabtransform-1
+ *
+ * @param unsharp parameters of the unsharp filter applied after the transform, null to not sharpen
+ * @param frameRate frame rate of the output
+ */
+data class StabilizationConfig(
+    val analysis: StabilizationAnalysis = StabilizationAnalysis(),
+    val smoothing: Int = 10,
+    val zoom: Int = 0,
+    val unsharp: String? = "5:5:0.8:3:3:0.4",
+    val frameRate: Int = 30
+)
+
+/**
+ * Content addressed cache of vidstabdetect transforms files.
+ *
+ * An entry is keyed by a fingerprint of the input, its length and a SHA-1 of its first and last 64 KiB, and by the
+ * analysis parameters: copied or renamed videos hit, changed ones miss. Analyses write to a temp file of their own,
+ * which is renamed to the entry once FFmpeg succeeded, so present entries are complete and concurrent jobs don't
+ * overwrite each other's transforms. Reading an entry marks it as used; once the entries exceed maxBytes, the least
+ * recently used ones are deleted.
+ *
+ * @param directory where the entries are kept, e.g. in the app cache directory
+ * @param maxBytes size of all entries kept, one entry is kept regardless
+ */
+class TransformsCache(val directory: File, val maxBytes: Long = DEFAULT_MAX_BYTES) {
+
+    /**
+     * Key of the transforms of input analysed with analysis.
+     */
+    @Throws(IOException::class)
+    fun key(input: File, analysis: StabilizationAnalysis): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+        val length = input.length()
+        digest.update("${analysis.shakiness}:${analysis.accuracy}:${analysis.stepSize}:$length".toByteArray())
+
+        RandomAccessFile(input, "r").use { file ->
+            val buffer = ByteArray(FINGERPRINT_BYTES.toInt())
+            val head = Math.min(length, FINGERPRINT_BYTES).toInt()
+            file.readFully(buffer, 0, head)
+            digest.update(buffer, 0, head)
+            if (length > FINGERPRINT_BYTES) {
+                // the tail doesn't overlap the head in short files
+                val tailStart = Math.max(FINGERPRINT_BYTES, length - FINGERPRINT_BYTES)
+                val tail = (length - tailStart).toInt()
+                file.seek(tailStart)
+                file.readFully(buffer, 0, tail)
+                digest.update(buffer, 0, tail)
+            }
+        }
+        return digest.digest().joinToString("") { String.format("%02x", it) }
+    }
+
+    /**
+     * The transforms file of key and marks it as used, null if it wasn't analysed yet.
+     */
+    @Synchronized
+    fun get(key: String): File? {
+        val entry = entry(key)
+        if (!entry.isFile) {
+            return null
+        }
+        entry.setLastModified(System.currentTimeMillis())
+        return entry
+    }
+
+    /**
+     * New file an analysis writes the transforms of key to, passed to [commit] once it succeeded.
+     */
+    fun tempFile(key: String): File {
+        directory.mkdirs()
+        return File.createTempFile("$key.", TEMP_SUFFIX, directory)
+    }
+
+    /**
+     * Makes the transforms written to temp the entry of key and evicts the least recently used entries.
+     *
+     * @return the entry
+     */
+    @Synchronized
+    fun commit(key: String, temp: File): File {
+        val entry = entry(key)
+        if (!temp.renameTo(entry)) {
+            temp.delete()
+            throw IOException("Unable to move $temp to $entry")
+        }
+        entry.setLastModified(System.currentTimeMillis())
+        trim(entry)
+        return entry
+    }
+
+    /**
+     * Deletes all entries, e.g. when the app is asked to free storage.
+     */
+    @Synchronized
+    fun clear() {
+        directory.listFiles()?.forEach { it.delete() }
+    }
+
+    private fun entry(key: String) = File(directory, "$key$SUFFIX")
+
+    private fun trim(keep: File) {
+        val entries = directory.listFiles { file -> file.name.endsWith(SUFFIX) }?.sortedBy { it.lastModified() } ?: return
+        var size = entries.fold(0L) { sum, entry -> sum + entry.length() }
+        for (entry in entries) {
+            if (size <= maxBytes) {
+                break
+            }
+            val length = entry.length()
+            if (entry != keep && entry.delete()) {
+                size -= length
+            }
+        }
+    }
+
+    companion object {
+
+        const val DEFAULT_MAX_BYTES = 32L * 1024 * 1024
+
+        private const val FINGERPRINT_BYTES = 64L * 1024
+
+        private const val SUFFIX = ".trf"
+
+        private const val TEMP_SUFFIX = ".tmp"
+    }
+}
@@ -0,0 +1,186 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaCodecList
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.media.MediaMuxer
+import android.os.Build
+import android.view.Surface
+import com.exozet.transcoder.ffmpeg.log
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * [CodecBackend] on top of MediaExtractor, MediaCodec, MediaMuxer and an EGL backed [CodecOutputSurface].
+ */
+object AndroidCodecBackend : CodecBackend {
+
+    override fun createSource(path: String): MediaSource = AndroidMediaSource(MediaExtractor().apply { setDataSource(path) })
+
+    override fun createFrameOutput(width: Int, height: Int, region: FrameRegion?): FrameOutput {
+        if (region == null) {
+            return CodecOutputSurface(width, height)
+        }
+        return CodecOutputSurface(region.width, region.height).apply { setSourceRegion(region) }
+    }
+
+    override fun createDecoder(format: TrackFormat, output: FrameOutput): VideoCodec {
+        // It's very important to use the format from the extractor because
+        // it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
+        val codec = MediaCodec.createDecoderByType(format.mimeType)
+        codec.configure(format.platformFormat as MediaFormat, output.surface as Surface?, null, 0)
+        codec.start()
+        return AndroidVideoCodec(codec)
+    }
+
+    /**
+     * Instances supported by the decoder MediaCodecList picks for format. Unknown before Marshmallow, so only one
+     * decoder runs there.
+     */
+    override fun maxDecoderInstances(format: TrackFormat): Int {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 1
+        }
+        val mediaFormat = format.platformFormat as? MediaFormat ?: return 1
+        val codecList = MediaCodecList(MediaCodecList.REGULAR_CODECS)
+        val name = codecList.findDecoderForFormat(mediaFormat) ?: return 1
+        val codecInfo = codecList.codecInfos.firstOrNull { it.name == name } ?: return 1
+        return Math.max(1, codecInfo.getCapabilitiesForType(format.mimeType).maxSupportedInstances)
+    }
+
+    override fun encoderColorFormats(mimeType: String): IntArray {
+        val codecInfo = selectEncoder(mimeType) ?: throw IOException("Unable to find an appropriate codec for $mimeType")
+        log { "found ${codecInfo.name} supporting $mimeType" }
+        return codecInfo.getCapabilitiesForType(mimeType).colorFormats
+    }
+
+    override fun createEncoder(mimeType: String, width: Int, height: Int, bitRate: Int, frameRate: Int, colorFormat: Int, iFrameInterval: Int): VideoCodec {
+        val codecInfo = selectEncoder(mimeType) ?: throw IOException("Unable to find an appropriate codec for $mimeType")
+        log { "found codec: ${codecInfo.name}" }
+
+        val codec = MediaCodec.createByCodecName(codecInfo.name)
+        val mediaFormat = MediaFormat.createVideoFormat(mimeType, width, height).apply {
+            setInteger(MediaFormat.KEY_BIT_RATE, bitRate)
+            setInteger(MediaFormat.KEY_FRAME_RATE, frameRate)
+            setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat)
+            setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval)
+        }
+        codec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+        codec.start()
+        return AndroidVideoCodec(codec)
+    }
+
+    override fun createSink(path: String): MediaSink = AndroidMediaSink(MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4))
+
+    /**
+     * First encoder supporting mimeType.
+     */
+    private fun selectEncoder(mimeType: String): MediaCodecInfo? {
+        @Suppress("DEPRECATION")
+        for (i in 0 until MediaCodecList.getCodecCount()) {
+            val codecInfo = MediaCodecList.getCodecInfoAt(i)
+            if (!codecInfo.isEncoder) {
+                continue
+            }
+            if (codecInfo.supportedTypes.any { it.equals(mimeType, ignoreCase = true) }) {
+                return codecInfo
+            }
+        }
+        return null
+    }
+
+    internal fun MediaFormat.toTrackFormat(): TrackFormat = TrackFormat(
+        mimeType = getString(MediaFormat.KEY_MIME) ?: "",
+        width = if (containsKey(MediaFormat.KEY_WIDTH)) getInteger(MediaFormat.KEY_WIDTH) else 0,
+        height = if (containsKey(MediaFormat.KEY_HEIGHT)) getInteger(MediaFormat.KEY_HEIGHT) else 0,
+        frameRate = if (containsKey(MediaFormat.KEY_FRAME_RATE)) getInteger(MediaFormat.KEY_FRAME_RATE) else 0,
+        durationUs = if (containsKey(MediaFormat.KEY_DURATION)) getLong(MediaFormat.KEY_DURATION) else 0L,
+        platformFormat = this
+    )
+
+    private class AndroidMediaSource(private val extractor: MediaExtractor) : MediaSource {
+
+        override val trackCount: Int
+            get() = extractor.trackCount
+
+        override val sampleTrackIndex: Int
+            get() = extractor.sampleTrackIndex
+
+        override val sampleTime: Long
+            get() = extractor.sampleTime
+
+        override fun getTrackFormat(index: Int): TrackFormat = extractor.getTrackFormat(index).toTrackFormat()
+
+        override fun selectTrack(index: Int) = extractor.selectTrack(index)
+
+        override fun readSampleData(buffer: ByteBuffer, offset: Int): Int = extractor.readSampleData(buffer, offset)
+
+        override fun advance(): Boolean = extractor.advance()
+
+        override fun seekTo(timeUs: Long, mode: Int) = extractor.seekTo(timeUs, mode)
+
+        override fun release() = extractor.release()
+    }
+
+    private class AndroidVideoCodec(private val codec: MediaCodec) : VideoCodec {
+
+        private val bufferInfo = MediaCodec.BufferInfo()
+
+        override val outputFormat: TrackFormat
+            get() = codec.outputFormat.toTrackFormat()
+
+        override fun dequeueInputBuffer(timeoutUs: Long): Int = codec.dequeueInputBuffer(timeoutUs)
+
+        override fun getInputBuffer(index: Int): ByteBuffer = codec.getInputBuffer(index)!!
+
+        override fun queueInputBuffer(index: Int, offset: Int, size: Int, presentationTimeUs: Long, flags: Int) =
+            codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags)
+
+        override fun dequeueOutputBuffer(info: SampleInfo, timeoutUs: Long): Int {
+            val status = codec.dequeueOutputBuffer(bufferInfo, timeoutUs)
+            if (status >= 0) {
+                info.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags)
+            }
+            return status
+        }
+
+        override fun getOutputBuffer(index: Int): ByteBuffer? = codec.getOutputBuffer(index)
+
+        override fun releaseOutputBuffer(index: Int, render: Boolean) = codec.releaseOutputBuffer(index, render)
+
+        override fun flush() = codec.flush()
+
+        override fun reconfigure(format: TrackFormat, output: FrameOutput) {
+            codec.configure(format.platformFormat as MediaFormat, output.surface as Surface?, null, 0)
+            codec.start()
+        }
+
+        override fun stop() = codec.stop()
+
+        override fun release() = codec.release()
+    }
+
+    private class AndroidMediaSink(private val muxer: MediaMuxer) : MediaSink {
+
+        private val bufferInfo = MediaCodec.BufferInfo()
+
+        override fun addTrack(format: TrackFormat): Int {
+            val mediaFormat = format.platformFormat as MediaFormat
+            mediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 3000 * 3000)
+            return muxer.addTrack(mediaFormat)
+        }
+
+        override fun start() = muxer.start()
+
+        override fun writeSampleData(trackIndex: Int, data: ByteBuffer, info: SampleInfo) {
+            bufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags)
+            muxer.writeSampleData(trackIndex, data, bufferInfo)
+        }
+
+        override fun stop() = muxer.stop()
+
+        override fun release() = muxer.release()
+    }
+}
@@ -0,0 +1,292 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+/**
+ * Creates the demuxers, codecs, muxers and decoder output surfaces used by the MediaCodec engine.
+ *
+ * [AndroidCodecBackend] uses MediaExtractor, MediaCodec, MediaMuxer and EGL. [SoftwareCodecBackend] is a deterministic
+ * pure JVM stand-in, so the pipelines can be load tested without a device.
+ *
+ * The interfaces mirror the synchronous MediaCodec API, status codes and buffer flags are the ones of [CodecConstants].
+ */
+interface CodecBackend {
+
+    /**
+     * Opens a demuxer for the file at path.
+     */
+    @Throws(IOException::class)
+    fun createSource(path: String): MediaSource
+
+    /**
+     * Creates a surface of the given size a decoder can render into.
+     *
+     * @param region if set, frames of width x height are drawn and read back at the size and from the source region
+     * of region
+     */
+    fun createFrameOutput(width: Int, height: Int, region: FrameRegion? = null): FrameOutput
+
+    /**
+     * Creates a started decoder for format rendering into output.
+     */
+    @Throws(IOException::class)
+    fun createDecoder(format: TrackFormat, output: FrameOutput): VideoCodec
+
+    /**
+     * Amount of decoders for format that can run at the same time, at least 1.
+     */
+    fun maxDecoderInstances(format: TrackFormat): Int
+
+    /**
+     * Color formats accepted as raw input by the encoder for mimeType, in order of preference of the codec.
+     */
+    @Throws(IOException::class)
+    fun encoderColorFormats(mimeType: String): IntArray
+
+    /**
+     * Creates a started encoder.
+     */
+    @Throws(IOException::class)
+    fun createEncoder(mimeType: String, width: Int, height: Int, bitRate: Int, frameRate: Int, colorFormat: Int, iFrameInterval: Int): VideoCodec
+
+    /**
+     * Creates a MPEG-4 muxer writing to the file at path.
+     */
+    @Throws(IOException::class)
+    fun createSink(path: String): MediaSink
+}
+
+/**
+ * Description of a single track.
+ *
+ * @param platformFormat backend specific format, e.g. the MediaFormat with codec specific data
+ */
+data class TrackFormat(
+    val mimeType: String,
+    val width: Int = 0,
+    val height: Int = 0,
+    val frameRate: Int = 0,
+    val durationUs: Long = 0L,
+    val platformFormat: Any? = null
+)
+
+/**
+ * Metadata of a buffer, the counterpart of MediaCodec.BufferInfo.
+ */
+class SampleInfo {
+
+    var offset: Int = 0
+
+    var size: Int = 0
+
+    var presentationTimeUs: Long = 0L
+
+    var flags: Int = 0
+
+    fun set(offset: Int, size: Int, presentationTimeUs: Long, flags: Int) {
+        this.offset = offset
+        this.size = size
+        this.presentationTimeUs = presentationTimeUs
+        this.flags = flags
+    }
+}
+
+/**
+ * Demuxer, the counterpart of MediaExtractor.
+ */
+interface MediaSource {
+
+    val trackCount: Int
+
+    /**
+     * Track index of the current sample, -1 if there are no more samples.
+     */
+    val sampleTrackIndex: Int
+
+    /**
+     * Presentation time of the current sample, -1 if there are no more samples.
+     */
+    val sampleTime: Long
+
+    fun getTrackFormat(index: Int): TrackFormat
+
+    fun selectTrack(index: Int)
+
+    /**
+     * Reads the current sample into buffer at offset.
+     *
+     * @return sample size, -1 if there are no more samples
+     */
+    fun readSampleData(buffer: ByteBuffer, offset: Int): Int
+
+    /**
+     * Moves to the next sample.
+     *
+     * @return false if there are no more samples
+     */
+    fun advance(): Boolean
+
+    /**
+     * Moves to a sync sample near timeUs.
+     *
+     * @param mode [CodecConstants.SEEK_TO_PREVIOUS_SYNC], [CodecConstants.SEEK_TO_NEXT_SYNC] or
+     * [CodecConstants.SEEK_TO_CLOSEST_SYNC]
+     */
+    fun seekTo(timeUs: Long, mode: Int)
+
+    fun release()
+}
+
+/**
+ * Decoder or encoder, the counterpart of MediaCodec in synchronous mode.
+ */
+interface VideoCodec {
+
+    val outputFormat: TrackFormat
+
+    /**
+     * @return index of a free input buffer or [CodecConstants.INFO_TRY_AGAIN_LATER]
+     */
+    fun dequeueInputBuffer(timeoutUs: Long): Int
+
+    fun getInputBuffer(index: Int): ByteBuffer
+
+    fun queueInputBuffer(index: Int, offset: Int, size: Int, presentationTimeUs: Long, flags: Int)
+
+    /**
+     * @return index of an output buffer or one of the negative INFO_ status codes of [CodecConstants]
+     */
+    fun dequeueOutputBuffer(info: SampleInfo, timeoutUs: Long): Int
+
+    fun getOutputBuffer(index: Int): ByteBuffer?
+
+    /**
+     * @param render if set, the buffer is rendered to the output surface of a decoder
+     */
+    fun releaseOutputBuffer(index: Int, render: Boolean)
+
+    /**
+     * Drops all queued input and pending output, e.g. after the source moved to another sync sample.
+     * Afterwards all input buffers are free again.
+     */
+    fun flush()
+
+    /**
+     * Configures a stopped decoder again for format and starts it, rendering into output. Reuses the codec instance
+     * for another video of the same type and size instead of creating a new one.
+     */
+    fun reconfigure(format: TrackFormat, output: FrameOutput)
+
+    fun stop()
+
+    fun release()
+}
+
+/**
+ * Muxer, the counterpart of MediaMuxer.
+ */
+interface MediaSink {
+
+    fun addTrack(format: TrackFormat): Int
+
+    fun start()
+
+    fun writeSampleData(trackIndex: Int, data: ByteBuffer, info: SampleInfo)
+
+    fun stop()
+
+    fun release()
+}
+
+/**
+ * Surface a decoder renders into, frames can be drawn and saved from there.
+ */
+interface FrameOutput {
+
+    /**
+     * Backend specific surface passed to the decoder, e.g. android.view.Surface.
+     */
+    val surface: Any?
+
+    /**
+     * Blocks until the next rendered frame arrived and latches it.
+     */
+    fun awaitNewImage()
+
+    /**
+     * Draws the latched frame.
+     *
+     * @param invert if set, render the image with Y inverted (0,0 in top left)
+     */
+    fun drawImage(invert: Boolean)
+
+    /**
+     * Saves the drawn frame to file.
+     */
+    @Throws(IOException::class)
+    fun saveFrame(filename: String, photoQuality: Int)
+
+    /**
+     * Writes the drawn frame as JPEG to out, e.g. to append it to a frame store.
+     */
+    @Throws(IOException::class)
+    fun compressFrame(out: OutputStream, photoQuality: Int)
+
+    /**
+     * Reads the drawn frame as RGBA bytes into target, which needs room for width * height * 4 bytes, or the size of
+     * the region the output was created with.
+     */
+    fun readPixels(target: ByteBuffer)
+
+    /**
+     * Writes pixels as returned by [readPixels] as JPEG to out, e.g. to compress off the thread owning the surface.
+     */
+    @Throws(IOException::class)
+    fun compressPixels(pixels: ByteBuffer, out: OutputStream, photoQuality: Int)
+
+    /**
+     * Binds the output to the calling thread, needed before an output created on another thread is drawn.
+     */
+    fun makeCurrent()
+
+    /**
+     * Unbinds the output from the calling thread, so another thread can make it current.
+     */
+    fun releaseCurrent()
+
+    fun release()
+}
+
+/**
+ * MediaCodec status codes, buffer flags and color formats, values match android.media.MediaCodec and MediaCodecInfo.
+ */
+object CodecConstants {
+
+    const val INFO_TRY_AGAIN_LATER = -1
+
+    const val INFO_OUTPUT_FORMAT_CHANGED = -2
+
+    const val INFO_OUTPUT_BUFFERS_CHANGED = -3
+
+    const val BUFFER_FLAG_KEY_FRAME = 1
+
+    const val BUFFER_FLAG_CODEC_CONFIG = 2
+
+    const val BUFFER_FLAG_END_OF_STREAM = 4
+
+    const val SEEK_TO_PREVIOUS_SYNC = 0
+
+    const val SEEK_TO_NEXT_SYNC = 1
+
+    const val SEEK_TO_CLOSEST_SYNC = 2
+
+    const val COLOR_FormatYUV420Planar = 19
+
+    const val COLOR_FormatYUV420PackedPlanar = 20
+
+    const val COLOR_FormatYUV420SemiPlanar = 21
+
+    const val COLOR_FormatYUV420PackedSemiPlanar = 39
+}
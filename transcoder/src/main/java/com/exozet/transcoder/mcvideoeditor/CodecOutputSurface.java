@@ -11,8 +11,10 @@ import android.view.Surface;
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static android.content.ContentValues.TAG;
 import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
@@ -29,7 +31,7 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
      * can potentially drop frames.
      */
      class CodecOutputSurface
-            implements SurfaceTexture.OnFrameAvailableListener {
+            implements SurfaceTexture.OnFrameAvailableListener, FrameOutput {
         private STextureRender mTextureRender;
         private SurfaceTexture mSurfaceTexture;
         private Surface mSurface;
@@ -45,6 +47,9 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
 
         private ByteBuffer mPixelBuf;                       // used by saveFrame()
 
+        // Bitmaps for compressPixels(), which may run on several writer threads at once
+        private final ConcurrentLinkedQueue<Bitmap> mBitmaps = new ConcurrentLinkedQueue<>();
+
 
         private HandlerThread mHandlerThread;
         private Handler mHandler;
@@ -66,6 +71,24 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
             setup();
         }
 
+        /**
+         * Draws only the source region of region into this surface, which has to be of the size of region.  The
+         * decoded frames are scaled by GL, so read back, bitmaps and JPEGs are all of the reduced size.
+         */
+        public void setSourceRegion(FrameRegion region) {
+            if (region.getWidth() != mWidth || region.getHeight() != mHeight) {
+                throw new IllegalArgumentException("Region of " + region.getWidth() + "x" + region.getHeight()
+                        + " for a surface of " + mWidth + "x" + mHeight);
+            }
+            final float sourceWidth = region.getSourceWidth();
+            final float sourceHeight = region.getSourceHeight();
+            mTextureRender.setSourceRect(
+                    region.getSourceLeft() / sourceWidth,
+                    1f - (region.getSourceTop() + region.getSourceRegionHeight()) / sourceHeight,
+                    (region.getSourceLeft() + region.getSourceRegionWidth()) / sourceWidth,
+                    1f - region.getSourceTop() / sourceHeight);
+        }
+
         /**
          * Creates interconnected instances of TextureRender, SurfaceTexture, and Surface.
          */
@@ -162,6 +185,7 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
         /**
          * Discard all resources held by this class, notably the EGL context.
          */
+        @Override
         public void release() {
             if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
                 EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
@@ -179,23 +203,45 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
             //  W BufferQueue: [unnamed-3997-2] cancelBuffer: BufferQueue has been abandoned!
             //mSurfaceTexture.release();
 
+            // pooled surfaces are released long after their job, don't leave the callback thread behind
+            mHandlerThread.quitSafely();
+
             mTextureRender = null;
             mSurface = null;
             mSurfaceTexture = null;
+            mHandlerThread = null;
+            mHandler = null;
+
+            Bitmap bitmap;
+            while ((bitmap = mBitmaps.poll()) != null) {
+                bitmap.recycle();
+            }
         }
 
         /**
          * Makes our EGL context and surface current.
          */
+        @Override
         public void makeCurrent() {
             if (!EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext)) {
                 throw new RuntimeException("eglMakeCurrent failed");
             }
         }
 
+        /**
+         * Detaches our EGL context from the calling thread, so another thread can make it current.
+         */
+        @Override
+        public void releaseCurrent() {
+            if (!EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT)) {
+                throw new RuntimeException("eglMakeCurrent failed");
+            }
+        }
+
         /**
          * Returns the Surface.
          */
+        @Override
         public Surface getSurface() {
             return mSurface;
         }
@@ -205,6 +251,7 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
          * the CodecOutputSurface object.  (More specifically, it must be called on the thread
          * with the EGLContext that contains the GL texture object used by SurfaceTexture.)
          */
+        @Override
         public void awaitNewImage() {
             final int TIMEOUT_MS = 3000;
 
@@ -236,6 +283,7 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
          *
          * @param invert if set, render the image with Y inverted (0,0 in top left)
          */
+        @Override
         public void drawImage(boolean invert) {
             mTextureRender.drawFrame(mSurfaceTexture, invert);
         }
@@ -256,6 +304,7 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
         /**
          * Saves the current frame to disk as a JPEG image.
          */
+        @Override
         public void saveFrame(String filename, int photoQuality) throws IOException {
             // glReadPixels gives us a ByteBuffer filled with what is essentially big-endian RGBA
             // data (i.e. a byte of red, followed by a byte of green...).  To use the Bitmap
@@ -296,17 +345,55 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
             BufferedOutputStream bos = null;
             try {
                 bos = new BufferedOutputStream(new FileOutputStream(filename));
-                Bitmap bmp = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-                mPixelBuf.rewind();
-                bmp.copyPixelsFromBuffer(mPixelBuf);
-                bmp.compress(Bitmap.CompressFormat.JPEG, photoQuality, bos);
-                bmp.recycle();
+                compressPixels(mPixelBuf, bos, photoQuality);
             } finally {
                 if (bos != null) bos.close();
             }
                 log(TAG, "Saved " + mWidth + "x" + mHeight + " frame as '" + filename + "'");
         }
 
+        /**
+         * Writes the current frame as JPEG to out, see {@link #saveFrame(String, int)}.
+         */
+        @Override
+        public void compressFrame(OutputStream out, int photoQuality) {
+            mPixelBuf.rewind();
+            GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    mPixelBuf);
+            compressPixels(mPixelBuf, out, photoQuality);
+        }
+
+        /**
+         * Writes RGBA pixels as returned by {@link #readPixels(ByteBuffer)} as JPEG to out.  Doesn't touch GL, so it
+         * can run on any thread, also on several at once.  Bitmaps are kept for the next frames until
+         * {@link #release()}, so there is one per concurrent caller instead of one per frame.
+         */
+        @Override
+        public void compressPixels(ByteBuffer pixels, OutputStream out, int photoQuality) {
+            Bitmap bmp = mBitmaps.poll();
+            if (bmp == null) {
+                bmp = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            }
+            try {
+                pixels.rewind();
+                bmp.copyPixelsFromBuffer(pixels);
+                bmp.compress(Bitmap.CompressFormat.JPEG, photoQuality, out);
+            } finally {
+                mBitmaps.offer(bmp);
+            }
+        }
+
+        /**
+         * Reads the current frame as RGBA into target, see {@link #saveFrame(String, int)} for the layout.
+         */
+        @Override
+        public void readPixels(ByteBuffer target) {
+            target.clear();
+            GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    target);
+            target.rewind();
+        }
+
         /**
          * Checks for EGL errors.
          */
@@ -0,0 +1,50 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import java.util.concurrent.Semaphore
+
+/**
+ * Bounds the decoders of a batch running at the same time per mime type to the instances the codec supports, see
+ * [CodecBackend.maxDecoderInstances]. Starting more makes the codec fail to allocate, or take resources from other
+ * apps.
+ *
+ * [createDecoder] blocks until a decoder of the mime type may run, with the format the job read anyway, and the
+ * permit is returned when the decoder is released. Decoders kept idle by a [PooledCodecBackend] below are not
+ * counted here, the pool gives them up before exceeding the instances itself.
+ */
+internal class DecoderLimits(private val backend: CodecBackend) : CodecBackend by backend {
+
+    private val permits = HashMap<String, Semaphore>()
+
+    override fun createDecoder(format: TrackFormat, output: FrameOutput): VideoCodec {
+        val permit = synchronized(permits) {
+            permits.getOrPut(format.mimeType) { Semaphore(backend.maxDecoderInstances(format), true) }
+        }
+        permit.acquire()
+        try {
+            return LimitedDecoder(backend.createDecoder(format, output), permit)
+        } catch (e: Throwable) {
+            permit.release()
+            throw e
+        }
+    }
+
+    /**
+     * Returns its permit once decoder was released.
+     */
+    private class LimitedDecoder(private val decoder: VideoCodec, private val permit: Semaphore) : VideoCodec by decoder {
+
+        private var released = false
+
+        override fun release() {
+            if (released) {
+                return
+            }
+            released = true
+            try {
+                decoder.release()
+            } finally {
+                permit.release()
+            }
+        }
+    }
+}
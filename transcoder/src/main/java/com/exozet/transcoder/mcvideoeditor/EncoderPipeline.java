@@ -0,0 +1,180 @@
+package com.exozet.transcoder.mcvideoeditor;
+
+import com.exozet.transcoder.ffmpeg.Stage;
+import com.exozet.transcoder.ffmpeg.TranscodeMetrics;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Feeds raw YUV frames into an encoder and writes its output to a sink.
+ * <p>
+ * Frames are queued into the next free input buffer.  While the encoder has no free input buffer its output is
+ * drained, and after every frame whatever the encoder has finished meanwhile is written without waiting, so the
+ * encoder never stalls on a full output queue.  {@link #finish(long)} signals end of stream and drains until the
+ * encoder returned its end of stream buffer, so the trailing frames end up in the file.  That wait is bounded by
+ * {@link #EOS_TIMEOUT_MS} and stops on cancellation, an encoder which never returns end of stream fails the job
+ * instead of blocking it and everything waiting for its release.
+ * <p>
+ * Time spent queueing frames is recorded as {@link Stage#ENCODE}, writing samples as {@link Stage#MUX}.
+ * <p>
+ * Only depends on the {@link CodecBackend} interfaces, so it runs with {@link SoftwareCodecBackend} on a plain JVM.
+ */
+final class EncoderPipeline {
+
+    private static final long TIMEOUT_USEC = 10000;
+
+    /**
+     * Longest wait for the end of stream buffer after the last frame has been queued.
+     */
+    static final long EOS_TIMEOUT_MS = 10000;
+
+    private final VideoCodec encoder;
+    private final MediaSink sink;
+    private final SampleInfo sampleInfo = new SampleInfo();
+    private final TranscodeMetrics metrics;
+    private final AtomicBoolean cancel;
+    private final long eosTimeoutMs;
+
+    private int trackIndex;
+    private boolean sinkStarted = false;
+    private int writtenSamples = 0;
+
+    EncoderPipeline(VideoCodec encoder, MediaSink sink) {
+        this(encoder, sink, new TranscodeMetrics());
+    }
+
+    EncoderPipeline(VideoCodec encoder, MediaSink sink, TranscodeMetrics metrics) {
+        this(encoder, sink, metrics, new AtomicBoolean());
+    }
+
+    /**
+     * @param cancel cancellation flag of the job, stops waiting for end of stream once set
+     */
+    EncoderPipeline(VideoCodec encoder, MediaSink sink, TranscodeMetrics metrics, AtomicBoolean cancel) {
+        this(encoder, sink, metrics, cancel, EOS_TIMEOUT_MS);
+    }
+
+    EncoderPipeline(VideoCodec encoder, MediaSink sink, TranscodeMetrics metrics, AtomicBoolean cancel, long eosTimeoutMs) {
+        this.encoder = encoder;
+        this.sink = sink;
+        this.metrics = metrics;
+        this.cancel = cancel;
+        this.eosTimeoutMs = eosTimeoutMs;
+    }
+
+    /**
+     * Queues a frame and writes all available encoder output.
+     */
+    void queueFrame(byte[] frame, long ptsUsec) {
+        final long start = metrics.start();
+        queueInput(frame, ptsUsec, 0);
+        metrics.record(Stage.ENCODE, start);
+        drain(false);
+    }
+
+    /**
+     * Signals end of stream and writes the remaining encoder output.
+     *
+     * @throws IllegalStateException if the encoder didn't return end of stream within the timeout
+     * @throws CancellationException if cancelled while waiting for end of stream
+     */
+    void finish(long ptsUsec) {
+        queueInput(null, ptsUsec, CodecConstants.BUFFER_FLAG_END_OF_STREAM);
+        drain(true);
+    }
+
+    /**
+     * Amount of encoded samples written to the sink so far.
+     */
+    int getWrittenSamples() {
+        return writtenSamples;
+    }
+
+    /**
+     * Stops and releases encoder and sink.
+     */
+    void release() {
+        encoder.stop();
+        encoder.release();
+        if (sinkStarted) {
+            sink.stop();
+            sinkStarted = false;
+        }
+        sink.release();
+    }
+
+    /**
+     * Queues a frame, or an empty end of stream buffer if frame is null.
+     */
+    private void queueInput(byte[] frame, long ptsUsec, int flags) {
+        int inputBufIndex;
+        while ((inputBufIndex = encoder.dequeueInputBuffer(TIMEOUT_USEC)) < 0) {
+            drain(false);
+        }
+
+        final ByteBuffer inputBuffer = encoder.getInputBuffer(inputBufIndex);
+        inputBuffer.clear();
+        int size = 0;
+        if (frame != null) {
+            inputBuffer.put(frame);
+            size = frame.length;
+        }
+        encoder.queueInputBuffer(inputBufIndex, 0, size, ptsUsec, flags);
+    }
+
+    /**
+     * Writes all available encoder output to the sink.
+     *
+     * @param endOfStream if set, waits until the encoder emitted its end of stream buffer, otherwise
+     *                    returns as soon as no more output is available
+     */
+    private void drain(boolean endOfStream) {
+        final long deadline = endOfStream ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(eosTimeoutMs) : 0;
+        while (true) {
+            int encoderStatus = encoder.dequeueOutputBuffer(sampleInfo, endOfStream ? TIMEOUT_USEC : 0);
+            if (encoderStatus == CodecConstants.INFO_TRY_AGAIN_LATER) {
+                // no output available yet
+                if (!endOfStream) {
+                    return;
+                }
+                if (cancel.get()) {
+                    throw new CancellationException("Encoding has been cancelled");
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    throw new IllegalStateException("Encoder returned no end of stream within " + eosTimeoutMs + " ms");
+                }
+            } else if (encoderStatus == CodecConstants.INFO_OUTPUT_FORMAT_CHANGED) {
+                // happens exactly once, before the first encoded frame
+                trackIndex = sink.addTrack(encoder.getOutputFormat());
+                sink.start();
+                sinkStarted = true;
+            } else if (encoderStatus >= 0) {
+                if ((sampleInfo.getFlags() & CodecConstants.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // codec config has been passed to the sink with the output format already
+                    sampleInfo.setSize(0);
+                }
+
+                if (sampleInfo.getSize() != 0 && sinkStarted) {
+                    ByteBuffer encodedData = encoder.getOutputBuffer(encoderStatus);
+                    if (encodedData != null) {
+                        encodedData.position(sampleInfo.getOffset());
+                        encodedData.limit(sampleInfo.getOffset() + sampleInfo.getSize());
+                        final long start = metrics.start();
+                        sink.writeSampleData(trackIndex, encodedData, sampleInfo);
+                        metrics.record(Stage.MUX, start);
+                        metrics.addBytesWritten(sampleInfo.getSize());
+                        writtenSamples++;
+                    }
+                }
+                encoder.releaseOutputBuffer(encoderStatus, false);
+
+                if ((sampleInfo.getFlags() & CodecConstants.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import android.net.Uri
+import com.exozet.transcoder.ffmpeg.FrameStore
+import com.exozet.transcoder.ffmpeg.FrameStoreWriter
+import com.exozet.transcoder.ffmpeg.Stage
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * One frame-%03d.jpg file per frame, compressed and written by a [FrameWriterPool]. Frames of several decoders may be
+ * written at the same time.
+ *
+ * @param outputDir existing directory the frames are written to, deleted if extraction fails
+ * @param writerThreads threads compressing and writing frames while the decoder goes on, 0 writes on the decoding
+ * thread. Every thread holds a frame in flight.
+ */
+class DirectoryFrameSink @JvmOverloads constructor(
+    private val outputDir: String,
+    private val photoQuality: Int = 100,
+    writerThreads: Int = MediaCodecExtractImages.WRITER_THREADS
+) : FrameSink {
+
+    private val writers = FrameWriterPool(writerThreads)
+
+    private val buffers = ThreadLocal<FrameBuffer>()
+
+    override val framesInFlight = writerThreads + 1
+
+    override val concurrent: Boolean
+        get() = true
+
+    override fun start(width: Int, height: Int) = Unit
+
+    override fun onFrame(frame: ExtractedFrame) {
+        val outputFile = File(outputDir, String.format("frame-%03d.jpg", frame.index))
+        writers.submit {
+            var uri: Uri? = null
+            try {
+                val buffer = FrameBuffer.of(buffers)
+                frame.compress(buffer, photoQuality)
+                frame.metrics.time(Stage.WRITE) { FileOutputStream(outputFile).use { buffer.writeTo(it) } }
+                frame.metrics.addBytesWritten(buffer.size().toLong())
+                uri = Uri.parse(outputFile.absolutePath)
+            } finally {
+                frame.release(uri)
+            }
+        }
+    }
+
+    override fun complete() {
+        try {
+            writers.finish()
+        } finally {
+            writers.release()
+        }
+    }
+
+    override fun discard() {
+        writers.release()
+        MediaCodecTranscoder.deleteFolder(outputDir)
+    }
+}
+
+/**
+ * All frames as JPEGs appended to a single [FrameStore] file. Frames are compressed by a [FrameWriterPool] in
+ * parallel, but appended in the order of their index, so only a single decoder may deliver them.
+ *
+ * @param file file the frames are written to, replaced if it exists and deleted if extraction fails
+ */
+class FrameStoreSink @JvmOverloads constructor(
+    private val file: File,
+    private val photoQuality: Int = 100,
+    writerThreads: Int = MediaCodecExtractImages.WRITER_THREADS
+) : FrameSink {
+
+    private val writers = FrameWriterPool(writerThreads)
+
+    private val buffers = ThreadLocal<FrameBuffer>()
+
+    private val uri = Uri.parse(file.absolutePath)
+
+    private val appendLock = Object()
+
+    private var nextAppend = 0
+
+    private var writer: FrameStoreWriter? = null
+
+    override val framesInFlight = writerThreads + 1
+
+    override fun start(width: Int, height: Int) {
+        writer = FrameStoreWriter(file)
+    }
+
+    override fun onFrame(frame: ExtractedFrame) {
+        val storeWriter = writer ?: throw IllegalStateException("Sink not started")
+        val frameIndex = frame.index
+        writers.submit {
+            var appended = false
+            try {
+                val buffer = FrameBuffer.of(buffers)
+                var compressed = false
+                try {
+                    frame.compress(buffer, photoQuality)
+                    compressed = true
+                } finally {
+                    // jobs start in submission order, so the frame before is always compressed or being compressed;
+                    // a failed frame still passes its turn on
+                    synchronized(appendLock) {
+                        while (nextAppend != frameIndex) {
+                            appendLock.wait()
+                        }
+                        try {
+                            if (compressed) {
+                                frame.metrics.time(Stage.WRITE) { buffer.appendTo(storeWriter) }
+                                frame.metrics.addBytesWritten(buffer.size().toLong())
+                                appended = true
+                            }
+                        } finally {
+                            nextAppend++
+                            appendLock.notifyAll()
+                        }
+                    }
+                }
+            } finally {
+                frame.release(if (appended) uri else null)
+            }
+        }
+    }
+
+    override fun complete() {
+        try {
+            writers.finish()
+        } finally {
+            writers.release()
+            writer?.close()
+        }
+    }
+
+    override fun discard() {
+        writers.release()
+        writer?.close()
+        file.delete()
+    }
+}
+
+/**
+ * All frames losslessly as raw I420 appended to a single Y4M file on the decoding thread, see
+ * [MediaCodecTranscoder.extractFramesToRaw].
+ *
+ * @param file file the frames are written to, replaced if it exists and deleted if extraction fails
+ * @param frameRate frame rate written to the header
+ */
+class Y4mFrameSink(private val file: File, private val frameRate: Int) : FrameSink {
+
+    private val uri = Uri.parse(file.absolutePath)
+
+    private var writer: Y4mWriter? = null
+
+    override val pixelFormat: FramePixelFormat
+        get() = FramePixelFormat.I420
+
+    override fun start(width: Int, height: Int) {
+        writer = Y4mWriter(file.absolutePath, width, height, frameRate)
+    }
+
+    override fun onFrame(frame: ExtractedFrame) {
+        val y4mWriter = writer ?: throw IllegalStateException("Sink not started")
+        var uri: Uri? = null
+        try {
+            frame.metrics.time(Stage.WRITE) { y4mWriter.writeFrame(frame.pixels) }
+            frame.metrics.addBytesWritten(y4mWriter.frameSize.toLong())
+            uri = this.uri
+        } finally {
+            frame.release(uri)
+        }
+    }
+
+    override fun complete() {
+        writer?.close()
+    }
+
+    override fun discard() {
+        writer?.close()
+        file.delete()
+    }
+}
+
+/**
+ * Reusable JPEG buffer, appended without copying it first.
+ */
+internal class FrameBuffer : ByteArrayOutputStream(512 * 1024) {
+
+    @Throws(IOException::class)
+    fun appendTo(writer: FrameStoreWriter) = writer.append(buf, 0, count)
+
+    companion object {
+
+        /**
+         * The emptied buffer of the calling writer thread.
+         */
+        fun of(buffers: ThreadLocal<FrameBuffer>): FrameBuffer {
+            val buffer = buffers.get() ?: FrameBuffer().also { buffers.set(it) }
+            buffer.reset()
+            return buffer
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.exozet.transcoder.mcvideoeditor
+
+/**
+ * Size and source region of extracted frames, e.g. to extract thumbnails without reading back, compressing and storing
+ * full resolution frames.
+ *
+ * The crop is applied first, the result is scaled to width x height according to [scale]. A size of 0 keeps the width
+ * or height of the crop; if only one of them is given, the other one follows the aspect ratio of the crop. Sizes
+ * derived from the aspect ratio are rounded to even numbers, so the frames can be encoded again.
+ *
+ * Has no Android dependencies, so it can be measured on a plain JVM.
+ *
+ * @param width target width in pixels, 0 to derive it
+ * @param height target height in pixels, 0 to derive it
+ * @param scale how the crop is fit into width x height if both are given
+ * @param crop region of the source frame in source pixels, null for the whole frame
+ */
+data class FrameGeometry(
+    val width: Int = 0,
+    val height: Int = 0,
+    val scale: ScaleMode = ScaleMode.FIT,
+    val crop: Crop? = null
+) {
+
+    enum class ScaleMode {
+
+        /**
+         * The whole crop fits into width x height, one side of the frame may be smaller.
+         */
+        FIT,
+
+        /**
+         * The frame is exactly width x height, the crop is cut at the center to the aspect ratio of the frame.
+         */
+        FILL,
+
+        /**
+         * The frame is exactly width x height, the crop is scaled without keeping its aspect ratio.
+         */
+        STRETCH
+    }
+
+    /**
+     * Rectangle in source pixels, the top left pixel is 0, 0.
+     */
+    data class Crop(val left: Int, val top: Int, val width: Int, val height: Int)
+
+    init {
+        if (width < 0 || height < 0) {
+            throw IllegalArgumentException("Negative size ${width}x$height")
+        }
+    }
+
+    /**
+     * Output size and source region for frames of the given size.
+     *
+     * @throws IllegalArgumentException if the crop lies outside of the frame
+     */
+    fun resolve(sourceWidth: Int, sourceHeight: Int): FrameRegion {
+        var left = 0
+        var top = 0
+        var right = sourceWidth
+        var bottom = sourceHeight
+        if (crop != null) {
+            left = Math.max(0, crop.left)
+            top = Math.max(0, crop.top)
+            right = Math.min(sourceWidth, crop.left + crop.width)
+            bottom = Math.min(sourceHeight, crop.top + crop.height)
+            if (right <= left || bottom <= top) {
+                throw IllegalArgumentException("Crop $crop outside of ${sourceWidth}x$sourceHeight frames")
+            }
+        }
+        val cropWidth = (right - left).toFloat()
+        val cropHeight = (bottom - top).toFloat()
+
+        if (width == 0 && height == 0) {
+            return FrameRegion(right - left, bottom - top, sourceWidth, sourceHeight, left.toFloat(), top.toFloat(), cropWidth, cropHeight)
+        }
+        if (width == 0 || height == 0) {
+            val outputWidth = if (width == 0) even(height * cropWidth / cropHeight) else width
+            val outputHeight = if (height == 0) even(width * cropHeight / cropWidth) else height
+            return FrameRegion(outputWidth, outputHeight, sourceWidth, sourceHeight, left.toFloat(), top.toFloat(), cropWidth, cropHeight)
+        }
+        return when (scale) {
+            ScaleMode.FIT -> {
+                val factor = Math.min(width / cropWidth, height / cropHeight)
+                val outputWidth = Math.min(width, even(cropWidth * factor))
+                val outputHeight = Math.min(height, even(cropHeight * factor))
+                FrameRegion(outputWidth, outputHeight, sourceWidth, sourceHeight, left.toFloat(), top.toFloat(), cropWidth, cropHeight)
+            }
+            ScaleMode.FILL -> {
+                val factor = Math.max(width / cropWidth, height / cropHeight)
+                val usedWidth = width / factor
+                val usedHeight = height / factor
+                FrameRegion(
+                    width, height, sourceWidth, sourceHeight,
+                    left + (cropWidth - usedWidth) / 2, top + (cropHeight - usedHeight) / 2, usedWidth, usedHeight
+                )
+            }
+            ScaleMode.STRETCH ->
+                FrameRegion(width, height, sourceWidth, sourceHeight, left.toFloat(), top.toFloat(), cropWidth, cropHeight)
+        }
+    }
+
+    private fun even(size: Float): Int = Math.max(2, Math.round(size / 2) * 2)
+}
+
+/**
+ * Resolved [FrameGeometry]: frames of width x height show the given rectangle of sourceWidth x sourceHeight frames.
+ * The rectangle is in source pixels with the top left pixel at 0, 0, it may start or end within a pixel.
+ */
+data class FrameRegion(
+    val width: Int,
+    val height: Int,
+    val sourceWidth: Int,
+    val sourceHeight: Int,
+    val sourceLeft: Float,
+    val sourceTop: Float,
+    val sourceRegionWidth: Float,
+    val sourceRegionHeight: Float
+) {
+
+    /**
+     * true if frames are the unchanged source frames.
+     */
+    val isIdentity: Boolean
+        get() = width == sourceWidth && height == sourceHeight && sourceLeft == 0f && sourceTop == 0f &&
+                sourceRegionWidth == sourceWidth.toFloat() && sourceRegionHeight == sourceHeight.toFloat()
+}
@@ -0,0 +1,131 @@
+package com.exozet.transcoder.mcvideoeditor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Scales a region of RGBA frames by area averaging: every target pixel is the mean of the source pixels it covers,
+ * weighted by the covered share of pixels at its borders.  Unlike sampling, as done by GL with linear filtering, large
+ * reductions don't alias.
+ * <p>
+ * CPU fallback of the GL scaling of {@link CodecOutputSurface}, used by {@link SoftwareFrameOutput}.  Works in two
+ * separable passes, the contributing pixels and weights of every target column and row are computed once per
+ * instance.  An instance is not thread safe.
+ * <p>
+ * Has no Android dependencies, so it can be measured on a plain JVM.
+ */
+final class FrameScaler {
+
+    private final FrameRegion region;
+    private final Weights columns;
+    private final Weights rows;
+
+    private final byte[] sourceRow;
+    private final float[] rowSum;
+    private final float[] sum;
+
+    FrameScaler(FrameRegion region) {
+        this.region = region;
+        columns = new Weights(region.getSourceLeft(), region.getSourceRegionWidth(), region.getWidth(), region.getSourceWidth());
+        rows = new Weights(region.getSourceTop(), region.getSourceRegionHeight(), region.getHeight(), region.getSourceHeight());
+        sourceRow = new byte[region.getSourceWidth() * 4];
+        rowSum = new float[region.getWidth() * 4];
+        sum = new float[region.getWidth() * 4];
+    }
+
+    /**
+     * Scales source, sourceWidth * sourceHeight RGBA pixels of the region, into target, which needs room for
+     * width * height * 4 bytes.  Positions of source are left untouched, target is flipped.
+     */
+    void scale(ByteBuffer source, ByteBuffer target) {
+        final int width = region.getWidth();
+        final int sourceStride = region.getSourceWidth() * 4;
+        final ByteBuffer rowReader = source.duplicate();
+        target.clear();
+        for (int y = 0; y < region.getHeight(); y++) {
+            Arrays.fill(sum, 0f);
+            final int rowStart = rows.start[y];
+            for (int r = 0; r < rows.count[y]; r++) {
+                rowReader.clear();
+                rowReader.position((rowStart + r) * sourceStride);
+                rowReader.get(sourceRow, 0, sourceStride);
+                scaleRow();
+                final float weight = rows.weights[rows.offset[y] + r];
+                for (int i = 0; i < sum.length; i++) {
+                    sum[i] += rowSum[i] * weight;
+                }
+            }
+            for (int i = 0; i < width * 4; i++) {
+                target.put((byte) Math.min(255, (int) (sum[i] + 0.5f)));
+            }
+        }
+        target.flip();
+    }
+
+    /**
+     * Averages sourceRow into the target columns of rowSum.
+     */
+    private void scaleRow() {
+        for (int x = 0; x < region.getWidth(); x++) {
+            float r = 0, g = 0, b = 0, a = 0;
+            final int start = columns.start[x];
+            final int offset = columns.offset[x];
+            for (int c = 0; c < columns.count[x]; c++) {
+                final float weight = columns.weights[offset + c];
+                final int p = (start + c) * 4;
+                r += (sourceRow[p] & 0xff) * weight;
+                g += (sourceRow[p + 1] & 0xff) * weight;
+                b += (sourceRow[p + 2] & 0xff) * weight;
+                a += (sourceRow[p + 3] & 0xff) * weight;
+            }
+            final int t = x * 4;
+            rowSum[t] = r;
+            rowSum[t + 1] = g;
+            rowSum[t + 2] = b;
+            rowSum[t + 3] = a;
+        }
+    }
+
+    /**
+     * Source pixels covered by each target pixel along one axis and their shares, which sum up to 1.
+     */
+    private static final class Weights {
+
+        final int[] start;
+        final int[] count;
+        final int[] offset;
+        final float[] weights;
+
+        Weights(float sourceStart, float sourceLength, int targetLength, int sourceLimit) {
+            start = new int[targetLength];
+            count = new int[targetLength];
+            offset = new int[targetLength];
+            final float step = sourceLength / targetLength;
+            int total = 0;
+            for (int i = 0; i < targetLength; i++) {
+                final float from = sourceStart + i * step;
+                final float to = from + step;
+                start[i] = Math.min(sourceLimit - 1, (int) Math.floor(from));
+                count[i] = Math.max(1, Math.min(sourceLimit, (int) Math.ceil(to)) - start[i]);
+                offset[i] = total;
+                total += count[i];
+            }
+            weights = new float[total];
+            for (int i = 0; i < targetLength; i++) {
+                final float from = sourceStart + i * step;
+                final float to = from + step;
+                float covered = 0;
+                for (int c = 0; c < count[i]; c++) {
+                    final int pixel = start[i] + c;
+                    final float share = Math.max(0f, Math.min(to, pixel + 1) - Math.max(from, pixel));
+                    weights[offset[i] + c] = share;
+                    covered += share;
+                }
+                // normalizes rounding errors and regions ending within the last pixel
+                for (int c = 0; c < count[i]; c++) {
+                    weights[offset[i] + c] = covered > 0 ? weights[offset[i] + c] / covered : 1f / count[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.exozet.transcoder.mcvideoeditor
+
+/**
+ * Maps requested frame times to the frame numbers of the decoded stream and plans which parts of the stream have to be
+ * decoded to reach them.
+ *
+ * Has no Android dependencies, so it can be measured on a plain JVM.
+ */
+internal object FrameSelection {
+
+    /**
+     * @param timeInSec = desired video frame times in sec
+     * @param frameRate = video frame rate
+     * @return list of frame numbers which points exact frame in given time
+     *
+     *
+     * MediaCodec can only start decoding at sync samples, so instead of seeking to the desired time we need to figure
+     * out which frame we need, to calculate that, need to multiply desired frame time with frame rate
+     *
+     *
+     * Example = Want to get the frame at 6.34 sec. We have a 30 frame rate video
+     * 6.34*30 = 190,2 th frame -> we need int or long number so need to round it down
+     */
+    fun desiredFrames(timeInSec: List<Double>, frameRate: Int): List<Int> {
+
+        val desiredFrames = ArrayList<Int>(timeInSec.size)
+
+        for (i in timeInSec.indices) {
+            val desiredTimeFrames = (timeInSec[i] * frameRate).toInt()
+            desiredFrames.add(desiredTimeFrames)
+        }
+        return desiredFrames
+    }
+
+    /**
+     * Frame numbers shown at timeInSec, looked up in timeline instead of assuming a constant frame rate.
+     */
+    fun desiredFrames(timeInSec: List<Double>, timeline: FrameTimeline): List<Int> {
+        val desiredFrames = ArrayList<Int>(timeInSec.size)
+        for (time in timeInSec) {
+            desiredFrames.add(timeline.frameAt(time))
+        }
+        return desiredFrames
+    }
+
+    /**
+     * Requested frames in ascending order without duplicates.
+     */
+    fun sortedFrames(desiredFrames: List<Int>): IntArray {
+        val frames = IntArray(desiredFrames.size)
+        for (i in frames.indices) {
+            frames[i] = desiredFrames[i]
+        }
+        frames.sort()
+        var size = 0
+        for (frame in frames) {
+            if (size == 0 || frames[size - 1] != frame) {
+                frames[size++] = frame
+            }
+        }
+        return if (size == frames.size) frames else frames.copyOf(size)
+    }
+
+    /**
+     * Groups the requested frames by the sync sample they have to be decoded from.
+     *
+     * @param frames requested frames in ascending order, see [sortedFrames]
+     * @return the segments in decoding order, every segment starts at its sync sample and ends with its last frame
+     */
+    fun gopSegments(frames: IntArray, timeline: FrameTimeline): List<GopSegment> {
+        val segments = ArrayList<GopSegment>()
+        for (frame in frames) {
+            val sync = timeline.syncBefore(timeline.frameTimeUs(frame))
+            val last = segments.lastOrNull()
+            if (last != null && (sync < 0 || sync <= last.syncTimeUs)) {
+                // same group of pictures, or no usable sync sample: keep decoding from the previous one
+                last.lastFrame = frame
+            } else {
+                segments.add(GopSegment(if (sync < 0) timeline.frameTimeUs(0) else sync, frame))
+            }
+        }
+        return segments
+    }
+
+    /**
+     * Splits the requested frames into at most parts runs of whole segments, so that every run decodes about the same
+     * amount of frames. Runs keep the order of the frames, every run can be extracted by its own decoder.
+     *
+     * @param frames requested frames in ascending order, see [sortedFrames]
+     * @param segments the segments of frames, see [gopSegments]
+     * @return the requested frames of every run, in order
+     */
+    fun partition(frames: IntArray, segments: List<GopSegment>, timeline: FrameTimeline, parts: Int): List<IntArray> {
+        // frames decoded per segment, from its sync sample up to its last frame
+        val costs = LongArray(segments.size)
+        var total = 0L
+        for (i in segments.indices) {
+            val segment = segments[i]
+            costs[i] = Math.max(1, segment.lastFrame - timeline.frameIndex(segment.syncTimeUs) + 1).toLong()
+            total += costs[i]
+        }
+
+        val runs = ArrayList<IntArray>(Math.min(parts, segments.size))
+        var start = 0
+        var cost = 0L
+        for (i in segments.indices) {
+            cost += costs[i]
+            if (i == segments.lastIndex || (runs.size + 1 < parts && cost * parts >= total * (runs.size + 1))) {
+                var end = start
+                while (end < frames.size && frames[end] <= segments[i].lastFrame) {
+                    end++
+                }
+                runs.add(frames.copyOfRange(start, end))
+                start = end
+            }
+        }
+        return runs
+    }
+}
+
+/**
+ * Frame numbers and times of a video track. Frames are numbered in presentation order, times are presentation times
+ * as reported by the [MediaSource] of the track.
+ */
+internal interface FrameTimeline {
+
+    val frameCount: Int
+
+    /**
+     * Frame shown timeSec after the first frame.
+     */
+    fun frameAt(timeSec: Double): Int
+
+    /**
+     * Time within frame, seeking to the previous sync sample of it lands at or before frame.
+     */
+    fun frameTimeUs(frame: Int): Long
+
+    /**
+     * Frame number of the sample presented at ptsUs.
+     */
+    fun frameIndex(ptsUs: Long): Int
+
+    /**
+     * Presentation time of the last sync sample at or before timeUs, negative if unknown.
+     */
+    fun syncBefore(timeUs: Long): Long
+}
+
+/**
+ * Timeline assuming every frame lasts 1 / frameRate, with the first frame at originUs. Right for constant frame rates
+ * given as integer only, used if there is no [Mp4SampleIndex].
+ *
+ * @param locateSync returns the last sync sample at or before a time, e.g. by seeking the source
+ */
+internal class ConstantRateTimeline(
+    private val frameRate: Int,
+    private val originUs: Long,
+    durationUs: Long,
+    private val locateSync: (timeUs: Long) -> Long
+) : FrameTimeline {
+
+    override val frameCount: Int = (durationUs * frameRate / MICROS_PER_SECOND).toInt()
+
+    /**
+     * Example = Want to get the frame at 6.34 sec. We have a 30 frame rate video
+     * 6.34*30 = 190,2 th frame -> we need int or long number so need to round it down
+     */
+    override fun frameAt(timeSec: Double): Int = (timeSec * frameRate).toInt()
+
+    /**
+     * Middle of frame, so rounded timestamps don't move it to the previous frame.
+     */
+    override fun frameTimeUs(frame: Int): Long = originUs + ((frame + 0.5) * MICROS_PER_SECOND / frameRate).toLong()
+
+    override fun frameIndex(ptsUs: Long): Int = Math.round((ptsUs - originUs).toDouble() * frameRate / MICROS_PER_SECOND).toInt()
+
+    override fun syncBefore(timeUs: Long): Long = locateSync(timeUs)
+
+    private companion object {
+        const val MICROS_PER_SECOND = 1_000_000.0
+    }
+}
+
+/**
+ * Timeline from the sample table of the file, exact for fractional and variable frame rates and without seeking to
+ * locate sync samples.
+ *
+ * @param originUs time of the first sample as reported by the source, index times are shifted by the difference
+ */
+internal class SampleIndexTimeline(private val index: Mp4SampleIndex, originUs: Long) : FrameTimeline {
+
+    private val shiftUs = originUs - index.sampleTimeUs(0)
+
+    override val frameCount: Int = index.sampleCount()
+
+    override fun frameAt(timeSec: Double): Int = index.frameAt(index.frameTimeUs(0) + Math.round(timeSec * 1_000_000.0))
+
+    override fun frameTimeUs(frame: Int): Long = index.frameTimeUs(frame) + shiftUs
+
+    override fun frameIndex(ptsUs: Long): Int = index.nearestFrame(ptsUs - shiftUs)
+
+    override fun syncBefore(timeUs: Long): Long = index.syncTimeBefore(timeUs - shiftUs).let { if (it < 0) -1L else it + shiftUs }
+}
+
+/**
+ * Hit test for decoded frames arriving in ascending order, as decoders output them in presentation order.
+ * Every test only moves forward over the sorted requested frames, a whole decode pass costs O(frames + requested).
+ *
+ * @param frames requested frames in ascending order, see [FrameSelection.sortedFrames]
+ */
+internal class FrameCursor(private val frames: IntArray) {
+
+    private var next = 0
+
+    /**
+     * true if frame is requested and hasn't been hit before. Requested frames lower than frame are passed.
+     */
+    fun hit(frame: Int): Boolean {
+        while (next < frames.size && frames[next] < frame) {
+            next++
+        }
+        if (next < frames.size && frames[next] == frame) {
+            next++
+            return true
+        }
+        return false
+    }
+
+    /**
+     * true once the last requested frame has been hit or passed.
+     */
+    val isDone: Boolean
+        get() = next == frames.size
+}
+
+/**
+ * Part of the stream decoded from the sync sample at syncTimeUs up to and including lastFrame.
+ */
+internal class GopSegment(val syncTimeUs: Long, var lastFrame: Int)
@@ -0,0 +1,221 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import android.net.Uri
+import com.exozet.transcoder.ffmpeg.Stage
+import com.exozet.transcoder.ffmpeg.TranscodeMetrics
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Receives the frames extracted by [MediaCodecExtractImages], e.g. to analyse them in memory instead of reading them
+ * back from files. [DirectoryFrameSink], [FrameStoreSink] and [Y4mFrameSink] write them to files.
+ *
+ * Frames come from a small pool: a frame belongs to the sink until it calls [ExtractedFrame.release], which may happen
+ * later and on any thread. Once [framesInFlight] frames are held, the decoder waits for a release, so frames have to
+ * be released as soon as they are consumed, not only in [complete]. Extraction finishes once every frame is released.
+ */
+interface FrameSink {
+
+    /**
+     * Layout of [ExtractedFrame.pixels].
+     */
+    val pixelFormat: FramePixelFormat
+        get() = FramePixelFormat.RGBA
+
+    /**
+     * Frames the sink may hold at the same time, per decoder.
+     */
+    val framesInFlight: Int
+        get() = 2
+
+    /**
+     * true if [onFrame] may be called by several decoders at the same time, needed for parallel extraction.
+     */
+    val concurrent: Boolean
+        get() = false
+
+    /**
+     * Called before the first frame with the size of all frames.
+     */
+    @Throws(IOException::class)
+    fun start(width: Int, height: Int)
+
+    /**
+     * Called on the decoding thread for every frame. A single decoder delivers them in ascending order of
+     * presentation time, [ExtractedFrame.index] numbers them across decoders.
+     */
+    @Throws(IOException::class)
+    fun onFrame(frame: ExtractedFrame)
+
+    /**
+     * Called after the last frame, e.g. to wait for pending writes.
+     */
+    @Throws(IOException::class)
+    fun complete()
+
+    /**
+     * Called if extraction failed or was cancelled, drops what has been received so far.
+     */
+    fun discard()
+}
+
+enum class FramePixelFormat {
+
+    /**
+     * 4 bytes per pixel, red first, rows from top to bottom.
+     */
+    RGBA,
+
+    /**
+     * Planar YUV 4:2:0: full resolution Y plane followed by the U and V planes at half the resolution.
+     */
+    I420;
+
+    fun frameSize(width: Int, height: Int): Int = when (this) {
+        RGBA -> width * height * 4
+        I420 -> YuvConverter.yuvSize(width, height)
+    }
+}
+
+/**
+ * A pooled extracted frame, see [FrameSink].
+ */
+class ExtractedFrame internal constructor(
+    val width: Int,
+    val height: Int,
+    val pixelFormat: FramePixelFormat,
+    private val output: FrameOutput,
+    private val pool: FramePool
+) {
+
+    /**
+     * Pixels in [pixelFormat], only valid until the frame is released.
+     */
+    val pixels: ByteBuffer = ByteBuffer.allocateDirect(pixelFormat.frameSize(width, height)).order(ByteOrder.LITTLE_ENDIAN)
+
+    /**
+     * Index among the distinct requested frames in ascending order of time.
+     */
+    var index: Int = 0
+        internal set
+
+    var presentationTimeUs: Long = 0L
+        internal set
+
+    internal val metrics: TranscodeMetrics
+        get() = pool.metrics
+
+    internal val pooled = AtomicBoolean(true)
+
+    /**
+     * Writes an [FramePixelFormat.RGBA] frame as JPEG to out. Can be called on any thread.
+     */
+    @Throws(IOException::class)
+    fun compress(out: OutputStream, photoQuality: Int) {
+        check(pixelFormat == FramePixelFormat.RGBA) { "Only RGBA frames can be compressed" }
+        metrics.time(Stage.COMPRESS) { output.compressPixels(pixels.duplicate(), out, photoQuality) }
+    }
+
+    /**
+     * Returns the frame to the pool and reports it as done.
+     *
+     * @param uri reported with the progress of the frame, e.g. the file it was written to
+     */
+    @JvmOverloads
+    fun release(uri: Uri? = null) = pool.recycle(this, uri)
+}
+
+/**
+ * The frames of a decoder, handed out on the decoding thread and released by the sink.
+ *
+ * @param onReleased called with the uri of every released frame
+ */
+internal class FramePool(
+    size: Int,
+    width: Int,
+    height: Int,
+    pixelFormat: FramePixelFormat,
+    output: FrameOutput,
+    val metrics: TranscodeMetrics,
+    private val onReleased: (Uri?) -> Unit
+) {
+
+    private val size = Math.max(1, size)
+
+    private val free = ArrayBlockingQueue<ExtractedFrame>(this.size)
+
+    init {
+        repeat(this.size) {
+            free.add(ExtractedFrame(width, height, pixelFormat, output, this))
+        }
+    }
+
+    /**
+     * Waits for a free frame.
+     *
+     * @return null if cancelled meanwhile
+     */
+    @Throws(IOException::class)
+    fun acquire(cancel: MediaCodecExtractImages.Cancelable): ExtractedFrame? {
+        while (!cancel.cancel.get()) {
+            val frame = try {
+                free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)
+            } catch (e: InterruptedException) {
+                interrupted(cancel)
+                return null
+            } ?: continue
+            frame.pooled.set(false)
+            frame.pixels.clear()
+            return frame
+        }
+        return null
+    }
+
+    fun recycle(frame: ExtractedFrame, uri: Uri?) {
+        check(frame.pooled.compareAndSet(false, true)) { "Frame ${frame.index} released twice" }
+        onReleased(uri)
+        free.add(frame)
+    }
+
+    /**
+     * Waits until the sink released all frames.
+     *
+     * @return false if cancelled meanwhile
+     */
+    @Throws(IOException::class)
+    fun awaitReleased(cancel: MediaCodecExtractImages.Cancelable): Boolean {
+        while (free.size < size) {
+            if (cancel.cancel.get()) {
+                return false
+            }
+            try {
+                Thread.sleep(POLL_MILLIS)
+            } catch (e: InterruptedException) {
+                interrupted(cancel)
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Disposing a job interrupts its thread right after cancelling it, that is a cancellation and not a failure
+     * which would end up undeliverable.
+     */
+    private fun interrupted(cancel: MediaCodecExtractImages.Cancelable) {
+        Thread.currentThread().interrupt()
+        if (!cancel.cancel.get()) {
+            throw InterruptedIOException("Interrupted waiting for the sink to release frames")
+        }
+    }
+
+    private companion object {
+        const val POLL_MILLIS = 10L
+    }
+}
@@ -0,0 +1,143 @@
+package com.exozet.transcoder.mcvideoeditor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compresses and writes extracted frames on a pool of threads, so the decoding thread only reads back the pixels and
+ * goes on with the next frame.
+ * <p>
+ * The pool doesn't hold frames itself: jobs work on pooled frames which they release when done, see
+ * {@link FrameSink}, so the amount of frames in flight is bounded by the frame pool of the decoder.
+ * <p>
+ * A pool without threads runs every job on the submitting thread, like a plain synchronous save.
+ * <p>
+ * The first failing job fails the pool: {@link #submit(Job)} and {@link #finish()} rethrow it.  Jobs already
+ * submitted still run, so jobs may wait for each other, e.g. to write in order.
+ * <p>
+ * Has no Android dependencies, so it can be measured on a plain JVM.
+ */
+final class FrameWriterPool {
+
+    /**
+     * Work for a frame, runs on a writer thread.
+     */
+    interface Job {
+
+        void run() throws IOException;
+    }
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final Object pendingLock = new Object();
+    private int pending = 0;
+
+    /**
+     * @param threads amount of writer threads, 0 writes on the submitting thread
+     */
+    FrameWriterPool(int threads) {
+        executor = threads > 0
+                ? new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new WriterThreadFactory())
+                : null;
+    }
+
+    /**
+     * Runs job on a writer thread, jobs start in submission order.
+     *
+     * @throws IOException if a job failed, for jobs run on the calling thread also this one
+     */
+    void submit(final Job job) throws IOException {
+        if (executor == null) {
+            job.run();
+            return;
+        }
+        checkFailure();
+        synchronized (pendingLock) {
+            pending++;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.run();
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    synchronized (pendingLock) {
+                        pending--;
+                        pendingLock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all submitted jobs are done.
+     *
+     * @throws IOException if a job failed
+     */
+    void finish() throws IOException {
+        synchronized (pendingLock) {
+            while (pending > 0) {
+                try {
+                    pendingLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the frame writers");
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stops the threads once the submitted jobs are done and fails further calls.
+     */
+    void release() {
+        if (executor == null) {
+            return;
+        }
+        failure.compareAndSet(null, new IOException("Frame writers released"));
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final Throwable e = failure.get();
+        if (e == null) {
+            return;
+        }
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        throw new IOException("Writing a frame failed", e);
+    }
+
+    private static final class WriterThreadFactory implements ThreadFactory {
+
+        private final int pool = POOL_COUNT.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "frame-writer-" + pool + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -2,24 +2,23 @@ package com.exozet.transcoder.mcvideoeditor;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
-import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.net.Uri;
 import android.os.Build;
 
 import androidx.annotation.RequiresApi;
 
+import com.exozet.transcoder.ffmpeg.FrameStore;
+import com.exozet.transcoder.ffmpeg.FrameStoreReader;
 import com.exozet.transcoder.ffmpeg.Progress;
+import com.exozet.transcoder.ffmpeg.Stage;
+import com.exozet.transcoder.ffmpeg.TranscodeMetrics;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.List;
 
-import io.reactivex.Observable;
+import io.reactivex.Flowable;
 import io.reactivex.ObservableEmitter;
 import io.reactivex.ObservableOnSubscribe;
 import io.reactivex.disposables.CompositeDisposable;
@@ -32,8 +31,8 @@ public class MediaCodecCreateVideo {
 
     private CompositeDisposable subscription = new CompositeDisposable();
     private File mOutputFile;
-    private MediaCodec mediaCodec;
-    private MediaMuxer mediaMuxer;
+    private final CodecBackend backend;
+    private EncoderPipeline encoderPipeline;
 
     private String mimeType; // H.264 Advanced Video Coding
     private static int mWidth;
@@ -43,8 +42,10 @@ public class MediaCodecCreateVideo {
 
     private int iFrameInterval;
 
+    private int decodePrefetch;
+    private Long decodeMemoryBudget;
+
     private int mGenerateIndex = 0;
-    private int mTrackIndex;
     private boolean mNoMoreFrames = false;
     private boolean mAbort = false;
 
@@ -52,11 +53,25 @@ public class MediaCodecCreateVideo {
     private int frameNumber = 0;
     private long startTime;
 
-    private List<File> frames;
+    private int frameCount;
     private MediaCodecExtractImages.Cancelable cancelable;
+    private TranscodeMetrics metrics = new TranscodeMetrics();
+
+    private final YuvConverter yuvConverter;
+    private byte[] rawFrame;
+
+    /**
+     * Set once encoder and muxer are released, frames read or encoded afterwards are dropped.
+     */
+    private boolean released;
 
     public MediaCodecCreateVideo(MediaConfig mediaConfig) {
+        this(mediaConfig, AndroidCodecBackend.INSTANCE);
+    }
+
+    public MediaCodecCreateVideo(MediaConfig mediaConfig, CodecBackend backend) {
 
+        this.backend = backend;
         this.mimeType = mediaConfig.getMimeType();
 
         if (mediaConfig.getBitRate() != null) {
@@ -71,383 +86,370 @@ public class MediaCodecCreateVideo {
             this.iFrameInterval = mediaConfig.getIFrameInterval();
         }
 
-        int[] formats = this.getMediaCodecList();
+        this.yuvConverter = new YuvConverter(mediaConfig.getColorConversionParallelism());
 
-        if (colorFormat <= 0) {
-            colorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+        this.decodePrefetch = mediaConfig.getDecodePrefetch();
+        this.decodeMemoryBudget = mediaConfig.getDecodeMemoryBudget();
+
+        this.colorFormat = selectColorFormat(backend, mimeType);
+    }
+
+    /**
+     * Raw input color format for the encoder of mimeType, one the converter can produce.
+     */
+    static int selectColorFormat(CodecBackend backend, String mimeType) {
+        int[] formats;
+        try {
+            formats = backend.encoderColorFormats(mimeType);
+        } catch (IOException e) {
+            log(TAG, e.getMessage());
+            formats = new int[0];
         }
 
         //need to select correct color format yuv420. In here we are deciding which one should we use
         //https://www.jianshu.com/p/54a702be01e1 check this link for more (Chinese)
-        lab:
         for (int format : formats) {
             switch (format) {
                 case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar: // yuv420sp
-                    colorFormat = format;
-                    break lab;
                 case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar: // yuv420p
-                    colorFormat = format;
-                    break lab;
                 case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar: // yuv420psp
-                    colorFormat = format;
-                    break lab;
                 case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar: // yuv420pp
-                    colorFormat = format;
-                    break lab;
+                    return format;
             }
         }
+        return MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
     public void startEncoding(List<File> frames, int width, int height, Uri outputUri, MediaCodecExtractImages.Cancelable cancelable, ObservableEmitter<Progress> emitter) {
+        startEncoding(Flowable.fromIterable(frames)
+                .map(input -> {
+                    final long start = metrics.start();
+                    return decoded(BitmapFactory.decodeFile(input.getAbsolutePath()), start);
+                }), frames.size(), width, height, outputUri, cancelable, emitter);
+    }
+
+    /**
+     * Encodes the frames of a {@link FrameStore}, frames are decoded straight from the mapped store.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void startEncoding(FrameStoreReader store, int width, int height, Uri outputUri, MediaCodecExtractImages.Cancelable cancelable, ObservableEmitter<Progress> emitter) {
+        startEncoding(Flowable.range(0, store.getFrameCount())
+                .map(index -> {
+                    final long start = metrics.start();
+                    final byte[] frame = frameBytes(store, index);
+                    return decoded(BitmapFactory.decodeByteArray(frame, 0, frame.length), start);
+                }), store.getFrameCount(), width, height, outputUri, cancelable, emitter);
+    }
+
+    /**
+     * Records the decoding of bitmap, which stays in use until it has been encoded.
+     */
+    private Bitmap decoded(Bitmap bitmap, long start) {
+        metrics.record(Stage.DECODE, start);
+        metrics.bufferAcquired();
+        return bitmap;
+    }
+
+    private void startEncoding(Flowable<Bitmap> bitmaps, int frameCount, int width, int height, Uri outputUri, MediaCodecExtractImages.Cancelable cancelable, ObservableEmitter<Progress> emitter) {
+        if (!prepareEncoding(frameCount, width, height, outputUri, cancelable, emitter)) {
+            return;
+        }
+
+            // decoding is a lot faster than encoding, the bounded observeOn buffer makes the decoder
+            // wait for the encoder, so only a few decoded bitmaps are held at any time
+            final int prefetch = decodeWindow(mWidth, mHeight);
+            log(TAG, "Decoding with a prefetch window of " + prefetch + " frames");
+
+            subscription.add(bitmaps
+                    .subscribeOn(Schedulers.io())
+                    .observeOn(Schedulers.computation(), false, prefetch)
+                    .subscribe(bitmap -> {
+                        frameNumber++;
+                        encode(bitmap,emitter);
+                    }, error -> fail(error, emitter), () -> finishEncoding(emitter)));
+    }
+
+    /**
+     * Encodes the frames of a raw Y4M file. Frames are read straight into the encoder input layout, I420 with a bulk
+     * read, NV12 with an additional chroma interleave, no image decoding or color conversion is involved.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+    void startEncoding(Y4mReader raw, Uri outputUri, MediaCodecExtractImages.Cancelable cancelable, ObservableEmitter<Progress> emitter) {
+        if (!prepareEncoding(raw.getFrameCount(), raw.getWidth(), raw.getHeight(), outputUri, cancelable, emitter)) {
+            return;
+        }
+
+        subscription.add(Flowable.range(0, raw.getFrameCount())
+                .subscribeOn(Schedulers.io())
+                .subscribe(index -> {
+                    frameNumber++;
+                    encode(raw, index, emitter);
+                }, error -> fail(error, emitter), () -> finishEncoding(emitter)));
+    }
+
+    /**
+     * Creates encoder and muxer.
+     *
+     * @return false if encoding can't start, the emitter has been notified then
+     */
+    private boolean prepareEncoding(int frameCount, int width, int height, Uri outputUri, MediaCodecExtractImages.Cancelable cancelable, ObservableEmitter<Progress> emitter) {
         mWidth = width;
         mHeight = height;
-        this.frames = frames;
+        this.frameCount = frameCount;
         this.cancelable = cancelable;
+        this.metrics = new TranscodeMetrics();
 
         startTime = System.currentTimeMillis();
 
         mOutputFile = new File(outputUri.getPath());
 
-        MediaCodecInfo codecInfo = selectCodec(mimeType);
-        if (codecInfo == null) {
-           log(TAG, "Unable to find an appropriate codec for " + mimeType);
-            return;
-        }
-        log(TAG, "found codec: " + codecInfo.getName());
-
+        VideoCodec encoder;
         try {
-            mediaCodec = MediaCodec.createByCodecName(codecInfo.getName());
+            encoder = backend.createEncoder(mimeType, mWidth, mHeight, bitRate, frameRate, colorFormat, iFrameInterval);
         } catch (IOException e) {
             log(TAG, "Unable to create MediaCodec " + e.getMessage());
             emitter.onError(e);
-            return;
+            return false;
         }
 
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat(mimeType, mWidth, mHeight);
-        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
-        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
-        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
-        mediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mediaCodec.start();
+        MediaSink sink;
         try {
-            mediaMuxer = new MediaMuxer(mOutputFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            sink = backend.createSink(mOutputFile.getAbsolutePath());
         } catch (IOException e) {
             log(TAG, "MediaMuxer creation failed. " + e.getMessage());
+            encoder.stop();
+            encoder.release();
             emitter.onError(e);
-            return;
+            return false;
         }
 
+        encoderPipeline = new EncoderPipeline(encoder, sink, metrics, cancelable.getCancel());
+
         log(TAG, "Initialization complete. Starting encoder...");
 
             if (this.cancelable.getCancel().get()){
                 release();
                 mOutputFile.delete();
-                return;
+                return false;
             }
 
-            subscription.add(Observable.fromIterable(frames)
-                    .map(input -> {
-                        return BitmapFactory.decodeFile(input.getAbsolutePath());
-                    })
-                    .subscribeOn(Schedulers.io())
-                    .observeOn(Schedulers.computation())
-                    .subscribe(bitmap -> {
-                        frameNumber++;
-                        encode(bitmap,emitter);
-                    }));
+        return true;
+    }
+
+    /**
+     * Amount of decoded frames which may wait for the encoder, limited by {@link MediaConfig#getDecodeMemoryBudget()}.
+     */
+    private int decodeWindow(int width, int height) {
+        return decodeWindow(decodePrefetch, decodeMemoryBudget, width, height);
+    }
+
+    /**
+     * Amount of decoded ARGB frames of the given size allowed in flight, at least one.
+     */
+    static int decodeWindow(int decodePrefetch, Long decodeMemoryBudget, int width, int height) {
+        int window = Math.max(1, decodePrefetch);
+        if (decodeMemoryBudget != null) {
+            final long frameBytes = (long) width * height * 4; // ARGB_8888
+            window = (int) Math.max(1, Math.min(window, decodeMemoryBudget / frameBytes));
+        }
+        return window;
+    }
+
+    /**
+     * Reads frame index of store unless encoding has been released, the store may be closed then.
+     */
+    private synchronized byte[] frameBytes(FrameStoreReader store, int index) throws IOException {
+        if (released) {
+            throw new IOException("Encoding has been cancelled");
+        }
+        return store.frameBytes(index);
     }
 
-    private void encode(Bitmap bitmap, ObservableEmitter<Progress> emitter) {
+    private synchronized void encode(Bitmap bitmap, ObservableEmitter<Progress> emitter) {
+
+                if (released) {
+                    bitmap.recycle();
+                    metrics.bufferReleased();
+                    return;
+                }
 
                 if (cancelable.getCancel().get()) {
+                    bitmap.recycle();
+                    metrics.bufferReleased();
                     release();
                     mOutputFile.delete();
                     return;
                 }
 
-                Progress progress =new Progress((int)((((float)frameNumber) / ((float)frames.size() - 1f)) * 100), null, Uri.parse(mOutputFile.getAbsolutePath()), System.currentTimeMillis() - startTime);
-                emitter.onNext(progress);
+                emitProgress(emitter);
 
                 log(TAG, "Encoder started");
+                final long start = metrics.start();
                 byte[] byteConvertFrame = getNV12(bitmap.getWidth(), bitmap.getHeight(), bitmap);
+                metrics.record(Stage.COLOR_CONVERT, start);
+                // pixels have been copied, hand the memory back right away instead of waiting for the GC
+                bitmap.recycle();
+                metrics.bufferReleased();
 
-                long TIMEOUT_USEC = 500000;
-                int inputBufIndex = mediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
                 long ptsUsec = computePresentationTime(mGenerateIndex, frameRate);
-                if (inputBufIndex >= 0) {
-                    final ByteBuffer inputBuffer = mediaCodec.getInputBuffer(inputBufIndex);
-                    inputBuffer.clear();
-                    inputBuffer.put(byteConvertFrame);
-                    mediaCodec.queueInputBuffer(inputBufIndex, 0, byteConvertFrame.length, ptsUsec, 0);
-                    mGenerateIndex++;
-                }
-                MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
-                int encoderStatus = mediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // no output available yet
-                    log(TAG, "No output from encoder available");
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // not expected for an encoder
-                    MediaFormat newFormat = mediaCodec.getOutputFormat();
-                    newFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 3000 * 3000);
-                    mTrackIndex = mediaMuxer.addTrack(newFormat);
-                    mediaMuxer.start();
-                } else if (encoderStatus < 0) {
-                    log(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
-                } else if (mBufferInfo.size != 0) {
-                    ByteBuffer encodedData = mediaCodec.getOutputBuffer(encoderStatus);
-                    if (encodedData == null) {
-                        log(TAG, "encoderOutputBuffer " + encoderStatus + " was null");
-                    } else {
-                        encodedData.position(mBufferInfo.offset);
-                        encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-                        mediaMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                        mediaCodec.releaseOutputBuffer(encoderStatus, false);
-                    }
-                }
-
-                if (frameNumber >= frames.size()-1){
-                    emitter.onComplete();
-                    release();
-                }
+                encoderPipeline.queueFrame(byteConvertFrame, ptsUsec);
+                metrics.frameCompleted();
+                mGenerateIndex++;
     }
 
-    private void release() {
-        subscription.dispose();
-
-        frames = null;
-        cancelable = null;
+    private synchronized void encode(Y4mReader raw, int index, ObservableEmitter<Progress> emitter) throws IOException {
 
-        if (mediaCodec != null) {
-            mediaCodec.stop();
-            mediaCodec.release();
-            mediaCodec = null;
-            log(TAG, "RELEASE CODEC");
-        }
-        if (mediaMuxer != null) {
-            mediaMuxer.stop();
-            mediaMuxer.release();
-            mediaMuxer = null;
-            log(TAG, "RELEASE MUXER");
+        if (released) {
+            return;
         }
-    }
 
-    private static MediaCodecInfo selectCodec(String mimeType) {
-        int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-            if (!codecInfo.isEncoder()) {
-                continue;
-            }
-            String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    return codecInfo;
-                }
-            }
+        if (cancelable.getCancel().get()) {
+            release();
+            mOutputFile.delete();
+            return;
         }
-        return null;
-    }
-
-    private byte[] getNV12(int inputWidth, int inputHeight, Bitmap scaled) {
-
-        int[] argb = new int[inputWidth * inputHeight];
 
-        //Log.i(TAG, "scaled : " + scaled);
-        scaled.getPixels(argb, 0, inputWidth, 0, 0, inputWidth, inputHeight);
-
-        byte[] yuv = new byte[inputWidth * inputHeight * 3 / 2];
+        emitProgress(emitter);
 
+        byte[] yuv = yuvConverter.yuvBuffer(mWidth, mHeight);
+        long start;
         switch (colorFormat) {
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar: // yuv420sp
-                encodeYUV420SP(yuv, argb, inputWidth, inputHeight);
-                break;
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar: // yuv420p
-                encodeYUV420P(yuv, argb, inputWidth, inputHeight);
-                break;
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar: // yuv420psp
-                encodeYUV420PSP(yuv, argb, inputWidth, inputHeight);
+                if (rawFrame == null) {
+                    rawFrame = new byte[yuv.length];
+                }
+                start = metrics.start();
+                raw.readFrame(index, rawFrame);
+                metrics.record(Stage.DEMUX, start);
+                start = metrics.start();
+                YuvConverter.i420ToNv12(rawFrame, yuv, mWidth, mHeight);
+                metrics.record(Stage.COLOR_CONVERT, start);
                 break;
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar: // yuv420pp
-                encodeYUV420PP(yuv, argb, inputWidth, inputHeight);
+            default:
+                start = metrics.start();
+                raw.readFrame(index, yuv);
+                metrics.record(Stage.DEMUX, start);
                 break;
         }
 
-        return yuv;
+        encoderPipeline.queueFrame(yuv, computePresentationTime(mGenerateIndex, frameRate));
+        metrics.frameCompleted();
+        mGenerateIndex++;
     }
 
-    private void encodeYUV420P(byte[] yuv420sp, int[] argb, int width, int height) {
-        final int frameSize = width * height;
-
-        int yIndex = 0;
-        int uIndex = frameSize;
-        int vIndex = frameSize + width * height / 4;
+    private void emitProgress(ObservableEmitter<Progress> emitter) {
+        Progress progress =new Progress((int)((((float)frameNumber) / ((float)frameCount)) * 100), null, Uri.parse(mOutputFile.getAbsolutePath()), System.currentTimeMillis() - startTime, metrics);
+        emitter.onNext(progress);
+    }
 
-        int a, R, G, B, Y, U, V;
-        int index = 0;
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
+    /**
+     * Signals end of stream once all frames have been queued, drains the remaining output and completes.
+     */
+    private synchronized void finishEncoding(ObservableEmitter<Progress> emitter) {
+        if (released || encoderPipeline == null) {
+            return;
+        }
 
-                a = (argb[index] & 0xff000000) >> 24; // a is not used obviously
-                R = (argb[index] & 0xff0000) >> 16;
-                G = (argb[index] & 0xff00) >> 8;
-                B = (argb[index] & 0xff) >> 0;
+        try {
+            encoderPipeline.finish(computePresentationTime(mGenerateIndex, frameRate));
+        } catch (RuntimeException e) {
+            fail(e, emitter);
+            return;
+        }
 
-                // well known RGB to YUV algorithm
-                Y = ((66 * R + 129 * G + 25 * B + 128) >> 8) + 16;
-                V = ((-38 * R - 74 * G + 112 * B + 128) >> 8) + 128; // Previously U
-                U = ((112 * R - 94 * G - 18 * B + 128) >> 8) + 128; // Previously V
+        emitter.onNext(new Progress(100, null, Uri.parse(mOutputFile.getAbsolutePath()), System.currentTimeMillis() - startTime, metrics));
+        release();
+        emitter.onComplete();
+    }
 
-                yuv420sp[yIndex++] = (byte) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
-                if (j % 2 == 0 && index % 2 == 0) {
-                    yuv420sp[vIndex++] = (byte) ((U < 0) ? 0 : ((U > 255) ? 255 : U));
-                    yuv420sp[uIndex++] = (byte) ((V < 0) ? 0 : ((V > 255) ? 255 : V));
-                }
+    /**
+     * Releases encoder and muxer and deletes the partial output before reporting error. An error doesn't dispose
+     * the job, so nothing else would release them.
+     */
+    private void fail(Throwable error, ObservableEmitter<Progress> emitter) {
+        log(TAG, "Encoding failed: " + error.getMessage());
+        cancel();
+        emitter.tryOnError(error);
+    }
 
-                index++;
-            }
+    /**
+     * Stops encoding of a disposed job and deletes the partial output. Waits for a frame being read or encoded on
+     * another thread, afterwards the frame source isn't touched anymore and may be closed. The subscription is
+     * disposed only then, disposing interrupts its thread, which would fail a read or write in progress.
+     */
+    public synchronized void cancel() {
+        if (released) {
+            return;
+        }
+        release();
+        if (mOutputFile != null) {
+            mOutputFile.delete();
         }
     }
 
-    private void encodeYUV420SP(byte[] yuv420sp, int[] argb, int width, int height) {
-        final int frameSize = width * height;
+    private synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        subscription.dispose();
+
+        cancelable = null;
+        rawFrame = null;
+        yuvConverter.release();
 
-        int yIndex = 0;
-        int uvIndex = frameSize;
+        if (encoderPipeline != null) {
+            encoderPipeline.release();
+            encoderPipeline = null;
+            log(TAG, "RELEASE CODEC AND MUXER");
+        }
+    }
 
-        int a, R, G, B, Y, U, V;
-        int index = 0;
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
+    private byte[] getNV12(int inputWidth, int inputHeight, Bitmap scaled) {
 
-                a = (argb[index] & 0xff000000) >> 24; // a is not used obviously
-                R = (argb[index] & 0xff0000) >> 16;
-                G = (argb[index] & 0xff00) >> 8;
-                B = (argb[index] & 0xff) >> 0;
+        int[] argb = yuvConverter.argbBuffer(inputWidth, inputHeight);
 
-                // well known RGB to YUV algorithm
-                Y = ((66 * R + 129 * G + 25 * B + 128) >> 8) + 16;
-                V = ((-38 * R - 74 * G + 112 * B + 128) >> 8) + 128; // Previously U
-                U = ((112 * R - 94 * G - 18 * B + 128) >> 8) + 128; // Previously V
+        //Log.i(TAG, "scaled : " + scaled);
+        scaled.getPixels(argb, 0, inputWidth, 0, 0, inputWidth, inputHeight);
 
-                yuv420sp[yIndex++] = (byte) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
-                if (j % 2 == 0 && index % 2 == 0) {
-                    yuv420sp[uvIndex++] = (byte) ((V < 0) ? 0 : ((V > 255) ? 255 : V));
-                    yuv420sp[uvIndex++] = (byte) ((U < 0) ? 0 : ((U > 255) ? 255 : U));
-                }
+        byte[] yuv = yuvConverter.yuvBuffer(inputWidth, inputHeight);
 
-                index++;
-            }
-        }
-    }
+        convert(yuvConverter, colorFormat, yuv, argb, inputWidth, inputHeight, YuvConverter.RED_SHIFT_ARGB);
 
-    private void encodeYUV420PSP(byte[] yuv420sp, int[] argb, int width, int height) {
-        final int frameSize = width * height;
-
-        int yIndex = 0;
-//        int uvIndex = frameSize;
-
-        int a, R, G, B, Y, U, V;
-        int index = 0;
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-
-                a = (argb[index] & 0xff000000) >> 24; // a is not used obviously
-                R = (argb[index] & 0xff0000) >> 16;
-                G = (argb[index] & 0xff00) >> 8;
-                B = (argb[index] & 0xff) >> 0;
-//                R = (argb[index] & 0xff000000) >>> 24;
-//                G = (argb[index] & 0xff0000) >> 16;
-//                B = (argb[index] & 0xff00) >> 8;
-
-                // well known RGB to YUV algorithm
-                Y = ((66 * R + 129 * G + 25 * B + 128) >> 8) + 16;
-                V = ((-38 * R - 74 * G + 112 * B + 128) >> 8) + 128; // Previously U
-                U = ((112 * R - 94 * G - 18 * B + 128) >> 8) + 128; // Previously V
-
-                yuv420sp[yIndex++] = (byte) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
-                if (j % 2 == 0 && index % 2 == 0) {
-                    yuv420sp[yIndex + 1] = (byte) ((V < 0) ? 0 : ((V > 255) ? 255 : V));
-                    yuv420sp[yIndex + 3] = (byte) ((U < 0) ? 0 : ((U > 255) ? 255 : U));
-                }
-                if (index % 2 == 0) {
-                    yIndex++;
-                }
-                index++;
-            }
-        }
+        return yuv;
     }
 
-    private void encodeYUV420PP(byte[] yuv420sp, int[] argb, int width, int height) {
-
-        int yIndex = 0;
-        int vIndex = yuv420sp.length / 2;
-
-        int a, R, G, B, Y, U, V;
-        int index = 0;
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-
-                a = (argb[index] & 0xff000000) >> 24; // a is not used obviously
-                R = (argb[index] & 0xff0000) >> 16;
-                G = (argb[index] & 0xff00) >> 8;
-                B = (argb[index] & 0xff) >> 0;
-//                R = (argb[index] & 0xff000000) >>> 24;
-//                G = (argb[index] & 0xff0000) >> 16;
-//                B = (argb[index] & 0xff00) >> 8;
-
-                // well known RGB to YUV algorithm
-                Y = ((66 * R + 129 * G + 25 * B + 128) >> 8) + 16;
-                V = ((-38 * R - 74 * G + 112 * B + 128) >> 8) + 128; // Previously U
-                U = ((112 * R - 94 * G - 18 * B + 128) >> 8) + 128; // Previously V
-
-                if (j % 2 == 0 && index % 2 == 0) {// 0
-                    yuv420sp[yIndex++] = (byte) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
-                    yuv420sp[yIndex + 1] = (byte) ((V < 0) ? 0 : ((V > 255) ? 255 : V));
-                    yuv420sp[vIndex + 1] = (byte) ((U < 0) ? 0 : ((U > 255) ? 255 : U));
-                    yIndex++;
-
-                } else if (j % 2 == 0 && index % 2 == 1) { //1
-                    yuv420sp[yIndex++] = (byte) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
-                } else if (j % 2 == 1 && index % 2 == 0) { //2
-                    yuv420sp[vIndex++] = (byte) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
-                    vIndex++;
-                } else if (j % 2 == 1 && index % 2 == 1) { //3
-                    yuv420sp[vIndex++] = (byte) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
-                }
-                index++;
-            }
+    /**
+     * Converts pixels to the layout of colorFormat.
+     *
+     * @param redShift {@link YuvConverter#RED_SHIFT_ARGB} or {@link YuvConverter#RED_SHIFT_ABGR}
+     */
+    static void convert(YuvConverter yuvConverter, int colorFormat, byte[] yuv, int[] pixels, int width, int height, int redShift) {
+        // the packed variants describe the same contiguous memory layout as their non packed counterparts
+        switch (colorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar: // yuv420sp
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar: // yuv420psp
+                yuvConverter.encodeYUV420SP(yuv, pixels, width, height, redShift);
+                break;
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar: // yuv420p
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar: // yuv420pp
+                yuvConverter.encodeYUV420P(yuv, pixels, width, height, redShift);
+                break;
         }
     }
 
     public int[] getMediaCodecList() {
-        int numCodecs = MediaCodecList.getCodecCount();
-        MediaCodecInfo codecInfo = null;
-        for (int i = 0; i < numCodecs && codecInfo == null; i++) {
-            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
-            if (!info.isEncoder()) {
-                continue;
-            }
-            String[] types = info.getSupportedTypes();
-            boolean found = false;
-            for (int j = 0; j < types.length && !found; j++) {
-                if (types[j].equals(mimeType)) {
-                    found = true;
-                }
-            }
-            if (!found) {
-                continue;
-            }
-            codecInfo = info;
+        try {
+            return backend.encoderColorFormats(mimeType);
+        } catch (IOException e) {
+            log(TAG, e.getMessage());
+            return new int[0];
         }
-        log(TAG, "found" + codecInfo.getName() + "supporting " + mimeType);
-        MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
-        return capabilities.colorFormats;
     }
 
-    private long computePresentationTime(long frameIndex, int framerate) {
+    static long computePresentationTime(long frameIndex, int framerate) {
         return 132 + frameIndex * 1000000 / framerate;
     }
 }
@@ -18,9 +18,6 @@ package com.exozet.transcoder.mcvideoeditor
 
 import android.graphics.Bitmap
 import android.graphics.SurfaceTexture
-import android.media.MediaCodec
-import android.media.MediaExtractor
-import android.media.MediaFormat
 import android.net.Uri
 import android.opengl.EGL14
 import android.opengl.EGLConfig
@@ -36,8 +33,11 @@ import android.os.HandlerThread
 import android.util.Log
 import android.view.Surface
 import com.exozet.transcoder.ffmpeg.FFMpegTranscoder
+import com.exozet.transcoder.ffmpeg.FrameStore
 
 import com.exozet.transcoder.ffmpeg.Progress
+import com.exozet.transcoder.ffmpeg.Stage
+import com.exozet.transcoder.ffmpeg.TranscodeMetrics
 
 import java.io.BufferedOutputStream
 import java.io.File
@@ -50,11 +50,13 @@ import java.nio.FloatBuffer
 import java.util.ArrayList
 import java.util.concurrent.atomic.AtomicBoolean
 
+import io.reactivex.Completable
 import io.reactivex.Observable
 import io.reactivex.ObservableEmitter
 import io.reactivex.ObservableOnSubscribe
 import io.reactivex.Observer
 import io.reactivex.functions.Action
+import io.reactivex.schedulers.Schedulers
 
 import com.exozet.transcoder.ffmpeg.log
 
@@ -65,7 +67,8 @@ import com.exozet.transcoder.ffmpeg.log
 //20140212: eliminate byte swap
 
 /**
- * To check how to convert time video frame times to frames number, go to getDesiredFrames() method
+ * To check how to convert time video frame times to frames number, go to FrameSelection.desiredFrames() method and
+ * the [FrameTimeline] implementations
  */
 
 /**
@@ -78,8 +81,16 @@ import com.exozet.transcoder.ffmpeg.log
  *
  * (This was derived from bits and pieces of CTS tests, and is packaged as such, but is not
  * currently part of CTS.)
+ *
+ * @param sampleIndexCache directory caching the parsed MP4 sample tables, null to parse them on every extraction
+ * @param writerThreads threads compressing and writing JPEG frames while the decoder goes on, 0 writes on the decoding
+ * thread. Used by the file sinks of [extractMpegFrames] and [extractMpegFramesToStore], see [DirectoryFrameSink].
  */
-class MediaCodecExtractImages {
+class MediaCodecExtractImages(
+    private val backend: CodecBackend = AndroidCodecBackend,
+    private val sampleIndexCache: File? = Mp4SampleIndex.defaultCacheDirectory(),
+    private val writerThreads: Int = WRITER_THREADS
+) {
 
     /**
      * Tests extraction from an MP4 to a series of PNG files.
@@ -89,25 +100,95 @@ class MediaCodecExtractImages {
      * video with the GPU.  If the input video has a different aspect ratio, we could preserve
      * it by adjusting the GL viewport to get letterboxing or pillarboxing, but generally if
      * you're extracting frames you don't want black bars.
+     *
+     * @param parallelism amount of decoders extracting at the same time, 0 for one per core. Always limited by the
+     * cores and the decoder instances the codec supports, see [CodecBackend.maxDecoderInstances].
+     * @param geometry size and source region of the frames, scaled and cropped before they are read back
      */
     fun extractMpegFrames(
         inputVideo: Uri,
         timeInSec: List<Double>,
         outputDir: Uri,
-        photoQuality: Int
+        photoQuality: Int,
+        parallelism: Int = 1,
+        geometry: FrameGeometry = FrameGeometry()
+    ): Observable<Progress> =
+        extract(inputVideo, timeInSec, outputDir, parallelism, geometry) {
+            DirectoryFrameSink(outputDir.path!!, photoQuality, writerThreads)
+        }
+
+    /**
+     * Extracts the frames as JPEGs into a single [FrameStore] file instead of one file per frame.
+     *
+     * @param geometry see [extractMpegFrames]
+     */
+    fun extractMpegFramesToStore(
+        inputVideo: Uri,
+        timeInSec: List<Double>,
+        storeFile: Uri,
+        photoQuality: Int,
+        geometry: FrameGeometry = FrameGeometry()
+    ): Observable<Progress> = extract(inputVideo, timeInSec, storeFile, 1, geometry) {
+        FrameStoreSink(File(storeFile.path!!), photoQuality, writerThreads)
+    }
+
+    /**
+     * Extracts the frames losslessly as raw I420 into a single Y4M file, which [MediaCodecCreateVideo] feeds to the
+     * encoder without image decoding. Trades storage for the JPEG compression and decompression of every frame.
+     *
+     * @param geometry see [extractMpegFrames]
+     */
+    fun extractMpegFramesToRaw(
+        inputVideo: Uri,
+        timeInSec: List<Double>,
+        rawFile: Uri,
+        geometry: FrameGeometry = FrameGeometry()
+    ): Observable<Progress> = extract(inputVideo, timeInSec, rawFile, 1, geometry) { format ->
+        Y4mFrameSink(File(rawFile.path!!), format.frameRate)
+    }
+
+    /**
+     * Hands the frames to sink in memory, e.g. for analysis without writing and reading back files. Progress is
+     * reported as the sink releases the frames, with the uri they are released with.
+     *
+     * @param parallelism decoders to use, see [extractMpegFrames], only if the sink is [FrameSink.concurrent]
+     * @param geometry see [extractMpegFrames]
+     */
+    fun extractFrames(
+        inputVideo: Uri,
+        timeInSec: List<Double>,
+        sink: FrameSink,
+        parallelism: Int = 1,
+        geometry: FrameGeometry = FrameGeometry()
+    ): Observable<Progress> = extract(inputVideo, timeInSec, null, parallelism, geometry) { sink }
+
+    /**
+     * @param output uri reported with the final progress
+     * @param parallelism decoders to use, see [extractMpegFrames]
+     * @param geometry see [extractMpegFrames]
+     * @param createSink creates the sink for frames of a format once the format is known
+     */
+    private fun extract(
+        inputVideo: Uri,
+        timeInSec: List<Double>,
+        output: Uri?,
+        parallelism: Int,
+        geometry: FrameGeometry,
+        createSink: (format: TrackFormat) -> FrameSink
     ): Observable<Progress> {
 
         val startTime = System.currentTimeMillis()
 
         val cancelable = Cancelable()
 
-        var decoder: MediaCodec? = null
-        var outputSurface: CodecOutputSurface? = null
-        var extractor: MediaExtractor? = null
+        val metrics = TranscodeMetrics()
+
+        var decoder: VideoCodec? = null
+        var outputSurface: FrameOutput? = null
+        var extractor: MediaSource? = null
 
         return Observable.create<Progress>{ emitter ->
             val inputFilePath = inputVideo.path
-            val outputPath = outputDir.path
 
             val saveWidth: Int
             val saveHeight: Int
@@ -122,8 +203,7 @@ class MediaCodecExtractImages {
                     emitter.onError(FileNotFoundException("Unable to read $inputFile"))
                 }
 
-                extractor = MediaExtractor()
-                extractor!!.setDataSource(inputFile.toString())
+                extractor = backend.createSource(inputFile.toString())
                 val trackIndex = selectTrack(extractor!!)
                 if (trackIndex < 0) {
                     emitter.onError(RuntimeException("No video track found in $inputFile"))
@@ -132,54 +212,91 @@ class MediaCodecExtractImages {
 
                 val format = extractor!!.getTrackFormat(trackIndex)
 
-                saveWidth = format.getInteger(MediaFormat.KEY_WIDTH)
-                saveHeight = format.getInteger(MediaFormat.KEY_HEIGHT)
-                log(
-                    "Video size is " + format.getInteger(MediaFormat.KEY_WIDTH) + "x" +
-                            format.getInteger(MediaFormat.KEY_HEIGHT)
-                )
-
-                val frameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE)
-                val duration = format.getLong(MediaFormat.KEY_DURATION)
+                val region = geometry.resolve(format.width, format.height)
+                saveWidth = region.width
+                saveHeight = region.height
+                log {
+                    "Video size is " + format.width + "x" +
+                            format.height + ", frames are " + saveWidth + "x" + saveHeight
+                }
 
-                val secToMicroSec = 1000000
-                val totalFrame = (duration * frameRate / secToMicroSec).toInt()
+                val timeline = timeline(inputFile, extractor!!, format, sampleIndexCache)
 
-                log(
-                    "Frame rate is = " + frameRate +
-                            " Total duration is in microSec = " + duration +
-                            " Total frame count = " + totalFrame
-                )
+                log {
+                    "Frame rate is = " + format.frameRate +
+                            " Total duration is in microSec = " + format.durationUs +
+                            " Total frame count = " + timeline.frameCount
+                }
 
                 //Can't use timeStamp directly, instead we need to get which frame we need to get
-                val desiredFrames = getDesiredFrames(timeInSec, frameRate)
-
-                 log("Desired frames list is $desiredFrames")
-                // Could use width/height from the MediaFormat to get full-size frames.
-                outputSurface = CodecOutputSurface(saveWidth, saveHeight)
-
-                // Create a MediaCodec decoder, and configure it with the MediaFormat from the
-                // extractor.  It's very important to use the format from the extractor because
-                // it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
-                val mime = format.getString(MediaFormat.KEY_MIME)
-                decoder = MediaCodec.createDecoderByType(mime!!)
-                decoder?.configure(format, outputSurface!!.surface, null, 0)
-                decoder?.start()
-
-                doExtract(
-                    extractor!!,
-                    trackIndex,
-                    decoder!!,
-                    outputSurface!!,
-                    desiredFrames,
-                    outputPath,
-                    photoQuality,
-                    emitter,
-                    totalFrame,
-                    startTime,
-                    cancelable
+                val desiredFrames = FrameSelection.desiredFrames(timeInSec, timeline)
+
+                 log { "Desired frames list is $desiredFrames" }
+
+                val progress = FrameProgress(FrameSelection.sortedFrames(desiredFrames).size, emitter, startTime, metrics)
+
+                val sink = createSink(format)
+
+                val savedFrames = try {
+                    sink.start(saveWidth, saveHeight)
+
+                    val parts = parallelParts(format, timeline, desiredFrames, parallelism, sink)
+                    val extractedFrames = if (parts.size > 1) {
+                        // every decoder opens the file itself
+                        release(null, null, extractor)
+                        extractor = null
+
+                        extractParallel(inputFile, parts, region, sink, progress, cancelable, metrics)
+                    } else {
+                        // Frames are scaled and cropped by the surface, so only the reduced size is read back.
+                        outputSurface = backend.createFrameOutput(format.width, format.height, outputRegion(region))
+
+                        // Create a decoder, and configure it with the format from the extractor.
+                        decoder = backend.createDecoder(format, outputSurface!!)
+
+                        extractToSink(
+                            extractor!!,
+                            trackIndex,
+                            region,
+                            decoder!!,
+                            outputSurface!!,
+                            timeline,
+                            desiredFrames,
+                            0,
+                            sink,
+                            progress,
+                            cancelable,
+                            metrics
+                        )
+                    }
+                    if (extractedFrames >= 0) {
+                        sink.complete()
+                    }
+                    extractedFrames
+                } catch (e: Exception) {
+                    sink.discard()
+                    release(outputSurface, decoder, extractor)
+                    throw e
+                }
+
+                if (savedFrames < 0) {
+                    sink.discard()
+                    release(outputSurface, decoder, extractor)
+                    return@create
+                }
+
+                emitter.onNext(
+                    Progress(
+                        100,
+                        "total saved frame = $savedFrames",
+                        output,
+                        System.currentTimeMillis() - startTime,
+                        metrics
+                    )
                 )
 
+                emitter.onComplete()
+
         }.doOnDispose {
             cancelable.cancel.set(true)
         }.doOnComplete {
@@ -188,223 +305,493 @@ class MediaCodecExtractImages {
     }
 
     /**
-     * @param timeInSec = desired video frame times in sec
-     * @param frameRate = video frame rate
-     * @return list of frame numbers which points exact frame in given time
-     *
-     *
-     * While using mediaCodec we can't seek to desired time, instead of that need to figure out which frame we needed
-     * to calculate that, need to multiply desired frame time with frame rate
+     * Runs of the desired frames, one per decoder. Empty if a single decoder is used.
+     */
+    private fun parallelParts(
+        format: TrackFormat,
+        timeline: FrameTimeline,
+        desiredFrames: List<Int>,
+        parallelism: Int,
+        sink: FrameSink
+    ): List<IntArray> {
+        if (parallelism == 1) {
+            return emptyList()
+        }
+        if (!sink.concurrent) {
+            log { "Extracting with a single decoder, the sink takes frames of one decoder only" }
+            return emptyList()
+        }
+        val cores = Runtime.getRuntime().availableProcessors()
+        val requested = if (parallelism <= 0) cores else Math.min(parallelism, cores)
+        val decoders = Math.min(requested, backend.maxDecoderInstances(format))
+        if (decoders <= 1) {
+            return emptyList()
+        }
+        val frames = FrameSelection.sortedFrames(desiredFrames)
+        val parts = FrameSelection.partition(frames, FrameSelection.gopSegments(frames, timeline), timeline, decoders)
+        log { "Extracting ${frames.size} frames with ${parts.size} of $decoders decoders" }
+        return parts
+    }
+
+    /**
+     * Extracts every run of parts with its own source, decoder and surface on an io thread, all of them deliver to
+     * sink. Frames keep the indices of a single decoder: the frames of a run are numbered after the ones of the runs
+     * before.
      *
+     * A failing run cancels the others, discarding the sink is up to the caller once all of them stopped.
      *
-     * Example = Want to get the frame at 6.34 sec. We have a 30 frame rate video
-     * 6.34*30 = 190,2 th frame -> we need int or long number so need to round it down
+     * @return amount of extracted frames, -1 if cancelled
      */
-    private fun getDesiredFrames(timeInSec: List<Double>, frameRate: Int): List<Int> {
+    private fun extractParallel(
+        inputFile: File,
+        parts: List<IntArray>,
+        region: FrameRegion,
+        sink: FrameSink,
+        progress: FrameProgress,
+        cancelable: Cancelable,
+        metrics: TranscodeMetrics
+    ): Int {
+        var firstFrame = 0
+        val runs = parts.map { frames ->
+            val offset = firstFrame
+            firstFrame += frames.size
+            Completable.fromAction {
+                extractRun(inputFile, frames, offset, region, sink, progress, cancelable, metrics)
+            }.subscribeOn(Schedulers.io()).doOnError { cancelable.cancel.set(true) }
+        }
 
-        val desiredFrames = ArrayList<Int>()
+        Completable.mergeDelayError(runs).blockingAwait()
+        if (cancelable.cancel.get()) {
+            return -1
+        }
+        return progress.savedFrames
+    }
 
-        for (i in timeInSec.indices) {
-            val desiredTimeFrames = (timeInSec[i] * frameRate).toInt()
-            desiredFrames.add(desiredTimeFrames)
+    /**
+     * Extracts frames, a run of whole groups of pictures, see [FrameSelection.partition]. Everything is created and
+     * released on the calling thread, which the EGL context of the surface is bound to.
+     *
+     * @param firstFrame index of the first frame among all desired frames
+     * @param region size and source region of the frames
+     */
+    @Throws(IOException::class)
+    private fun extractRun(
+        inputFile: File,
+        frames: IntArray,
+        firstFrame: Int,
+        region: FrameRegion,
+        sink: FrameSink,
+        progress: FrameProgress,
+        cancelable: Cancelable,
+        metrics: TranscodeMetrics
+    ) {
+        var source: MediaSource? = null
+        var decoder: VideoCodec? = null
+        var outputSurface: FrameOutput? = null
+        try {
+            val runSource = backend.createSource(inputFile.toString())
+            source = runSource
+            val trackIndex = selectTrack(runSource)
+            runSource.selectTrack(trackIndex)
+            val format = runSource.getTrackFormat(trackIndex)
+            val timeline = timeline(inputFile, runSource, format, sampleIndexCache)
+
+            val surface = backend.createFrameOutput(format.width, format.height, outputRegion(region))
+            outputSurface = surface
+            val runDecoder = backend.createDecoder(format, surface)
+            decoder = runDecoder
+
+            extractToSink(
+                runSource,
+                trackIndex,
+                region,
+                runDecoder,
+                surface,
+                timeline,
+                frames.asList(),
+                firstFrame,
+                sink,
+                progress,
+                cancelable,
+                metrics
+            )
+        } finally {
+            release(outputSurface, decoder, source)
         }
-        return desiredFrames
     }
 
     /**
-     * Selects the video track, if any.
+     * Hands the desired frames of a decoder to sink, read back into the frames of a [FramePool] of the sink's size.
+     * Waits until the sink released all of them, as they may still be compressed from the surface.
      *
-     * @return the track index, or -1 if no video track is found.
+     * @param region size of the frames drawn to surface
+     * @param firstFrame index of the first frame among all desired frames
+     * @return amount of extracted frames, -1 if cancelled
      */
-    private fun selectTrack(extractor: MediaExtractor): Int {
-        // Select the first video track we find, ignore the rest.
-        val numTracks = extractor.trackCount
-        for (i in 0 until numTracks) {
-            val format = extractor.getTrackFormat(i)
-            val mime = format.getString(MediaFormat.KEY_MIME)
-            if (mime!!.startsWith("video/")) {
-                log("Extractor selected track $i ($mime): $format")
-                return i
+    @Throws(IOException::class)
+    private fun extractToSink(
+        extractor: MediaSource,
+        trackIndex: Int,
+        region: FrameRegion,
+        decoder: VideoCodec,
+        surface: FrameOutput,
+        timeline: FrameTimeline,
+        desiredFrames: List<Int>,
+        firstFrame: Int,
+        sink: FrameSink,
+        progress: FrameProgress,
+        cancelable: Cancelable,
+        metrics: TranscodeMetrics
+    ): Int {
+        val pool = FramePool(
+            sink.framesInFlight,
+            region.width,
+            region.height,
+            sink.pixelFormat,
+            surface,
+            metrics,
+            progress::frameWritten
+        )
+        val reader = FrameReader(sink.pixelFormat, region.width, region.height)
+        try {
+            val extractedFrames = doExtract(
+                extractor,
+                trackIndex,
+                decoder,
+                surface,
+                timeline,
+                desiredFrames,
+                cancelable,
+                metrics
+            ) { frameIndex, presentationTimeUs ->
+                val frame = pool.acquire(cancelable)
+                if (frame != null) {
+                    frame.index = firstFrame + frameIndex
+                    frame.presentationTimeUs = presentationTimeUs
+                    reader.read(surface, frame, metrics)
+                    sink.onFrame(frame)
+                }
+                // progress is reported once the sink released the frame
+            }
+            if (extractedFrames < 0 || !pool.awaitReleased(cancelable)) {
+                return -1
             }
+            return extractedFrames
+        } finally {
+            reader.release()
         }
-
-        return -1
     }
 
     internal class Cancelable {
         val cancel = AtomicBoolean(false)
     }
 
+    /**
+     * Counts released frames and reports progress with the share of them. Frames may be released on several threads.
+     *
+     * @param totalFrames amount of distinct desired frames
+     */
+    private class FrameProgress(
+        private val totalFrames: Int,
+        private val emitter: ObservableEmitter<Progress>,
+        private val startTime: Long,
+        private val metrics: TranscodeMetrics
+    ) {
+
+        var savedFrames = 0
+            @Synchronized get
+            private set
+
+        @Synchronized
+        fun frameWritten(uri: Uri?) {
+            savedFrames++
+            metrics.frameCompleted()
+            emitter.onNext(
+                Progress(
+                    savedFrames * 100 / totalFrames,
+                    null,
+                    uri,
+                    System.currentTimeMillis() - startTime,
+                    metrics
+                )
+            )
+        }
+    }
+
+    /**
+     * Reads the drawn frame of a surface back into an [ExtractedFrame] of pixelFormat. I420 is converted from RGBA on
+     * the decoding thread.
+     */
+    private class FrameReader(pixelFormat: FramePixelFormat, private val width: Int, private val height: Int) {
+
+        private val yuvConverter = if (pixelFormat == FramePixelFormat.I420) YuvConverter() else null
+
+        private val rgba = if (yuvConverter != null) pixelBuffer(width, height) else null
+
+        fun read(surface: FrameOutput, frame: ExtractedFrame, metrics: TranscodeMetrics) {
+            if (yuvConverter == null || rgba == null) {
+                metrics.time(Stage.READ_PIXELS) { surface.readPixels(frame.pixels) }
+                return
+            }
+            metrics.time(Stage.READ_PIXELS) { surface.readPixels(rgba) }
+            metrics.time(Stage.COLOR_CONVERT) {
+                val pixels = yuvConverter.argbBuffer(width, height)
+                val yuv = yuvConverter.yuvBuffer(width, height)
+                YuvConverter.readRgba(rgba, pixels)
+                yuvConverter.encodeYUV420P(yuv, pixels, width, height, YuvConverter.RED_SHIFT_ABGR)
+                frame.pixels.clear()
+                frame.pixels.put(yuv)
+                frame.pixels.flip()
+            }
+        }
+
+        fun release() {
+            yuvConverter?.release()
+        }
+    }
+
     companion object {
 
         private val TAG = "ExtractMpegFrames"
 
         /**
-         * Work loop.
+         * Default threads of the [FrameWriterPool] of a file sink: JPEG compression is CPU bound, but every thread
+         * also holds a frame and a bitmap, so at most 4.
+         */
+        val WRITER_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors())
+
+        /**
+         * RGBA buffer for [FrameOutput.readPixels] of a frame of the given size.
+         */
+        private fun pixelBuffer(width: Int, height: Int): ByteBuffer =
+            ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN)
+
+        /**
+         * Region to create frame outputs with, null for full size frames.
+         */
+        private fun outputRegion(region: FrameRegion): FrameRegion? = if (region.isIdentity) null else region
+
+        /**
+         * Selects the video track, if any.
+         *
+         * @return the track index, or -1 if no video track is found.
+         */
+        internal fun selectTrack(extractor: MediaSource): Int {
+            // Select the first video track we find, ignore the rest.
+            val numTracks = extractor.trackCount
+            for (i in 0 until numTracks) {
+                val format = extractor.getTrackFormat(i)
+                val mime = format.mimeType
+                if (mime.startsWith("video/")) {
+                    log { "Extractor selected track $i ($mime): $format" }
+                    return i
+                }
+            }
+
+            return -1
+        }
+
+        /**
+         * Timeline of the selected track of extractor, from the sample table of inputFile if it's an MP4 file,
+         * otherwise from the frame rate of format.
+         *
+         * @param indexCache directory caching sample tables, null to always parse
+         */
+        @Throws(IOException::class)
+        internal fun timeline(inputFile: File, extractor: MediaSource, format: TrackFormat, indexCache: File?): FrameTimeline {
+            val originUs = Math.max(0L, extractor.sampleTime)
+            try {
+                return SampleIndexTimeline(Mp4SampleIndex.load(inputFile, indexCache), originUs)
+            } catch (e: IOException) {
+                log { "No sample table for $inputFile: ${e.message}" }
+            }
+            if (format.frameRate <= 0) {
+                throw IOException("Video track of $inputFile has no frame rate, unable to locate frames")
+            }
+            return ConstantRateTimeline(format.frameRate, originUs, format.durationUs) { timeUs ->
+                extractor.seekTo(timeUs, CodecConstants.SEEK_TO_PREVIOUS_SYNC)
+                extractor.sampleTime
+            }
+        }
+
+        /**
+         * Work loop. Every desired frame is latched and drawn to outputSurface, then handed to onFrame together with
+         * its index among the desired frames and its presentation time. Reporting progress is up to onFrame, a frame
+         * handed to a sink only counts once the sink released it.
+         *
+         * Only the groups of pictures holding desired frames are decoded: the desired frames are grouped by the sync
+         * sample timeline locates before them, see [FrameSelection.gopSegments]. Each group starts with a seek to its
+         * sync sample and a decoder flush, unless the input already reached it, and decoding stops right after the last
+         * desired frame.
+         * Frame numbers are looked up by presentation time in timeline, so they stay right across seeks, and are tested
+         * against the sorted desired frames with a [FrameCursor].
+         *
+         * Demuxing, decoding and drawing are recorded to metrics, the stages of onFrame and counting completed frames
+         * are up to it.
+         *
+         * Releasing the codec objects is up to the caller.
+         *
+         * @return amount of handled frames, -1 if cancelled
          */
         @Throws(IOException::class)
         internal fun doExtract(
-            extractor: MediaExtractor,
+            extractor: MediaSource,
             trackIndex: Int,
-            decoder: MediaCodec,
-            outputSurface: CodecOutputSurface,
+            decoder: VideoCodec,
+            outputSurface: FrameOutput,
+            timeline: FrameTimeline,
             desiredFrames: List<Int>,
-            outputPath: String?,
-            photoQuality: Int,
-            observer: ObservableEmitter<Progress>,
-            totalFrame: Int,
-            startTime: Long,
-            cancel: Cancelable
-        ) {
+            cancel: Cancelable,
+            metrics: TranscodeMetrics,
+            onFrame: (frameIndex: Int, presentationTimeUs: Long) -> Unit
+        ): Int {
             val TIMEOUT_USEC = 10000
-            val decoderInputBuffers = decoder.inputBuffers
-            val info = MediaCodec.BufferInfo()
+            val info = SampleInfo()
             var inputChunk = 0
-            var decodeCount = 0
-            var frameSaveTime: Long = 0
             var frameCounter = 0
 
+            val frames = FrameSelection.sortedFrames(desiredFrames)
+            val cursor = FrameCursor(frames)
+            val segments = metrics.time(Stage.DEMUX) {
+                FrameSelection.gopSegments(frames, timeline)
+            }
+            log { "Decoding ${segments.size} groups of pictures for ${desiredFrames.size} frames" }
+            if (segments.isEmpty()) {
+                return 0
+            }
+            var segment = 0
+            metrics.time(Stage.DEMUX) { extractor.seekTo(segments[0].syncTimeUs, CodecConstants.SEEK_TO_PREVIOUS_SYNC) }
+
             var outputDone = false
             var inputDone = false
             while (!outputDone) {
 
                 if (cancel.cancel.get()) {
-                    outputPath?.let { MediaCodecTranscoder.deleteFolder(it) }
-                    release(outputSurface, decoder, extractor)
-                    return
+                    return -1
                 }
-                log("loop")
+                log { "loop" }
 
                 // Feed more data to the decoder.
                 if (!inputDone) {
-                    val inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC.toLong())
+                    val inputBufIndex = metrics.time(Stage.DECODE) { decoder.dequeueInputBuffer(TIMEOUT_USEC.toLong()) }
                     if (inputBufIndex >= 0) {
-                        log("inputBufIndex $inputBufIndex")
+                        log { "inputBufIndex $inputBufIndex" }
 
-                        val inputBuf = decoderInputBuffers[inputBufIndex]
+                        val inputBuf = decoder.getInputBuffer(inputBufIndex)
                         // Read the sample data into the ByteBuffer.  This neither respects nor
                         // updates inputBuf's position, limit, etc.
-                        val chunkSize = extractor.readSampleData(inputBuf, 0)
+                        val chunkSize = metrics.time(Stage.DEMUX) { extractor.readSampleData(inputBuf, 0) }
                         if (chunkSize < 0) {
                             // End of stream -- send empty frame with EOS flag set.
                             decoder.queueInputBuffer(
                                 inputBufIndex, 0, 0, 0L,
-                                MediaCodec.BUFFER_FLAG_END_OF_STREAM
+                                CodecConstants.BUFFER_FLAG_END_OF_STREAM
                             )
                             inputDone = true
-                            log("sent input EOS")
+                            log { "sent input EOS" }
                         } else {
                             if (extractor.sampleTrackIndex != trackIndex) {
-                                log(
+                                log {
                                     "WEIRD: got sample from track " +
                                             extractor.sampleTrackIndex + ", expected " + trackIndex
-                                )
+                                }
                             }
 
-                            log("decode count = $decodeCount")
-
                             val presentationTimeUs = extractor.sampleTime
 
-                            decoder.queueInputBuffer(
-                                inputBufIndex, 0, chunkSize,
-                                presentationTimeUs, 0 /*flags*/
-                            )
+                            metrics.time(Stage.DECODE) {
+                                decoder.queueInputBuffer(
+                                    inputBufIndex, 0, chunkSize,
+                                    presentationTimeUs, 0 /*flags*/
+                                )
+                            }
 
-                            log(
+                            log {
                                 "submitted frame " + inputChunk + " to dec, size=" +
                                         chunkSize
-                            )
+                            }
 
                             inputChunk++
-                            extractor.advance()
+                            metrics.time(Stage.DEMUX) { extractor.advance() }
                         }
 
                     } else {
-                        log("input buffer not available")
+                        log { "input buffer not available" }
                     }
                 }
 
                 if (!outputDone) {
-                    val decoderStatus = decoder.dequeueOutputBuffer(info, TIMEOUT_USEC.toLong())
-                    if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    val decoderStatus = metrics.time(Stage.DECODE) { decoder.dequeueOutputBuffer(info, TIMEOUT_USEC.toLong()) }
+                    if (decoderStatus == CodecConstants.INFO_TRY_AGAIN_LATER) {
                         // no output available yet
-                        log("no output from decoder available")
-                    } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                        log { "no output from decoder available" }
+                    } else if (decoderStatus == CodecConstants.INFO_OUTPUT_BUFFERS_CHANGED) {
                         // not important for us, since we're using Surface
-                        log("decoder output buffers changed")
-                    } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        log { "decoder output buffers changed" }
+                    } else if (decoderStatus == CodecConstants.INFO_OUTPUT_FORMAT_CHANGED) {
                         val newFormat = decoder.outputFormat
-                        log("decoder output format changed: $newFormat")
+                        log { "decoder output format changed: $newFormat" }
                     } else if (decoderStatus < 0) {
                         //fail("unexpected result from decoder.dequeueOutputBuffer: " + decoderStatus);
                     } else { // decoderStatus >= 0
-                        log(
+                        log {
                             "surface decoder given buffer " + decoderStatus +
                                     " (size=" + info.size + ")"
-                        )
-                        if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
-                            log("output EOS")
+                        }
+                        if (info.flags and CodecConstants.BUFFER_FLAG_END_OF_STREAM != 0) {
+                            log { "output EOS" }
                             outputDone = true
                         }
 
-                        val doRender = info.size != 0
+                        val hasFrame = info.size != 0
+                        val decodeCount = timeline.frameIndex(info.presentationTimeUs)
+                        val doRender = hasFrame && cursor.hit(decodeCount)
 
                         // As soon as we call releaseOutputBuffer, the buffer will be forwarded
                         // to SurfaceTexture to convert to a texture.  The API doesn't guarantee
                         // that the texture will be available before the call returns, so we
                         // need to wait for the onFrameAvailable callback to fire.
+                        // Frames in front of the desired ones are dropped without rendering.
                         decoder.releaseOutputBuffer(decoderStatus, doRender)
                         if (doRender) {
-                            log("awaiting decode of frame $decodeCount")
+                            log { "awaiting decode of frame $decodeCount" }
 
-                            if (desiredFrames.contains(decodeCount)) {
+                            metrics.time(Stage.DRAW) {
                                 outputSurface.awaitNewImage()
                                 outputSurface.drawImage(true)
-                                val outputFile = File(
-                                    outputPath,
-                                    String.format("frame-%03d.jpg", frameCounter)
-                                )
-                                val startWhen = System.nanoTime()
-                                outputSurface.saveFrame(outputFile.toString(), photoQuality)
-                                frameSaveTime += System.nanoTime() - startWhen
-                                frameCounter++
-
-                                log("saving frames $decodeCount")
-
-                                observer.onNext(
-                                    Progress(
-                                        (decodeCount.toFloat() / totalFrame.toFloat() * 100).toInt(),
-                                        null,
-                                        Uri.parse(outputFile.absolutePath),
-                                        System.currentTimeMillis() - startTime
-                                    )
-                                )
-
                             }
-                            if (decodeCount < totalFrame) {
-                                decodeCount++
+                            onFrame(frameCounter, info.presentationTimeUs)
+                            frameCounter++
+
+                            log { "saving frames $decodeCount" }
+                        }
+
+                        if (cursor.isDone) {
+                            log { "last desired frame decoded" }
+                            outputDone = true
+                        } else if (hasFrame && decodeCount >= segments[segment].lastFrame) {
+                            // the cursor isn't done yet, so a later segment holds the remaining frames
+                            segment++
+                            val syncTimeUs = segments[segment].syncTimeUs
+                            val position = extractor.sampleTime
+                            // samples from the next sync on may already be queued, skip only real gaps
+                            if (position in 0 until syncTimeUs) {
+                                log { "seeking from $position to sync sample at $syncTimeUs" }
+                                metrics.time(Stage.DEMUX) { extractor.seekTo(syncTimeUs, CodecConstants.SEEK_TO_PREVIOUS_SYNC) }
+                                metrics.time(Stage.DECODE) { decoder.flush() }
                             }
                         }
                     }
                 }
             }
 
-            observer.onNext(
-                Progress(
-                    (decodeCount.toFloat() / totalFrame.toFloat() * 100).toInt(),
-                    "total saved frame = $frameCounter",
-                    Uri.parse(outputPath),
-                    System.currentTimeMillis() - startTime
-                )
-            )
-
-            observer.onComplete()
+            return frameCounter
         }
 
-        private fun release(
-            outputSurface: CodecOutputSurface?,
-            decoder: MediaCodec?,
-            extractor: MediaExtractor?
+        internal fun release(
+            outputSurface: FrameOutput?,
+            decoder: VideoCodec?,
+            extractor: MediaSource?
         ) {
             outputSurface?.release()
             decoder?.stop()
@@ -0,0 +1,257 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import android.net.Uri
+import com.exozet.transcoder.ffmpeg.Progress
+import com.exozet.transcoder.ffmpeg.Stage
+import com.exozet.transcoder.ffmpeg.TranscodeMetrics
+import com.exozet.transcoder.ffmpeg.log
+import io.reactivex.Completable
+import io.reactivex.Observable
+import io.reactivex.ObservableEmitter
+import io.reactivex.schedulers.Schedulers
+import java.io.File
+import java.io.FileNotFoundException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Encodes selected frames of a video into a new video without intermediate files.
+ *
+ * The decoding thread draws every selected frame, reads its RGBA pixels into one of a fixed set of buffers and hands
+ * it to the encoding thread through a bounded queue. The encoding thread converts the pixels to YUV, feeds the encoder
+ * and returns the buffer. At most [MediaConfig.decodePrefetch] frames are in flight, also limited by
+ * [MediaConfig.decodeMemoryBudget]; once all buffers are taken the decoder waits for the encoder.
+ *
+ * @param sampleIndexCache directory caching the parsed MP4 sample tables, null to parse them every time
+ */
+class MediaCodecStreamFrames(
+    private val config: MediaConfig = MediaConfig(),
+    private val backend: CodecBackend = AndroidCodecBackend,
+    private val sampleIndexCache: File? = Mp4SampleIndex.defaultCacheDirectory()
+) {
+
+    /**
+     * Encodes the frames at timeInSec of inputVideo into outputUri, using the size of inputVideo.
+     */
+    fun streamFrames(
+        inputVideo: Uri,
+        timeInSec: List<Double>,
+        outputUri: Uri
+    ): Observable<Progress> {
+
+        val cancelable = MediaCodecExtractImages.Cancelable()
+
+        val metrics = TranscodeMetrics()
+
+        return Observable.create<Progress> { emitter ->
+
+            if (emitter.isDisposed)
+                return@create
+
+            val startTime = System.currentTimeMillis()
+            val inputFile = File(inputVideo.path!!)
+            if (!inputFile.canRead()) {
+                emitter.onError(FileNotFoundException("Unable to read $inputFile"))
+                return@create
+            }
+            val outputFile = File(outputUri.path!!)
+
+            var extractor: MediaSource? = null
+            var outputSurface: FrameOutput? = null
+            var decoder: VideoCodec? = null
+            var encoderPipeline: EncoderPipeline? = null
+            var encoding: Completable? = null
+            val yuvConverter = YuvConverter(config.colorConversionParallelism)
+
+            try {
+                val source = backend.createSource(inputFile.toString())
+                extractor = source
+                val trackIndex = MediaCodecExtractImages.selectTrack(source)
+                if (trackIndex < 0) {
+                    emitter.onError(RuntimeException("No video track found in $inputFile"))
+                    return@create
+                }
+                source.selectTrack(trackIndex)
+
+                val format = source.getTrackFormat(trackIndex)
+                val width = format.width
+                val height = format.height
+                val timeline = MediaCodecExtractImages.timeline(inputFile, source, format, sampleIndexCache)
+                val desiredFrames = FrameSelection.desiredFrames(timeInSec, timeline)
+                log { "Streaming ${desiredFrames.size} frames of ${width}x$height" }
+
+                val frameRate = config.frameRate ?: 0
+                val colorFormat = MediaCodecCreateVideo.selectColorFormat(backend, config.mimeType)
+                val encoder = backend.createEncoder(
+                    config.mimeType, width, height, config.bitRate ?: 0, frameRate, colorFormat, config.iFrameInterval ?: 0
+                )
+                val sink = try {
+                    backend.createSink(outputFile.absolutePath)
+                } catch (e: Exception) {
+                    encoder.stop()
+                    encoder.release()
+                    throw e
+                }
+                val pipeline = EncoderPipeline(encoder, sink, metrics, cancelable.cancel)
+                encoderPipeline = pipeline
+
+                val surface = backend.createFrameOutput(width, height)
+                outputSurface = surface
+                val frameDecoder = backend.createDecoder(format, surface)
+                decoder = frameDecoder
+
+                val inFlight = MediaCodecCreateVideo.decodeWindow(config.decodePrefetch, config.decodeMemoryBudget, width, height)
+                log { "Streaming with $inFlight frames in flight" }
+                val freeBuffers = ArrayBlockingQueue<ByteBuffer>(inFlight)
+                repeat(inFlight) {
+                    freeBuffers.add(ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN))
+                }
+                val readyFrames = ArrayBlockingQueue<ByteBuffer>(inFlight + 1)
+
+                val serialEmitter = emitter.serialize()
+                val encodingThread = Completable.fromAction {
+                    encodeFrames(pipeline, yuvConverter, colorFormat, width, height, frameRate, desiredFrames.size,
+                        freeBuffers, readyFrames, outputUri, startTime, cancelable, metrics, serialEmitter)
+                }.subscribeOn(Schedulers.computation()).cache()
+                encoding = encodingThread
+                encodingThread.subscribe({}, { cancelable.cancel.set(true) })
+
+                val streamedFrames = MediaCodecExtractImages.doExtract(
+                    source,
+                    trackIndex,
+                    frameDecoder,
+                    surface,
+                    timeline,
+                    desiredFrames,
+                    cancelable,
+                    metrics
+                ) { _, _ ->
+                    val pixels = take(freeBuffers, cancelable)
+                    if (pixels != null) {
+                        metrics.bufferAcquired()
+                        metrics.time(Stage.READ_PIXELS) { surface.readPixels(pixels) }
+                        readyFrames.put(pixels)
+                    }
+                }
+
+                if (streamedFrames >= 0) {
+                    readyFrames.put(END_OF_STREAM)
+                }
+                // rethrows a failure of the encoding thread
+                encodingThread.blockingAwait()
+
+                if (cancelable.cancel.get()) {
+                    return@create
+                }
+
+                serialEmitter.onNext(
+                    Progress(
+                        100,
+                        "total encoded frames = ${pipeline.writtenSamples}",
+                        Uri.parse(outputFile.absolutePath),
+                        System.currentTimeMillis() - startTime,
+                        metrics
+                    )
+                )
+                serialEmitter.onComplete()
+            } catch (e: Exception) {
+                cancelable.cancel.set(true)
+                emitter.tryOnError(e)
+            } finally {
+                // the encoding thread stops on cancellation, wait for it before releasing the encoder
+                encoding?.onErrorComplete()?.blockingAwait()
+                MediaCodecExtractImages.release(outputSurface, decoder, extractor)
+                encoderPipeline?.release()
+                yuvConverter.release()
+                if (cancelable.cancel.get()) {
+                    outputFile.delete()
+                }
+            }
+
+        }.doOnDispose {
+            cancelable.cancel.set(true)
+        }
+    }
+
+    companion object {
+
+        private const val POLL_MILLIS = 10L
+
+        /**
+         * Marks the end of the frames in the ready queue.
+         */
+        private val END_OF_STREAM: ByteBuffer = ByteBuffer.allocate(0)
+
+        /**
+         * Encoding thread, converts and encodes ready frames until [END_OF_STREAM] or cancellation.
+         */
+        private fun encodeFrames(
+            encoderPipeline: EncoderPipeline,
+            yuvConverter: YuvConverter,
+            colorFormat: Int,
+            width: Int,
+            height: Int,
+            frameRate: Int,
+            frameCount: Int,
+            freeBuffers: BlockingQueue<ByteBuffer>,
+            readyFrames: BlockingQueue<ByteBuffer>,
+            outputUri: Uri,
+            startTime: Long,
+            cancel: MediaCodecExtractImages.Cancelable,
+            metrics: TranscodeMetrics,
+            emitter: ObservableEmitter<Progress>
+        ) {
+            val pixels = yuvConverter.argbBuffer(width, height)
+            val yuv = yuvConverter.yuvBuffer(width, height)
+            var frameIndex = 0
+
+            while (true) {
+                val frame = take(readyFrames, cancel) ?: return
+                if (frame === END_OF_STREAM) {
+                    break
+                }
+                val start = metrics.start()
+                YuvConverter.readRgba(frame, pixels)
+                // pixels have been copied, the decoder can reuse the buffer while this frame is encoded
+                freeBuffers.put(frame)
+                metrics.bufferReleased()
+
+                MediaCodecCreateVideo.convert(yuvConverter, colorFormat, yuv, pixels, width, height, YuvConverter.RED_SHIFT_ABGR)
+                metrics.record(Stage.COLOR_CONVERT, start)
+                encoderPipeline.queueFrame(yuv, MediaCodecCreateVideo.computePresentationTime(frameIndex.toLong(), frameRate))
+                metrics.frameCompleted()
+                frameIndex++
+
+                emitter.onNext(
+                    Progress(
+                        (frameIndex.toFloat() / frameCount.toFloat() * 100).toInt(),
+                        null,
+                        outputUri,
+                        System.currentTimeMillis() - startTime,
+                        metrics
+                    )
+                )
+            }
+
+            encoderPipeline.finish(MediaCodecCreateVideo.computePresentationTime(frameIndex.toLong(), frameRate))
+        }
+
+        /**
+         * Waits for the next element of queue.
+         *
+         * @return null if cancelled meanwhile
+         */
+        private fun <T> take(queue: BlockingQueue<T>, cancel: MediaCodecExtractImages.Cancelable): T? {
+            while (!cancel.cancel.get()) {
+                val element = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)
+                if (element != null) {
+                    return element
+                }
+            }
+            return null
+        }
+    }
+}
@@ -5,22 +5,37 @@ import android.graphics.BitmapFactory
 import android.net.Uri
 import android.util.Log
 import androidx.annotation.IntRange
+import com.exozet.transcoder.ffmpeg.BatchProgress
+import com.exozet.transcoder.ffmpeg.ExtractionJob
+import com.exozet.transcoder.ffmpeg.FrameStore
+import com.exozet.transcoder.ffmpeg.FrameStoreReader
 import com.exozet.transcoder.ffmpeg.Progress
+import com.exozet.transcoder.ffmpeg.TranscodeBatch
 import com.exozet.transcoder.ffmpeg.log
 import io.reactivex.Observable
 import java.io.File
+import java.io.FileNotFoundException
 
 object MediaCodecTranscoder {
 
+    /**
+     * @param parallelism amount of decoders extracting groups of pictures at the same time, 0 for one per core. Limited
+     * by the cores and the decoder instances the codec supports; pays off for many frames spread over a long video.
+     * @param geometry size and source region of the frames, e.g. for thumbnails; scaled and cropped on the GPU, so
+     * only the reduced frames are read back, compressed and stored
+     */
     fun extractFramesFromVideo(
         context: Context,
         frameTimes: List<Double>,
         inputVideo: Uri,
         id: String,
         outputDir: Uri?,
-        @IntRange(from = 1, to = 100) photoQuality: Int = 100
+        @IntRange(from = 1, to = 100) photoQuality: Int = 100,
+        backend: CodecBackend = AndroidCodecBackend,
+        @IntRange(from = 0) parallelism: Int = 1,
+        geometry: FrameGeometry = FrameGeometry()
     ): Observable<Progress> {
-        val mediaCodec = MediaCodecExtractImages()
+        val mediaCodec = MediaCodecExtractImages(backend)
 
         val internalStoragePath: String = context.filesDir.absolutePath
         val startTime = System.currentTimeMillis()
@@ -32,17 +47,117 @@ object MediaCodecTranscoder {
         if (!file.exists())
             file.mkdirs()
 
-        return mediaCodec.extractMpegFrames(inputVideo, frameTimes, Uri.parse(localSavePath), photoQuality)
+        return mediaCodec.extractMpegFrames(inputVideo, frameTimes, Uri.parse(localSavePath), photoQuality, parallelism, geometry)
+    }
+
+    /**
+     * Extracts the frames of many videos, e.g. to re-process a library of clips. Each job is extracted like
+     * [extractFramesFromVideo] with a single decoder.
+     *
+     * Up to concurrency jobs run at the same time, but never more decoders of a mime type than the codec supports
+     * instances, running and idle ones together; jobs beyond wait for a running one to end before they create their
+     * decoder. Decoders and surfaces are reused between jobs through a [PooledCodecBackend], unless backend already is
+     * one. Failed jobs don't stop the batch, see [BatchProgress].
+     *
+     * @param concurrency jobs running at the same time, 0 for one per core
+     */
+    fun extractFramesFromVideos(
+        jobs: List<ExtractionJob<Double>>,
+        @IntRange(from = 1, to = 100) photoQuality: Int = 100,
+        backend: CodecBackend = AndroidCodecBackend,
+        @IntRange(from = 0) concurrency: Int = 0,
+        geometry: FrameGeometry = FrameGeometry()
+    ): Observable<BatchProgress> {
+        val workers = if (concurrency > 0) concurrency else Runtime.getRuntime().availableProcessors()
+
+        return Observable.defer {
+            val pool = backend as? PooledCodecBackend ?: PooledCodecBackend(backend, maxIdle = workers)
+            val mediaCodec = MediaCodecExtractImages(DecoderLimits(pool))
+
+            TranscodeBatch.run(jobs.size, workers) { index ->
+                val job = jobs[index]
+                File(job.outputDir.path!!).mkdirs()
+
+                mediaCodec.extractMpegFrames(job.inputVideo, job.frameTimes, job.outputDir, photoQuality, 1, geometry)
+            }.doFinally {
+                if (pool !== backend) {
+                    pool.close()
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the frames to sink in memory instead of writing them to files, see [FrameSink]. [DirectoryFrameSink],
+     * [FrameStoreSink] and [Y4mFrameSink] write them to files like the other extraction methods.
+     *
+     * @param parallelism see [extractFramesFromVideo], only used if the sink is [FrameSink.concurrent]
+     * @param geometry see [extractFramesFromVideo]
+     */
+    fun extractFramesFromVideo(
+        frameTimes: List<Double>,
+        inputVideo: Uri,
+        sink: FrameSink,
+        backend: CodecBackend = AndroidCodecBackend,
+        @IntRange(from = 0) parallelism: Int = 1,
+        geometry: FrameGeometry = FrameGeometry()
+    ): Observable<Progress> =
+        MediaCodecExtractImages(backend).extractFrames(inputVideo, frameTimes, sink, parallelism, geometry)
+
+    /**
+     * Extracts the frames into a single [FrameStore] file, which [createVideoFromFrames] accepts in place of a
+     * frame folder.
+     *
+     * @param storeFile file the frames are written to, replaced if it exists
+     * @param geometry see [extractFramesFromVideo]
+     */
+    fun extractFramesToStore(
+        frameTimes: List<Double>,
+        inputVideo: Uri,
+        storeFile: Uri,
+        @IntRange(from = 1, to = 100) photoQuality: Int = 100,
+        backend: CodecBackend = AndroidCodecBackend,
+        geometry: FrameGeometry = FrameGeometry()
+    ): Observable<Progress> {
+        File(storeFile.path!!).parentFile?.mkdirs()
+        return MediaCodecExtractImages(backend).extractMpegFramesToStore(inputVideo, frameTimes, storeFile, photoQuality, geometry)
     }
 
+    /**
+     * Extracts the frames losslessly as raw I420 into a single Y4M file, which [createVideoFromFrames] accepts in
+     * place of a frame folder and encodes without any image decoding or color conversion. Needs
+     * width * height * 1.5 bytes per frame.
+     *
+     * @param rawFile file the frames are written to, replaced if it exists
+     * @param geometry see [extractFramesFromVideo]
+     */
+    fun extractFramesToRaw(
+        frameTimes: List<Double>,
+        inputVideo: Uri,
+        rawFile: Uri,
+        backend: CodecBackend = AndroidCodecBackend,
+        geometry: FrameGeometry = FrameGeometry()
+    ): Observable<Progress> {
+        File(rawFile.path!!).parentFile?.mkdirs()
+        return MediaCodecExtractImages(backend).extractMpegFramesToRaw(inputVideo, frameTimes, rawFile, geometry)
+    }
+
+    /**
+     * Fails with an [IllegalArgumentException] if there are no frames to encode.
+     *
+     * @param frameFolder directory of extracted frames, a [FrameStore] file or a raw Y4M file
+     */
     fun createVideoFromFrames(
         frameFolder: Uri,
         outputUri: Uri,
         config: MediaConfig = MediaConfig(),
-        deleteFramesOnComplete: Boolean = true
+        deleteFramesOnComplete: Boolean = true,
+        backend: CodecBackend = AndroidCodecBackend
     ): Observable<Progress> {
 
         var mediaCodecCreateVideo : MediaCodecCreateVideo? = null
+        var store: FrameStoreReader? = null
+        var raw: Y4mReader? = null
         val shouldCancel =  MediaCodecExtractImages.Cancelable()
 
         return Observable.create<Progress> { emitter ->
@@ -50,11 +165,51 @@ object MediaCodecTranscoder {
             if (emitter.isDisposed)
                 return@create
 
-            val items = File(frameFolder.path!!).listFiles()?.sorted() ?: return@create
-            
-            mediaCodecCreateVideo = MediaCodecCreateVideo(config)
+            val input = File(frameFolder.path!!)
+            if (Y4m.isY4m(input)) {
+                val reader = Y4mReader(input.absolutePath)
+                raw = reader
+                if (reader.frameCount == 0) {
+                    emitter.onError(IllegalArgumentException("No frames in $input"))
+                    return@create
+                }
+
+                mediaCodecCreateVideo = MediaCodecCreateVideo(config, backend)
+                mediaCodecCreateVideo!!.startEncoding(reader, outputUri, shouldCancel, emitter)
+                return@create
+            }
+
+            if (FrameStore.isFrameStore(input)) {
+                val reader = FrameStoreReader(input)
+                store = reader
+                if (reader.frameCount == 0) {
+                    emitter.onError(IllegalArgumentException("No frames in $input"))
+                    return@create
+                }
+
+                mediaCodecCreateVideo = MediaCodecCreateVideo(config, backend)
 
-            val firstFrame = BitmapFactory.decodeFile(items.firstOrNull()?.absolutePath ?: return@create)
+                val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+                val frame = reader.frameBytes(0)
+                BitmapFactory.decodeByteArray(frame, 0, frame.size, bounds)
+
+                mediaCodecCreateVideo!!.startEncoding(reader, bounds.outWidth, bounds.outHeight, outputUri, shouldCancel, emitter)
+                return@create
+            }
+
+            val items = input.listFiles()?.sorted()
+            if (items == null) {
+                emitter.onError(FileNotFoundException("Unable to read $input"))
+                return@create
+            }
+            if (items.isEmpty()) {
+                emitter.onError(IllegalArgumentException("No frames in $input"))
+                return@create
+            }
+
+            mediaCodecCreateVideo = MediaCodecCreateVideo(config, backend)
+
+            val firstFrame = BitmapFactory.decodeFile(items.first().absolutePath)
 
             mediaCodecCreateVideo!!.startEncoding(items,firstFrame.width, firstFrame.height, outputUri, shouldCancel, emitter)
 
@@ -62,11 +217,30 @@ object MediaCodecTranscoder {
             
         }.doOnDispose {
             shouldCancel.cancel.set(true)
+            // stops reading frames before the readers are closed below
+            mediaCodecCreateVideo?.cancel()
             mediaCodecCreateVideo = null
+        }.doFinally {
+            store?.close()
+            store = null
+            raw?.close()
+            raw = null
         }
 
     }
 
+    /**
+     * Creates a video from frames of inputVideo in one pass, decoded frames are handed to the encoder in memory
+     * instead of going through JPEG files as with [extractFramesFromVideo] and [createVideoFromFrames].
+     */
+    fun createVideoFromVideoFrames(
+        inputVideo: Uri,
+        frameTimes: List<Double>,
+        outputUri: Uri,
+        config: MediaConfig = MediaConfig(),
+        backend: CodecBackend = AndroidCodecBackend
+    ): Observable<Progress> = MediaCodecStreamFrames(config, backend).streamFrames(inputVideo, frameTimes, outputUri)
+
     /**
      * Deletes directory path recursively.
      */
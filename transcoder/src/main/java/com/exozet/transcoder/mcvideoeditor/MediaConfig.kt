@@ -35,6 +35,26 @@ data class MediaConfig(
     /**
      * The mime type of the content. This value must never be null.
      */
-    val mimeType: String = "video/avc"
+    val mimeType: String = "video/avc",
+
+    /**
+     * Amount of threads used to convert a single frame from RGB to YUV.
+     * Frames are split into horizontal bands which are converted in parallel, e.g. use
+     * Runtime.getRuntime().availableProcessors() on multi-core devices.
+     * 1 converts on the encoding thread.
+     */
+    val colorConversionParallelism: Int = 1,
+
+    /**
+     * Max amount of decoded frames waiting for the encoder while merging frames into a video.
+     * Bounds the peak memory independent of the sequence length.
+     */
+    val decodePrefetch: Int = 4,
+
+    /**
+     * Optional memory budget in bytes for decoded frames waiting for the encoder.
+     * If set, the prefetch window is limited to as many ARGB_8888 frames as fit into it, but never less than 1.
+     */
+    val decodeMemoryBudget: Long? = null
 
 )
\ No newline at end of file
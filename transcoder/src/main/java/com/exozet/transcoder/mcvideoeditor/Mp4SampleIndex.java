@@ -0,0 +1,614 @@
+package com.exozet.transcoder.mcvideoeditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Sample table of the first video track of an MP4 / MOV file: presentation time, sync flag, byte offset and size of
+ * every sample, read from the moov/trak/mdia/minf/stbl boxes (stts, ctts, stss, stsz / stz2, stsc, stco / co64).
+ * <p>
+ * Only the moov box is mapped, the media data is never touched. Times are in microseconds and truncated like
+ * MediaExtractor does, samples are numbered in decoding order, frames in presentation order. Edit lists and fragmented
+ * files are not supported.
+ * <p>
+ * Parsing a long recording takes a few ms, {@link #load(File, File)} keeps the index in a cache directory keyed by
+ * a SHA-1 of path, size and modification time of the video. Reading an entry marks it as used; once the entries exceed
+ * {@link #MAX_CACHE_BYTES}, the least recently used ones are deleted, which also drops those of changed videos.
+ * <p>
+ * Has no Android dependencies on purpose, so it can be measured on a plain JVM.
+ */
+final class Mp4SampleIndex {
+
+    private static final int CACHE_MAGIC = 0x4d534958; // MSIX
+    private static final int CACHE_VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CACHE_SUFFIX = ".idx";
+
+    /**
+     * Size of all cached indexes, an hour of 30 fps video takes about 2 MiB.
+     */
+    static final long MAX_CACHE_BYTES = 16L * 1024 * 1024;
+
+    private final long durationUs;
+    private final long[] sampleTimesUs;
+    private final long[] offsets;
+    private final int[] sizes;
+    private final long[] syncBits;
+
+    /**
+     * Presentation times in ascending order, index is the frame number.
+     */
+    private final long[] frameTimesUs;
+
+    /**
+     * Presentation times of the sync samples in ascending order.
+     */
+    private final long[] syncTimesUs;
+
+    private Mp4SampleIndex(long durationUs, long[] sampleTimesUs, long[] offsets, int[] sizes, long[] syncBits) {
+        this.durationUs = durationUs;
+        this.sampleTimesUs = sampleTimesUs;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.syncBits = syncBits;
+
+        frameTimesUs = sampleTimesUs.clone();
+        Arrays.sort(frameTimesUs);
+
+        int syncCount = 0;
+        for (long word : syncBits) {
+            syncCount += Long.bitCount(word);
+        }
+        syncTimesUs = new long[syncCount];
+        int next = 0;
+        for (int i = 0; i < sampleTimesUs.length; i++) {
+            if (isSync(i)) {
+                syncTimesUs[next++] = sampleTimesUs[i];
+            }
+        }
+        Arrays.sort(syncTimesUs);
+    }
+
+    int sampleCount() {
+        return sampleTimesUs.length;
+    }
+
+    long durationUs() {
+        return durationUs;
+    }
+
+    /**
+     * Average frame rate, also right for 29.97 fps and variable frame rate recordings.
+     */
+    double frameRate() {
+        return durationUs > 0 ? sampleTimesUs.length * 1_000_000.0 / durationUs : 0.0;
+    }
+
+    /**
+     * Presentation time of sample, in decoding order.
+     */
+    long sampleTimeUs(int sample) {
+        return sampleTimesUs[sample];
+    }
+
+    long sampleOffset(int sample) {
+        return offsets[sample];
+    }
+
+    int sampleSize(int sample) {
+        return sizes[sample];
+    }
+
+    boolean isSync(int sample) {
+        return (syncBits[sample >>> 6] & (1L << sample)) != 0;
+    }
+
+    /**
+     * Presentation time of frame, frames are numbered in presentation order.
+     */
+    long frameTimeUs(int frame) {
+        return frameTimesUs[frame];
+    }
+
+    /**
+     * Last frame presented at or before timeUs, 0 for earlier times.
+     */
+    int frameAt(long timeUs) {
+        final int found = Arrays.binarySearch(frameTimesUs, timeUs);
+        if (found >= 0) {
+            return lastEqual(frameTimesUs, found);
+        }
+        return Math.max(0, -found - 2);
+    }
+
+    /**
+     * Frame presented closest to timeUs.
+     */
+    int nearestFrame(long timeUs) {
+        final int found = Arrays.binarySearch(frameTimesUs, timeUs);
+        if (found >= 0) {
+            return found;
+        }
+        final int next = -found - 1;
+        if (next == 0) {
+            return 0;
+        }
+        if (next == frameTimesUs.length) {
+            return next - 1;
+        }
+        return timeUs - frameTimesUs[next - 1] <= frameTimesUs[next] - timeUs ? next - 1 : next;
+    }
+
+    /**
+     * Presentation time of the last sync sample at or before timeUs, -1 if there is none.
+     */
+    long syncTimeBefore(long timeUs) {
+        final int found = Arrays.binarySearch(syncTimesUs, timeUs);
+        if (found >= 0) {
+            return syncTimesUs[found];
+        }
+        final int previous = -found - 2;
+        return previous >= 0 ? syncTimesUs[previous] : -1L;
+    }
+
+    private static int lastEqual(long[] values, int index) {
+        while (index + 1 < values.length && values[index + 1] == values[index]) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Directory for {@link #load(File, File)} inside the temp directory, which is the app cache directory on Android.
+     */
+    static File defaultCacheDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"), "mp4index");
+    }
+
+    /**
+     * Reads the index of video from cacheDirectory, parses and caches it if it's missing or outdated.
+     *
+     * @param cacheDirectory null to always parse
+     * @throws IOException if video isn't a supported MP4 file
+     */
+    static Mp4SampleIndex load(File video, File cacheDirectory) throws IOException {
+        if (cacheDirectory == null) {
+            return parse(video);
+        }
+        final String path = video.getCanonicalPath();
+        final long length = video.length();
+        final long lastModified = video.lastModified();
+        final File cacheFile = cacheFile(cacheDirectory, path, length, lastModified);
+        final Mp4SampleIndex cached = readCache(cacheFile, path, length, lastModified);
+        if (cached != null) {
+            cacheFile.setLastModified(System.currentTimeMillis());
+            return cached;
+        }
+        final Mp4SampleIndex index = parse(video);
+        cacheDirectory.mkdirs();
+        final File temp = new File(cacheDirectory, cacheFile.getName() + ".tmp");
+        try {
+            index.writeCache(temp, path, length, lastModified);
+            if (temp.renameTo(cacheFile)) {
+                trimCache(cacheDirectory, cacheFile, MAX_CACHE_BYTES);
+            } else {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // the cache is an optimization only
+            temp.delete();
+        }
+        return index;
+    }
+
+    /**
+     * Cache entry of the video at path with the given size and modification time, a changed video gets a new entry.
+     */
+    static File cacheFile(File cacheDirectory, String path, long length, long lastModified) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] hash = digest.digest((path + '\n' + length + '\n' + lastModified).getBytes(UTF_8));
+        final StringBuilder name = new StringBuilder(hash.length * 2 + CACHE_SUFFIX.length());
+        for (byte b : hash) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return new File(cacheDirectory, name.append(CACHE_SUFFIX).toString());
+    }
+
+    /**
+     * Deletes the least recently used entries until all of them take at most maxBytes, keep is kept regardless.
+     */
+    static synchronized void trimCache(File cacheDirectory, File keep, long maxBytes) {
+        final File[] entries = cacheDirectory.listFiles((dir, name) -> name.endsWith(CACHE_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+        final long[] lastUsed = new long[entries.length];
+        final Integer[] order = new Integer[entries.length];
+        long size = 0;
+        for (int i = 0; i < entries.length; i++) {
+            lastUsed[i] = entries[i].lastModified();
+            order[i] = i;
+            size += entries[i].length();
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastUsed[a], lastUsed[b]));
+        for (int i : order) {
+            if (size <= maxBytes) {
+                break;
+            }
+            final long length = entries[i].length();
+            if (!entries[i].equals(keep) && entries[i].delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    /**
+     * @return null if cacheFile doesn't hold the index of the given video
+     */
+    private static Mp4SampleIndex readCache(File cacheFile, String path, long length, long lastModified) {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r"); FileChannel channel = raf.getChannel()) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != CACHE_MAGIC || buffer.getInt() != CACHE_VERSION
+                    || buffer.getLong() != length || buffer.getLong() != lastModified) {
+                return null;
+            }
+            final byte[] cachedPath = new byte[buffer.getInt()];
+            buffer.get(cachedPath);
+            if (!path.equals(new String(cachedPath, UTF_8))) {
+                return null;
+            }
+            final long durationUs = buffer.getLong();
+            final int count = buffer.getInt();
+            final long[] times = new long[count];
+            final long[] offsets = new long[count];
+            final int[] sizes = new int[count];
+            final long[] syncBits = new long[(count + 63) >>> 6];
+            buffer.asLongBuffer().get(times);
+            buffer.position(buffer.position() + count * 8);
+            buffer.asLongBuffer().get(offsets);
+            buffer.position(buffer.position() + count * 8);
+            buffer.asIntBuffer().get(sizes);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asLongBuffer().get(syncBits);
+            return new Mp4SampleIndex(durationUs, times, offsets, sizes, syncBits);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void writeCache(File cacheFile, String path, long length, long lastModified) throws IOException {
+        final byte[] pathBytes = path.getBytes(UTF_8);
+        final int count = sampleTimesUs.length;
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 8 + 8 + 4 + pathBytes.length + 8 + 4
+                + count * (8 + 8 + 4) + syncBits.length * 8);
+        buffer.putInt(CACHE_MAGIC).putInt(CACHE_VERSION).putLong(length).putLong(lastModified);
+        buffer.putInt(pathBytes.length).put(pathBytes);
+        buffer.putLong(durationUs).putInt(count);
+        buffer.asLongBuffer().put(sampleTimesUs);
+        buffer.position(buffer.position() + count * 8);
+        buffer.asLongBuffer().put(offsets);
+        buffer.position(buffer.position() + count * 8);
+        buffer.asIntBuffer().put(sizes);
+        buffer.position(buffer.position() + count * 4);
+        buffer.asLongBuffer().put(syncBits);
+        buffer.rewind();
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw"); FileChannel channel = raf.getChannel()) {
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Parses the sample table of the first video track of video.
+     *
+     * @throws IOException if video isn't an MP4 file or has no video samples
+     */
+    static Mp4SampleIndex parse(File video) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(video, "r"); FileChannel channel = raf.getChannel()) {
+            final ByteBuffer moov = mapMoov(channel);
+            int trak = contentStart(moov, 0);
+            while ((trak = findBox(moov, trak, moov.limit(), "trak")) >= 0) {
+                final int trakEnd = boxEnd(moov, trak);
+                final int mdia = findBox(moov, contentStart(moov, trak), trakEnd, "mdia");
+                if (mdia >= 0 && isVideo(moov, mdia)) {
+                    return parseTrack(moov, mdia);
+                }
+                trak = trakEnd;
+            }
+            throw new IOException("No video track found in " + video);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed MP4 file " + video, e);
+        }
+    }
+
+    /**
+     * Walks the top level boxes and maps the moov box.
+     */
+    private static ByteBuffer mapMoov(FileChannel channel) throws IOException {
+        final long fileSize = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            long size = header.getInt() & 0xffffffffL;
+            final int type = header.getInt();
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.remaining() < 8) {
+                    break;
+                }
+                size = header.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize || position + size > fileSize) {
+                throw new IOException("Not an MP4 file, invalid box at " + position);
+            }
+            if (type == fourCc("moov")) {
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("moov box too large");
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            }
+            position += size;
+        }
+        throw new IOException("No moov box found");
+    }
+
+    private static boolean isVideo(ByteBuffer moov, int mdia) {
+        final int hdlr = findBox(moov, contentStart(moov, mdia), boxEnd(moov, mdia), "hdlr");
+        // version and flags, pre_defined, handler_type
+        return hdlr >= 0 && moov.getInt(contentStart(moov, hdlr) + 8) == fourCc("vide");
+    }
+
+    private static Mp4SampleIndex parseTrack(ByteBuffer moov, int mdia) throws IOException {
+        final int mdiaEnd = boxEnd(moov, mdia);
+        final int mdhd = require(moov, contentStart(moov, mdia), mdiaEnd, "mdhd");
+        final int mdhdContent = contentStart(moov, mdhd);
+        final long timescale;
+        final long duration;
+        if (moov.get(mdhdContent) == 1) {
+            timescale = moov.getInt(mdhdContent + 20) & 0xffffffffL;
+            duration = moov.getLong(mdhdContent + 24);
+        } else {
+            timescale = moov.getInt(mdhdContent + 12) & 0xffffffffL;
+            duration = moov.getInt(mdhdContent + 16) & 0xffffffffL;
+        }
+        if (timescale == 0) {
+            throw new IOException("Invalid media timescale");
+        }
+
+        final int minf = require(moov, contentStart(moov, mdia), mdiaEnd, "minf");
+        final int stbl = require(moov, contentStart(moov, minf), boxEnd(moov, minf), "stbl");
+        final int start = contentStart(moov, stbl);
+        final int end = boxEnd(moov, stbl);
+
+        final int[] sizes = readSizes(moov, start, end);
+        final int count = sizes.length;
+        if (count == 0) {
+            throw new IOException("Track has no samples, fragmented files are not supported");
+        }
+
+        final long[] times = readTimes(moov, start, end, count, timescale);
+        final long[] offsets = readOffsets(moov, start, end, sizes);
+        final long[] syncBits = readSyncSamples(moov, start, end, count);
+        return new Mp4SampleIndex(duration * 1_000_000L / timescale, times, offsets, sizes, syncBits);
+    }
+
+    /**
+     * stsz or stz2.
+     */
+    private static int[] readSizes(ByteBuffer moov, int start, int end) throws IOException {
+        final int stsz = findBox(moov, start, end, "stsz");
+        if (stsz >= 0) {
+            final int content = contentStart(moov, stsz);
+            final int sampleSize = moov.getInt(content + 4);
+            final int[] sizes = new int[count(moov.getInt(content + 8))];
+            if (sampleSize != 0) {
+                Arrays.fill(sizes, sampleSize);
+            } else {
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = moov.getInt(content + 12 + i * 4);
+                }
+            }
+            return sizes;
+        }
+        final int stz2 = require(moov, start, end, "stz2");
+        final int content = contentStart(moov, stz2);
+        final int fieldSize = moov.get(content + 7) & 0xff;
+        final int[] sizes = new int[count(moov.getInt(content + 8))];
+        for (int i = 0; i < sizes.length; i++) {
+            switch (fieldSize) {
+                case 4:
+                    final int packed = moov.get(content + 12 + i / 2) & 0xff;
+                    sizes[i] = (i & 1) == 0 ? packed >>> 4 : packed & 0xf;
+                    break;
+                case 8:
+                    sizes[i] = moov.get(content + 12 + i) & 0xff;
+                    break;
+                case 16:
+                    sizes[i] = moov.getShort(content + 12 + i * 2) & 0xffff;
+                    break;
+                default:
+                    throw new IOException("Invalid stz2 field size " + fieldSize);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Decoding times from stts plus the composition offsets of ctts.
+     */
+    private static long[] readTimes(ByteBuffer moov, int start, int end, int count, long timescale) throws IOException {
+        final long[] times = new long[count];
+        final int stts = require(moov, start, end, "stts");
+        int content = contentStart(moov, stts);
+        int entries = count(moov.getInt(content + 4));
+        int sample = 0;
+        long dts = 0;
+        for (int e = 0; e < entries && sample < count; e++) {
+            final long sampleCount = moov.getInt(content + 8 + e * 8) & 0xffffffffL;
+            final long delta = moov.getInt(content + 12 + e * 8) & 0xffffffffL;
+            for (long i = 0; i < sampleCount && sample < count; i++) {
+                times[sample++] = dts;
+                dts += delta;
+            }
+        }
+        while (sample < count) {
+            times[sample++] = dts;
+        }
+
+        final int ctts = findBox(moov, start, end, "ctts");
+        if (ctts >= 0) {
+            content = contentStart(moov, ctts);
+            entries = count(moov.getInt(content + 4));
+            sample = 0;
+            for (int e = 0; e < entries && sample < count; e++) {
+                final long sampleCount = moov.getInt(content + 8 + e * 8) & 0xffffffffL;
+                // signed in version 1, version 0 offsets never exceed 2^31 in practice
+                final int offset = moov.getInt(content + 12 + e * 8);
+                for (long i = 0; i < sampleCount && sample < count; i++) {
+                    times[sample++] += offset;
+                }
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            times[i] = times[i] * 1_000_000L / timescale;
+        }
+        return times;
+    }
+
+    /**
+     * Sample offsets from the chunk offsets of stco / co64, the samples per chunk of stsc and the sample sizes.
+     */
+    private static long[] readOffsets(ByteBuffer moov, int start, int end, int[] sizes) throws IOException {
+        int chunkBox = findBox(moov, start, end, "stco");
+        final boolean largeOffsets = chunkBox < 0;
+        if (largeOffsets) {
+            chunkBox = require(moov, start, end, "co64");
+        }
+        final int chunkContent = contentStart(moov, chunkBox);
+        final int chunkCount = count(moov.getInt(chunkContent + 4));
+
+        final int stsc = require(moov, start, end, "stsc");
+        final int stscContent = contentStart(moov, stsc);
+        final int stscEntries = count(moov.getInt(stscContent + 4));
+
+        final long[] offsets = new long[sizes.length];
+        int sample = 0;
+        for (int e = 0; e < stscEntries && sample < sizes.length; e++) {
+            final int entry = stscContent + 8 + e * 12;
+            final int firstChunk = moov.getInt(entry) - 1;
+            final int lastChunk = e + 1 < stscEntries ? moov.getInt(entry + 12) - 1 : chunkCount;
+            final int samplesPerChunk = moov.getInt(entry + 4);
+            for (int chunk = firstChunk; chunk < lastChunk && chunk < chunkCount && sample < sizes.length; chunk++) {
+                long offset = largeOffsets
+                        ? moov.getLong(chunkContent + 8 + chunk * 8)
+                        : moov.getInt(chunkContent + 8 + chunk * 4) & 0xffffffffL;
+                for (int i = 0; i < samplesPerChunk && sample < sizes.length; i++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample++];
+                }
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Sync flags from stss, all samples are sync samples without it.
+     */
+    private static long[] readSyncSamples(ByteBuffer moov, int start, int end, int count) throws IOException {
+        final long[] bits = new long[(count + 63) >>> 6];
+        final int stss = findBox(moov, start, end, "stss");
+        if (stss < 0) {
+            for (int i = 0; i < count; i++) {
+                bits[i >>> 6] |= 1L << i;
+            }
+            return bits;
+        }
+        final int content = contentStart(moov, stss);
+        final int entries = count(moov.getInt(content + 4));
+        for (int e = 0; e < entries; e++) {
+            final int sample = moov.getInt(content + 8 + e * 4) - 1;
+            if (sample >= 0 && sample < count) {
+                bits[sample >>> 6] |= 1L << sample;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Position of the first box of type in [start, end), -1 if there is none.
+     */
+    private static int findBox(ByteBuffer buffer, int start, int end, String type) {
+        final int fourCc = fourCc(type);
+        int position = start;
+        while (position + 8 <= end) {
+            final int boxEnd = boxEnd(buffer, position);
+            if (boxEnd <= position || boxEnd > end) {
+                return -1;
+            }
+            if (buffer.getInt(position + 4) == fourCc) {
+                return position;
+            }
+            position = boxEnd;
+        }
+        return -1;
+    }
+
+    private static int require(ByteBuffer buffer, int start, int end, String type) throws IOException {
+        final int box = findBox(buffer, start, end, type);
+        if (box < 0) {
+            throw new IOException("Missing " + type + " box");
+        }
+        return box;
+    }
+
+    private static int boxEnd(ByteBuffer buffer, int box) {
+        final long size = buffer.getInt(box) & 0xffffffffL;
+        if (size == 1) {
+            return (int) Math.min(Integer.MAX_VALUE, box + buffer.getLong(box + 8));
+        }
+        if (size == 0) {
+            return buffer.limit();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, box + size);
+    }
+
+    private static int contentStart(ByteBuffer buffer, int box) {
+        return box + ((buffer.getInt(box) == 1) ? 16 : 8);
+    }
+
+    private static int count(int value) throws IOException {
+        if (value < 0) {
+            throw new IOException("Invalid entry count " + (value & 0xffffffffL));
+        }
+        return value;
+    }
+
+    private static int fourCc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
@@ -0,0 +1,361 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import com.exozet.transcoder.ffmpeg.LogLevel
+import com.exozet.transcoder.ffmpeg.TranscoderLog
+import java.io.Closeable
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * [CodecBackend] keeping the decoders and decoder outputs of finished jobs warm for the next ones.
+ *
+ * Creating an output initializes EGL, compiles the shaders and starts a callback thread, creating a decoder allocates
+ * a codec instance; together 100 ms and more before the first frame. Instead of releasing them at the end of a job,
+ * they are kept idle: outputs by size and source region, decoders by mime type and size. The next job of the same
+ * kind takes them back and only configures the decoder with the format of its video, so batches of short clips spend
+ * their time decoding instead of setting up.
+ *
+ * Idle resources are released after idleTimeoutMs and at most maxIdle outputs and maxIdle decoders are kept, the
+ * ones idle for the longest go first. An idle decoder still holds a codec instance, so before a new decoder is created
+ * idle ones of its mime type are released until the decoders in use and idle fit [CodecBackend.maxDecoderInstances].
+ * Outputs holding a rendered frame that was never latched, e.g. of a cancelled job, and decoders which were not
+ * stopped are released instead of kept. Everything else is created by backend.
+ *
+ * Share one instance between the jobs of a batch and [close] it afterwards:
+ *
+ * ```
+ * val backend = PooledCodecBackend(AndroidCodecBackend)
+ * val extractor = MediaCodecExtractImages(backend = backend)
+ * clips.forEach { extractor.extractMpegFrames(it, times, outputDir(it), photoQuality = 90).blockingSubscribe() }
+ * backend.close()
+ * ```
+ *
+ * @param backend creates the pooled resources and everything which isn't pooled
+ * @param maxIdle amount of idle outputs and of idle decoders kept
+ * @param idleTimeoutMs time after which idle resources are released, 0 keeps them until [close]
+ */
+class PooledCodecBackend @JvmOverloads constructor(
+    private val backend: CodecBackend,
+    private val maxIdle: Int = 4,
+    private val idleTimeoutMs: Long = 30_000L
+) : CodecBackend by backend, Closeable {
+
+    private data class OutputKey(val width: Int, val height: Int, val region: FrameRegion?)
+
+    private data class DecoderKey(val mimeType: String, val width: Int, val height: Int)
+
+    private class Idle<T>(val key: Any, val resource: T, val sinceNs: Long)
+
+    private val lock = Any()
+
+    private val idleOutputs = ArrayList<Idle<FrameOutput>>()
+
+    private val idleDecoders = ArrayList<Idle<VideoCodec>>()
+
+    /**
+     * Decoders handed out and not released yet, by mime type.
+     */
+    private val liveDecoders = HashMap<String, Int>()
+
+    private var evictor: ScheduledExecutorService? = null
+
+    private var closed = false
+
+    private val reusedCount = AtomicInteger()
+
+    private val createdCount = AtomicInteger()
+
+    /**
+     * Amount of outputs and decoders taken from the pool instead of being created.
+     */
+    val reused: Int
+        get() = reusedCount.get()
+
+    /**
+     * Amount of outputs and decoders created by backend.
+     */
+    val created: Int
+        get() = createdCount.get()
+
+    override fun createFrameOutput(width: Int, height: Int, region: FrameRegion?): FrameOutput {
+        val key = OutputKey(width, height, region)
+        val idle = take(idleOutputs, key)
+        if (idle != null) {
+            // was current on the thread of the previous job
+            idle.makeCurrent()
+            reusedCount.incrementAndGet()
+            return PooledOutput(key, idle)
+        }
+        createdCount.incrementAndGet()
+        return PooledOutput(key, backend.createFrameOutput(width, height, region))
+    }
+
+    override fun createDecoder(format: TrackFormat, output: FrameOutput): VideoCodec {
+        val pooledOutput = output as? PooledOutput
+        val target = pooledOutput?.output ?: output
+        val key = DecoderKey(format.mimeType, format.width, format.height)
+
+        var decoder = synchronized(lock) {
+            take(idleDecoders, key)?.also { countDecoders(key.mimeType, 1) }
+        }
+        if (decoder != null) {
+            try {
+                decoder.reconfigure(format, target)
+                reusedCount.incrementAndGet()
+            } catch (e: RuntimeException) {
+                TranscoderLog.log(LogLevel.WARN, TAG) { "reconfiguring ${format.mimeType} decoder failed, creating a new one: ${e.message}" }
+                decoder.release()
+                countDecoders(key.mimeType, -1)
+                decoder = null
+            }
+        }
+        if (decoder == null) {
+            reserveDecoder(format)
+            decoder = try {
+                backend.createDecoder(format, target)
+            } catch (e: Throwable) {
+                countDecoders(key.mimeType, -1)
+                throw e
+            }
+            createdCount.incrementAndGet()
+        }
+        return PooledDecoder(key, decoder, pooledOutput).also { pooledOutput?.decoder = it }
+    }
+
+    /**
+     * Counts a decoder of the mime type of format which is about to be created and releases the idle ones which
+     * would exceed its instances next to it, the ones idle for the longest first. Both happen at once, so decoders
+     * created at the same time all see each other.
+     */
+    private fun reserveDecoder(format: TrackFormat) {
+        val maxInstances = backend.maxDecoderInstances(format)
+        val released = ArrayList<VideoCodec>()
+        synchronized(lock) {
+            val mimeType = format.mimeType
+            var instances = countDecoders(mimeType, 1) + idleDecoders.count { (it.key as DecoderKey).mimeType == mimeType }
+            val iterator = idleDecoders.iterator()
+            while (instances > maxInstances && iterator.hasNext()) {
+                val entry = iterator.next()
+                if ((entry.key as DecoderKey).mimeType == mimeType) {
+                    released.add(entry.resource)
+                    iterator.remove()
+                    instances--
+                }
+            }
+        }
+        released.forEach { it.release() }
+    }
+
+    /**
+     * Adds delta to the decoders of mimeType handed out and not released yet.
+     *
+     * @return the new amount
+     */
+    private fun countDecoders(mimeType: String, delta: Int): Int = synchronized(lock) {
+        val count = (liveDecoders[mimeType] ?: 0) + delta
+        liveDecoders[mimeType] = count
+        count
+    }
+
+    /**
+     * Releases all idle outputs and decoders, e.g. when the system is low on memory. The pool stays usable.
+     */
+    fun evictIdle() {
+        evict(0L)
+    }
+
+    /**
+     * Releases all idle outputs and decoders. Outputs and decoders still in use are released when their job ends.
+     */
+    override fun close() {
+        val executor = synchronized(lock) {
+            closed = true
+            evictor.also { evictor = null }
+        }
+        executor?.shutdownNow()
+        evict(0L)
+    }
+
+    /**
+     * Takes the most recently released resource for key, it is the one most likely still warm in the caches.
+     */
+    private fun <T> take(idle: MutableList<Idle<T>>, key: Any): T? = synchronized(lock) {
+        val index = idle.indexOfLast { it.key == key }
+        if (index < 0) null else idle.removeAt(index).resource
+    }
+
+    private fun <T> recycle(idle: MutableList<Idle<T>>, key: Any, resource: T, release: (T) -> Unit) {
+        val evicted = synchronized(lock) {
+            if (closed || maxIdle <= 0) {
+                resource
+            } else {
+                idle.add(Idle(key, resource, System.nanoTime()))
+                scheduleEviction()
+                if (idle.size > maxIdle) idle.removeAt(0).resource else null
+            }
+        }
+        evicted?.let(release)
+    }
+
+    private fun scheduleEviction() {
+        if (idleTimeoutMs <= 0) {
+            return
+        }
+        val executor = evictor ?: ScheduledThreadPoolExecutor(1) { runnable ->
+            Thread(runnable, "codec-pool-evictor").apply { isDaemon = true }
+        }.also { evictor = it }
+        executor.schedule({ evict(TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs)) }, idleTimeoutMs, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Releases the resources idle for at least idleNs, outside of the lock.
+     */
+    private fun evict(idleNs: Long) {
+        val now = System.nanoTime()
+        val outputs = ArrayList<FrameOutput>()
+        val decoders = ArrayList<VideoCodec>()
+        synchronized(lock) {
+            removeIdle(idleOutputs, now, idleNs, outputs)
+            removeIdle(idleDecoders, now, idleNs, decoders)
+        }
+        outputs.forEach { it.release() }
+        decoders.forEach { it.release() }
+        if (outputs.isNotEmpty() || decoders.isNotEmpty()) {
+            TranscoderLog.log(LogLevel.DEBUG, TAG) { "released ${outputs.size} idle outputs and ${decoders.size} idle decoders" }
+        }
+    }
+
+    private fun <T> removeIdle(idle: MutableList<Idle<T>>, now: Long, idleNs: Long, removed: MutableList<T>) {
+        val iterator = idle.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (now - entry.sinceNs >= idleNs) {
+                removed.add(entry.resource)
+                iterator.remove()
+            }
+        }
+    }
+
+    /**
+     * Returns output to the pool on release. If its decoder still runs, that is once the decoder stopped, so the
+     * next job never connects a second decoder to the surface.
+     */
+    private inner class PooledOutput(private val key: OutputKey, val output: FrameOutput) : FrameOutput by output {
+
+        var decoder: PooledDecoder? = null
+
+        /**
+         * Frames rendered by the decoder and not latched yet.
+         */
+        val pendingFrames = AtomicInteger()
+
+        private var released = false
+
+        private var recycled = false
+
+        override fun awaitNewImage() {
+            output.awaitNewImage()
+            pendingFrames.decrementAndGet()
+        }
+
+        override fun release() {
+            synchronized(lock) {
+                if (released) {
+                    return
+                }
+                released = true
+                if (decoder?.running == true) {
+                    return
+                }
+            }
+            recycle()
+        }
+
+        fun decoderStopped() {
+            synchronized(lock) {
+                if (!released) {
+                    return
+                }
+            }
+            recycle()
+        }
+
+        private fun recycle() {
+            synchronized(lock) {
+                if (recycled) {
+                    return
+                }
+                recycled = true
+            }
+            if (pendingFrames.get() != 0) {
+                // a late frame would be latched by the next job
+                output.release()
+                return
+            }
+            output.releaseCurrent()
+            recycle(idleOutputs, key, output) { it.release() }
+        }
+    }
+
+    /**
+     * Returns decoder to the pool once it was stopped and released.
+     */
+    private inner class PooledDecoder(
+        private val key: DecoderKey,
+        private val decoder: VideoCodec,
+        private val output: PooledOutput?
+    ) : VideoCodec by decoder {
+
+        @Volatile
+        var running = true
+
+        private var stopped = false
+
+        private var released = false
+
+        override fun releaseOutputBuffer(index: Int, render: Boolean) {
+            if (render) {
+                output?.pendingFrames?.incrementAndGet()
+            }
+            decoder.releaseOutputBuffer(index, render)
+        }
+
+        override fun stop() {
+            try {
+                decoder.stop()
+                stopped = true
+            } finally {
+                detach()
+            }
+        }
+
+        override fun release() {
+            if (released) {
+                return
+            }
+            released = true
+            if (stopped) {
+                recycle(idleDecoders, key, decoder) { it.release() }
+            } else {
+                decoder.release()
+            }
+            // only once it is idle or released, so the instance is never missing from the count
+            countDecoders(key.mimeType, -1)
+            detach()
+        }
+
+        private fun detach() {
+            if (running) {
+                running = false
+                output?.decoderStopped()
+            }
+        }
+    }
+
+    private companion object {
+
+        const val TAG = "PooledCodecBackend"
+    }
+}
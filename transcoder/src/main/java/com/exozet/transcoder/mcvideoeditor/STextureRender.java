@@ -53,6 +53,11 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
         private float[] mMVPMatrix = new float[16];
         private float[] mSTMatrix = new float[16];
 
+        // maps the drawn quad to the source region before mSTMatrix, null draws the whole texture
+        private float[] mSourceRect;
+        private float[] mSourceMatrix = new float[16];
+        private float[] mTransformMatrix = new float[16];
+
         private int mProgram;
         private int mTextureID = -12345;
         private int muMVPMatrixHandle;
@@ -79,7 +84,16 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
         public void drawFrame(SurfaceTexture st, boolean invert) {
             checkGlError("onDrawFrame start");
             st.getTransformMatrix(mSTMatrix);
-            if (invert) {
+            if (mSourceRect != null) {
+                // crop and flip ahead of the SurfaceTexture transform, so they apply to the image, not to the buffer
+                Matrix.setIdentityM(mSourceMatrix, 0);
+                mSourceMatrix[0] = mSourceRect[2] - mSourceRect[0];
+                mSourceMatrix[12] = mSourceRect[0];
+                mSourceMatrix[5] = invert ? mSourceRect[1] - mSourceRect[3] : mSourceRect[3] - mSourceRect[1];
+                mSourceMatrix[13] = invert ? mSourceRect[3] : mSourceRect[1];
+                Matrix.multiplyMM(mTransformMatrix, 0, mSTMatrix, 0, mSourceMatrix, 0);
+                System.arraycopy(mTransformMatrix, 0, mSTMatrix, 0, 16);
+            } else if (invert) {
                 mSTMatrix[5] = -mSTMatrix[5];
                 mSTMatrix[13] = 1.0f - mSTMatrix[13];
             }
@@ -118,6 +132,19 @@ import static com.exozet.transcoder.ffmpeg.DebugExtensions.log;
             GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
         }
 
+        /**
+         * Draws only a region of the texture, scaled to the surface.  Coordinates are texture coordinates of the
+         * image in [0, 1] with 0, 0 at the bottom left.  Switches to linear filtering for minification, so
+         * downscaled frames don't skip whole pixel columns.  Call with the EGL context current.
+         */
+        public void setSourceRect(float left, float bottom, float right, float top) {
+            mSourceRect = new float[]{left, bottom, right, top};
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureID);
+            GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_LINEAR);
+            checkGlError("glTexParameter");
+        }
+
         /**
          * Initializes GL state.  Call this after the EGL surface has been created and made current.
          */
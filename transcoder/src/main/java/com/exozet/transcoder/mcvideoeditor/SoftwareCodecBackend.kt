@@ -0,0 +1,360 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import java.io.FileOutputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
+
+/**
+ * Deterministic pure JVM stand-in for [AndroidCodecBackend].
+ *
+ * Sources read uncompressed 4:2:0 Y4M files, every frame is a sync sample. Decoder and encoder are pass-through codecs
+ * with a fixed amount of input and output buffers: a queued input is only processed once an output buffer is free,
+ * so a consumer that doesn't drain its codec gets [CodecConstants.INFO_TRY_AGAIN_LATER] from dequeueInputBuffer, just
+ * like with a hardware codec. Codecs never block, timeouts are ignored. Sinks write the timestamped samples as a Y4M
+ * file again, frame outputs save and compress to the raw I420 bytes of a frame.
+ *
+ * Allows to load test throughput, backpressure and cancellation of the pipelines on a plain JVM.
+ *
+ * @param inputBufferCount amount of input buffers per codec
+ * @param outputBufferCount amount of output buffers per codec
+ * @param maxDecoders amount of decoders reported to run at the same time
+ */
+class SoftwareCodecBackend(
+    private val inputBufferCount: Int = 4,
+    private val outputBufferCount: Int = 4,
+    private val maxDecoders: Int = Int.MAX_VALUE
+) : CodecBackend {
+
+    override fun createSource(path: String): MediaSource = Y4mSource(path)
+
+    override fun createFrameOutput(width: Int, height: Int, region: FrameRegion?): FrameOutput =
+        SoftwareFrameOutput(width, height, region)
+
+    override fun createDecoder(format: TrackFormat, output: FrameOutput): VideoCodec =
+        SoftwareVideoCodec(format, false, inputBufferCount, outputBufferCount, output as SoftwareFrameOutput)
+
+    override fun maxDecoderInstances(format: TrackFormat): Int = maxDecoders
+
+    override fun encoderColorFormats(mimeType: String): IntArray = intArrayOf(CodecConstants.COLOR_FormatYUV420Planar)
+
+    override fun createEncoder(mimeType: String, width: Int, height: Int, bitRate: Int, frameRate: Int, colorFormat: Int, iFrameInterval: Int): VideoCodec =
+        SoftwareVideoCodec(TrackFormat(mimeType, width, height, frameRate), true, inputBufferCount, outputBufferCount, null)
+
+    override fun createSink(path: String): MediaSink = Y4mSink(path)
+
+    companion object {
+
+        const val MIME_TYPE = "video/raw"
+
+        private fun frameSize(width: Int, height: Int) = YuvConverter.yuvSize(width, height)
+    }
+
+    /**
+     * Y4M demuxer. Supports the 4:2:0 color spaces without frame parameters.
+     */
+    private class Y4mSource(path: String) : MediaSource {
+
+        private val reader = Y4mReader(path)
+        private val frameDurationUs = 1_000_000.0 / reader.frameRate
+        private val format = TrackFormat(
+            mimeType = MIME_TYPE,
+            width = reader.width,
+            height = reader.height,
+            frameRate = Math.round(reader.frameRate).toInt(),
+            durationUs = (reader.frameCount * frameDurationUs).toLong()
+        )
+        private var frame = 0
+
+        override val trackCount: Int = 1
+
+        override val sampleTrackIndex: Int
+            get() = if (frame < reader.frameCount) 0 else -1
+
+        override val sampleTime: Long
+            get() = if (frame < reader.frameCount) (frame * frameDurationUs).toLong() else -1L
+
+        override fun getTrackFormat(index: Int): TrackFormat = format
+
+        override fun selectTrack(index: Int) = Unit
+
+        override fun readSampleData(buffer: ByteBuffer, offset: Int): Int {
+            if (frame >= reader.frameCount) {
+                return -1
+            }
+            val target = buffer.duplicate()
+            target.clear()
+            target.position(offset)
+            reader.readFrame(frame, target)
+            return reader.frameSize
+        }
+
+        override fun advance(): Boolean = ++frame < reader.frameCount
+
+        /**
+         * Every frame is a sync sample.
+         */
+        override fun seekTo(timeUs: Long, mode: Int) {
+            // last frame presented at or before timeUs, timestamps are rounded down
+            var previous = (timeUs / frameDurationUs).toInt()
+            if (((previous + 1) * frameDurationUs).toLong() <= timeUs) {
+                previous++
+            }
+            val next = if ((previous * frameDurationUs).toLong() < timeUs) previous + 1 else previous
+            val target = when (mode) {
+                CodecConstants.SEEK_TO_PREVIOUS_SYNC -> previous
+                CodecConstants.SEEK_TO_NEXT_SYNC -> next
+                else -> if (timeUs - previous * frameDurationUs <= next * frameDurationUs - timeUs) previous else next
+            }
+            frame = target.coerceIn(0, reader.frameCount - 1)
+        }
+
+        override fun release() = reader.close()
+    }
+
+    /**
+     * Pass-through codec with a fixed amount of buffers.
+     */
+    private class SoftwareVideoCodec(
+        private var format: TrackFormat,
+        private val encoder: Boolean,
+        inputCount: Int,
+        outputCount: Int,
+        private var output: SoftwareFrameOutput?
+    ) : VideoCodec {
+
+        private class Queued(val index: Int, val info: SampleInfo)
+
+        private val inputBuffers = Array<ByteBuffer>(inputCount) { ByteBuffer.allocate(frameSize(format.width, format.height)) }
+        private val outputBuffers = Array<ByteBuffer>(outputCount) { ByteBuffer.allocate(frameSize(format.width, format.height)) }
+        private val freeInputs = ArrayDeque<Int>((0 until inputCount).toList())
+        private val freeOutputs = ArrayDeque<Int>((0 until outputCount).toList())
+        private val pendingInputs = ArrayDeque<Queued>()
+        private val readyOutputs = ArrayDeque<Queued>()
+        private var formatReported = false
+
+        override val outputFormat: TrackFormat
+            get() = format
+
+        @Synchronized
+        override fun dequeueInputBuffer(timeoutUs: Long): Int {
+            process()
+            return freeInputs.pollFirst() ?: CodecConstants.INFO_TRY_AGAIN_LATER
+        }
+
+        override fun getInputBuffer(index: Int): ByteBuffer = inputBuffers[index]
+
+        @Synchronized
+        override fun queueInputBuffer(index: Int, offset: Int, size: Int, presentationTimeUs: Long, flags: Int) {
+            pendingInputs.addLast(Queued(index, SampleInfo().apply { set(offset, size, presentationTimeUs, flags) }))
+            process()
+        }
+
+        @Synchronized
+        override fun dequeueOutputBuffer(info: SampleInfo, timeoutUs: Long): Int {
+            if (!formatReported) {
+                formatReported = true
+                return CodecConstants.INFO_OUTPUT_FORMAT_CHANGED
+            }
+            process()
+            val ready = readyOutputs.pollFirst() ?: return CodecConstants.INFO_TRY_AGAIN_LATER
+            info.set(ready.info.offset, ready.info.size, ready.info.presentationTimeUs, ready.info.flags)
+            return ready.index
+        }
+
+        override fun getOutputBuffer(index: Int): ByteBuffer? = outputBuffers[index].duplicate()
+
+        @Synchronized
+        override fun releaseOutputBuffer(index: Int, render: Boolean) {
+            if (render) {
+                output?.onFrameRendered(outputBuffers[index])
+            }
+            freeOutputs.addLast(index)
+            process()
+        }
+
+        @Synchronized
+        override fun flush() {
+            pendingInputs.clear()
+            readyOutputs.clear()
+            freeInputs.clear()
+            freeInputs.addAll(inputBuffers.indices)
+            freeOutputs.clear()
+            freeOutputs.addAll(outputBuffers.indices)
+        }
+
+        /**
+         * The buffers are sized for the first format, so only formats of the same size are accepted.
+         */
+        @Synchronized
+        override fun reconfigure(format: TrackFormat, output: FrameOutput) {
+            if (format.width != this.format.width || format.height != this.format.height) {
+                throw IllegalStateException("codec of ${this.format.width}x${this.format.height} can't decode ${format.width}x${format.height}")
+            }
+            this.format = format
+            this.output = output as SoftwareFrameOutput
+            flush()
+            formatReported = false
+        }
+
+        /**
+         * Moves queued inputs into free output buffers.
+         */
+        private fun process() {
+            while (pendingInputs.isNotEmpty() && freeOutputs.isNotEmpty()) {
+                val input = pendingInputs.pollFirst()
+                val outputIndex = freeOutputs.pollFirst()
+
+                val source = inputBuffers[input.index].duplicate()
+                source.clear()
+                source.position(input.info.offset)
+                source.limit(input.info.offset + input.info.size)
+                val target = outputBuffers[outputIndex]
+                target.clear()
+                target.put(source)
+                target.flip()
+
+                var flags = input.info.flags
+                if (encoder && input.info.size > 0) {
+                    flags = flags or CodecConstants.BUFFER_FLAG_KEY_FRAME
+                }
+                readyOutputs.addLast(Queued(outputIndex, SampleInfo().apply { set(0, input.info.size, input.info.presentationTimeUs, flags) }))
+                freeInputs.addLast(input.index)
+            }
+        }
+
+        override fun stop() {
+            pendingInputs.clear()
+            readyOutputs.clear()
+        }
+
+        override fun release() = stop()
+    }
+
+    /**
+     * Y4M muxer, writes every sample as a frame.
+     */
+    private class Y4mSink(private val path: String) : MediaSink {
+
+        private var format: TrackFormat? = null
+        private var writer: Y4mWriter? = null
+
+        init {
+            // fail early like MediaMuxer if the file can't be created
+            FileOutputStream(path).close()
+        }
+
+        override fun addTrack(format: TrackFormat): Int {
+            this.format = format
+            return 0
+        }
+
+        override fun start() {
+            val format = format ?: throw IllegalStateException("no track added")
+            writer = Y4mWriter(path, format.width, format.height, format.frameRate)
+        }
+
+        override fun writeSampleData(trackIndex: Int, data: ByteBuffer, info: SampleInfo) {
+            val writer = writer ?: throw IllegalStateException("not started")
+            val sample = data.duplicate()
+            sample.limit(info.offset + info.size)
+            sample.position(info.offset)
+            writer.writeFrame(sample)
+        }
+
+        override fun stop() {
+            writer?.force()
+        }
+
+        override fun release() {
+            writer?.close()
+            writer = null
+        }
+    }
+}
+
+/**
+ * Software decoder output, keeps the last rendered frame.
+ *
+ * Pixels are read as gray RGBA built from the luma plane, which is enough to drive the encoding side of a pipeline.
+ * With a region they are scaled on the CPU by a [FrameScaler].
+ */
+internal class SoftwareFrameOutput(
+    private val width: Int,
+    private val height: Int,
+    region: FrameRegion? = null
+) : FrameOutput {
+
+    private val frameSyncObject = Object()
+    private var rendered: ByteArray? = null
+    private var latched: ByteArray? = null
+
+    private val scaler = if (region != null && !region.isIdentity) FrameScaler(region) else null
+    private val sourcePixels = if (scaler != null) ByteBuffer.allocate(width * height * 4) else null
+
+    override val surface: Any? = null
+
+    internal fun onFrameRendered(frame: ByteBuffer) {
+        val copy = ByteArray(frame.remaining())
+        frame.duplicate().get(copy)
+        synchronized(frameSyncObject) {
+            rendered = copy
+        }
+    }
+
+    override fun awaitNewImage() {
+        synchronized(frameSyncObject) {
+            latched = rendered ?: throw RuntimeException("frame wait timed out")
+            rendered = null
+        }
+    }
+
+    override fun drawImage(invert: Boolean) = Unit
+
+    override fun makeCurrent() = Unit
+
+    override fun releaseCurrent() = Unit
+
+    override fun saveFrame(filename: String, photoQuality: Int) {
+        val frame = latched ?: throw IllegalStateException("no frame latched")
+        FileOutputStream(filename).use { it.write(frame) }
+    }
+
+    override fun compressFrame(out: OutputStream, photoQuality: Int) {
+        val frame = latched ?: throw IllegalStateException("no frame latched")
+        out.write(frame)
+    }
+
+    /**
+     * There is no JPEG encoder without Android, writes the pixels unchanged.
+     */
+    override fun compressPixels(pixels: ByteBuffer, out: OutputStream, photoQuality: Int) {
+        val bytes = ByteArray(pixels.remaining())
+        pixels.duplicate().get(bytes)
+        out.write(bytes)
+    }
+
+    override fun readPixels(target: ByteBuffer) {
+        val frame = latched ?: throw IllegalStateException("no frame latched")
+        if (scaler == null || sourcePixels == null) {
+            readLuma(frame, target)
+            return
+        }
+        readLuma(frame, sourcePixels)
+        scaler.scale(sourcePixels, target)
+    }
+
+    private fun readLuma(frame: ByteArray, target: ByteBuffer) {
+        target.clear()
+        for (i in 0 until width * height) {
+            val y = frame[i]
+            target.put(y).put(y).put(y).put(0xff.toByte())
+        }
+        target.flip()
+    }
+
+    override fun release() {
+        rendered = null
+        latched = null
+    }
+}
@@ -0,0 +1,197 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import java.io.Closeable
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+
+/**
+ * Uncompressed 4:2:0 video as YUV4MPEG2 (Y4M): a single line header followed by "FRAME\n" records holding the I420
+ * planes of every frame.
+ *
+ * Used as lossless intermediate between frame extraction and encoding. Writing and reading are plain channel transfers
+ * of fixed size records, no image compression or color conversion is involved, and frames can be located without
+ * an index.
+ */
+internal object Y4m {
+
+    const val SIGNATURE = "YUV4MPEG2"
+
+    /**
+     * File extension used by the transcoders for Y4M files.
+     */
+    const val EXTENSION = "y4m"
+
+    val ASCII: Charset = Charset.forName("US-ASCII")
+
+    val FRAME_HEADER = "FRAME\n".toByteArray(ASCII)
+
+    /**
+     * true if file starts with the Y4M signature.
+     */
+    fun isY4m(file: File): Boolean {
+        if (!file.isFile || file.length() < SIGNATURE.length) {
+            return false
+        }
+        return try {
+            RandomAccessFile(file, "r").use { raf ->
+                val signature = ByteArray(SIGNATURE.length)
+                raf.readFully(signature)
+                String(signature, ASCII) == SIGNATURE
+            }
+        } catch (e: IOException) {
+            false
+        }
+    }
+}
+
+/**
+ * Appends I420 frames to a Y4M file, existing files are overwritten.
+ */
+internal class Y4mWriter(path: String, val width: Int, val height: Int, frameRate: Int) : Closeable {
+
+    private val channel: FileChannel = FileOutputStream(path).channel
+
+    private val frameHeader = ByteBuffer.wrap(Y4m.FRAME_HEADER)
+
+    val frameSize = YuvConverter.yuvSize(width, height)
+
+    var frameCount = 0
+        private set
+
+    init {
+        val header = "${Y4m.SIGNATURE} W$width H$height F$frameRate:1 Ip A1:1 C420jpeg\n"
+        write(ByteBuffer.wrap(header.toByteArray(Y4m.ASCII)))
+    }
+
+    /**
+     * Appends the remaining bytes of frame, which has to hold exactly one I420 frame.
+     */
+    @Throws(IOException::class)
+    fun writeFrame(frame: ByteBuffer) {
+        if (frame.remaining() != frameSize) {
+            throw IllegalArgumentException("frame has ${frame.remaining()} bytes, expected $frameSize")
+        }
+        frameHeader.rewind()
+        val buffers = arrayOf(frameHeader, frame)
+        while (frame.hasRemaining()) {
+            channel.write(buffers)
+        }
+        frameCount++
+    }
+
+    @Throws(IOException::class)
+    fun writeFrame(frame: ByteArray) = writeFrame(ByteBuffer.wrap(frame))
+
+    /**
+     * Flushes the written frames to storage.
+     */
+    @Throws(IOException::class)
+    fun force() = channel.force(false)
+
+    override fun close() = channel.close()
+
+    private fun write(buffer: ByteBuffer) {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer)
+        }
+    }
+}
+
+/**
+ * Random access to the frames of a Y4M file. Supports the 4:2:0 color spaces without frame parameters.
+ */
+internal class Y4mReader(path: String) : Closeable {
+
+    private val channel: FileChannel
+
+    private val headerSize: Long
+
+    val width: Int
+
+    val height: Int
+
+    val frameRate: Double
+
+    val frameSize: Int
+
+    val frameCount: Int
+
+    init {
+        try {
+            channel = RandomAccessFile(path, "r").channel
+        } catch (e: FileNotFoundException) {
+            throw IOException("Unable to read $path", e)
+        }
+
+        try {
+            val header = ByteBuffer.allocate(256)
+            channel.read(header, 0)
+            header.flip()
+            val line = StringBuilder()
+            while (header.hasRemaining()) {
+                val c = header.get().toChar()
+                if (c == '\n') break
+                line.append(c)
+            }
+            headerSize = line.length + 1L
+
+            val tokens = line.split(' ')
+            if (tokens.first() != Y4m.SIGNATURE) {
+                throw IOException("$path is not a Y4M file")
+            }
+            var width = 0
+            var height = 0
+            var rate = 30.0
+            for (token in tokens.drop(1)) {
+                when (token.firstOrNull()) {
+                    'W' -> width = token.substring(1).toInt()
+                    'H' -> height = token.substring(1).toInt()
+                    'F' -> {
+                        val (num, den) = token.substring(1).split(':').map { it.toDouble() }
+                        rate = num / den
+                    }
+                    'C' -> if (!token.startsWith("C420")) throw IOException("Unsupported Y4M color space $token")
+                }
+            }
+
+            this.width = width
+            this.height = height
+            frameRate = rate
+            frameSize = YuvConverter.yuvSize(width, height)
+            frameCount = ((channel.size() - headerSize) / (Y4m.FRAME_HEADER.size + frameSize)).toInt()
+        } catch (e: IOException) {
+            channel.close()
+            throw e
+        }
+    }
+
+    /**
+     * Reads the I420 planes of frame index into target, starting at its position.
+     */
+    @Throws(IOException::class)
+    fun readFrame(index: Int, target: ByteBuffer) {
+        if (index < 0 || index >= frameCount) {
+            throw IndexOutOfBoundsException("frame $index of $frameCount")
+        }
+        val position = headerSize + index.toLong() * (Y4m.FRAME_HEADER.size + frameSize) + Y4m.FRAME_HEADER.size
+        val frame = target.duplicate()
+        frame.limit(frame.position() + frameSize)
+        val start = frame.position()
+        while (frame.hasRemaining()) {
+            if (channel.read(frame, position + frame.position() - start) < 0) {
+                throw IOException("Y4M frame $index is truncated")
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    fun readFrame(index: Int, target: ByteArray) = readFrame(index, ByteBuffer.wrap(target))
+
+    override fun close() = channel.close()
+}
@@ -0,0 +1,306 @@
+package com.exozet.transcoder.mcvideoeditor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ARGB to YUV 4:2:0 conversion used by {@link MediaCodecCreateVideo}.
+ * <p>
+ * Holds the per-session pixel buffers so a merge doesn't allocate a new ARGB and YUV array for
+ * every frame.  An instance is not thread safe, it is meant to be owned by a single encoding
+ * session.
+ * <p>
+ * The kernels walk the image in row pairs: a luma pass over both rows, followed by a chroma pass
+ * over every second pixel of the upper row.  Compared to the former per pixel
+ * {@code j % 2 == 0 && index % 2 == 0} checks this keeps the inner loops free of branches, so the
+ * JIT can unroll them.  The well known BT.601 integer approximation used here can't leave
+ * [16, 240], therefore no clamping is needed either.
+ * <p>
+ * Since every row pair is independent, a converter created with a parallelism above 1 splits
+ * the frame into horizontal bands of even height and converts them on its own bounded
+ * {@link ForkJoinPool}.
+ * <p>
+ * Pixels are packed ints, either ARGB as returned by Bitmap#getPixels or ABGR as read from a
+ * little endian view of glReadPixels RGBA output, see {@link #readRgba(ByteBuffer, int[])}.
+ * <p>
+ * Has no Android dependencies on purpose, so it can be measured on a plain JVM.
+ */
+final class YuvConverter {
+
+    /**
+     * Position of the red channel in ARGB pixels.
+     */
+    static final int RED_SHIFT_ARGB = 16;
+
+    /**
+     * Position of the red channel in ABGR pixels.
+     */
+    static final int RED_SHIFT_ABGR = 0;
+
+    /**
+     * Bands below this height aren't worth the fork overhead.
+     */
+    private static final int MIN_BAND_HEIGHT = 16;
+
+    private final int parallelism;
+    private ForkJoinPool pool;
+
+    private int[] argb;
+    private byte[] yuv;
+
+    YuvConverter() {
+        this(1);
+    }
+
+    /**
+     * @param parallelism max amount of threads used to convert a single frame, 1 converts on the calling thread
+     */
+    YuvConverter(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Returns an ARGB buffer for a frame of the given size, reusing the previous one if possible.
+     */
+    int[] argbBuffer(int width, int height) {
+        final int size = width * height;
+        if (argb == null || argb.length != size) {
+            argb = new int[size];
+        }
+        return argb;
+    }
+
+    /**
+     * Returns a YUV 4:2:0 buffer for a frame of the given size, reusing the previous one if possible.
+     */
+    byte[] yuvBuffer(int width, int height) {
+        final int size = yuvSize(width, height);
+        if (yuv == null || yuv.length != size) {
+            yuv = new byte[size];
+        }
+        return yuv;
+    }
+
+    /**
+     * Converts to planar I420, see {@link #encodeYUV420P(byte[], int[], int, int, int, int, int)}.
+     */
+    void encodeYUV420P(byte[] yuv, int[] argb, int width, int height) {
+        encode(false, yuv, argb, width, height, RED_SHIFT_ARGB);
+    }
+
+    /**
+     * Converts ARGB or ABGR pixels to planar I420.
+     *
+     * @param redShift {@link #RED_SHIFT_ARGB} or {@link #RED_SHIFT_ABGR}
+     */
+    void encodeYUV420P(byte[] yuv, int[] pixels, int width, int height, int redShift) {
+        encode(false, yuv, pixels, width, height, redShift);
+    }
+
+    /**
+     * Converts to semi planar NV12, see {@link #encodeYUV420SP(byte[], int[], int, int, int, int, int)}.
+     */
+    void encodeYUV420SP(byte[] yuv, int[] argb, int width, int height) {
+        encode(true, yuv, argb, width, height, RED_SHIFT_ARGB);
+    }
+
+    /**
+     * Converts ARGB or ABGR pixels to semi planar NV12.
+     *
+     * @param redShift {@link #RED_SHIFT_ARGB} or {@link #RED_SHIFT_ABGR}
+     */
+    void encodeYUV420SP(byte[] yuv, int[] pixels, int width, int height, int redShift) {
+        encode(true, yuv, pixels, width, height, redShift);
+    }
+
+    private void encode(boolean semiPlanar, byte[] yuv, int[] argb, int width, int height, int redShift) {
+        final int bandHeight = bandHeight(height);
+        if (bandHeight >= height) {
+            encodeBand(semiPlanar, yuv, argb, width, height, 0, height, redShift);
+            return;
+        }
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        pool.invoke(new BandTask(semiPlanar, yuv, argb, width, height, 0, height, bandHeight, redShift));
+    }
+
+    /**
+     * Bulk copies glReadPixels RGBA output into ABGR ints, which is a plain memcpy on little endian devices.
+     */
+    static void readRgba(ByteBuffer rgba, int[] abgr) {
+        final ByteBuffer pixels = rgba.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        pixels.rewind();
+        pixels.asIntBuffer().get(abgr);
+    }
+
+    /**
+     * Even band height, so that each band owns complete chroma rows.
+     */
+    private int bandHeight(int height) {
+        if (parallelism == 1) {
+            return height;
+        }
+        final int rows = Math.max(MIN_BAND_HEIGHT, (height + parallelism - 1) / parallelism);
+        return (rows + 1) & ~1;
+    }
+
+    /**
+     * Drops the buffers and stops the worker threads, e.g. after the encoding session finished.
+     */
+    void release() {
+        argb = null;
+        yuv = null;
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Size in bytes of a YUV 4:2:0 frame. Odd dimensions get a chroma sample for the last column / row.
+     */
+    static int yuvSize(int width, int height) {
+        return width * height + 2 * ((width + 1) >> 1) * ((height + 1) >> 1);
+    }
+
+    /**
+     * Rearranges planar I420 into semi planar NV12, the luma plane is a bulk copy, the chroma planes get interleaved.
+     */
+    static void i420ToNv12(byte[] i420, byte[] nv12, int width, int height) {
+        final int frameSize = width * height;
+        final int chromaSize = ((width + 1) >> 1) * ((height + 1) >> 1);
+        System.arraycopy(i420, 0, nv12, 0, frameSize);
+        int uvIndex = frameSize;
+        final int vStart = frameSize + chromaSize;
+        for (int i = 0; i < chromaSize; i++) {
+            nv12[uvIndex++] = i420[frameSize + i];
+            nv12[uvIndex++] = i420[vStart + i];
+        }
+    }
+
+    /**
+     * Planar I420 (COLOR_FormatYUV420Planar): full Y plane, followed by the U plane and the V plane.
+     * Converts the rows [rowStart, rowEnd), rowStart has to be even.
+     * The red channel of the pixels is at redShift, green at 8 and blue at 16 - redShift.
+     */
+    static void encodeYUV420P(byte[] yuv, int[] argb, int width, int height, int rowStart, int rowEnd, int redShift) {
+        final int blueShift = RED_SHIFT_ARGB - redShift;
+        final int frameSize = width * height;
+        final int chromaWidth = (width + 1) >> 1;
+        final int chromaSize = chromaWidth * ((height + 1) >> 1);
+        final int uOffset = frameSize;
+        final int vOffset = frameSize + chromaSize;
+
+        for (int j = rowStart; j < rowEnd; j += 2) {
+            final int row = j * width;
+            encodeLumaRow(yuv, argb, row, width, redShift, blueShift);
+            if (j + 1 < rowEnd) {
+                encodeLumaRow(yuv, argb, row + width, width, redShift, blueShift);
+            }
+
+            int chroma = (j >> 1) * chromaWidth;
+            for (int i = 0; i < width; i += 2) {
+                final int c = argb[row + i];
+                final int r = (c >> redShift) & 0xff;
+                final int g = (c >> 8) & 0xff;
+                final int b = (c >> blueShift) & 0xff;
+                yuv[uOffset + chroma] = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                yuv[vOffset + chroma] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+                chroma++;
+            }
+        }
+    }
+
+    /**
+     * Semi planar NV12 (COLOR_FormatYUV420SemiPlanar): full Y plane, followed by interleaved U/V samples.
+     * Converts the rows [rowStart, rowEnd), rowStart has to be even.
+     * The red channel of the pixels is at redShift, green at 8 and blue at 16 - redShift.
+     */
+    static void encodeYUV420SP(byte[] yuv, int[] argb, int width, int height, int rowStart, int rowEnd, int redShift) {
+        final int blueShift = RED_SHIFT_ARGB - redShift;
+        final int frameSize = width * height;
+        final int chromaStride = ((width + 1) >> 1) << 1;
+
+        for (int j = rowStart; j < rowEnd; j += 2) {
+            final int row = j * width;
+            encodeLumaRow(yuv, argb, row, width, redShift, blueShift);
+            if (j + 1 < rowEnd) {
+                encodeLumaRow(yuv, argb, row + width, width, redShift, blueShift);
+            }
+
+            int uv = frameSize + (j >> 1) * chromaStride;
+            for (int i = 0; i < width; i += 2) {
+                final int c = argb[row + i];
+                final int r = (c >> redShift) & 0xff;
+                final int g = (c >> 8) & 0xff;
+                final int b = (c >> blueShift) & 0xff;
+                yuv[uv++] = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                yuv[uv++] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+            }
+        }
+    }
+
+    private static void encodeLumaRow(byte[] yuv, int[] argb, int offset, int width, int redShift, int blueShift) {
+        final int end = offset + width;
+        for (int index = offset; index < end; index++) {
+            final int c = argb[index];
+            final int r = (c >> redShift) & 0xff;
+            final int g = (c >> 8) & 0xff;
+            final int b = (c >> blueShift) & 0xff;
+            yuv[index] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+        }
+    }
+
+    private static void encodeBand(boolean semiPlanar, byte[] yuv, int[] argb, int width, int height, int rowStart, int rowEnd, int redShift) {
+        if (semiPlanar) {
+            encodeYUV420SP(yuv, argb, width, height, rowStart, rowEnd, redShift);
+        } else {
+            encodeYUV420P(yuv, argb, width, height, rowStart, rowEnd, redShift);
+        }
+    }
+
+    /**
+     * Halves its rows until a band fits into the band height, then converts it.
+     */
+    private static final class BandTask extends RecursiveAction {
+
+        private final boolean semiPlanar;
+        private final byte[] yuv;
+        private final int[] argb;
+        private final int width;
+        private final int height;
+        private final int rowStart;
+        private final int rowEnd;
+        private final int bandHeight;
+        private final int redShift;
+
+        BandTask(boolean semiPlanar, byte[] yuv, int[] argb, int width, int height, int rowStart, int rowEnd, int bandHeight, int redShift) {
+            this.semiPlanar = semiPlanar;
+            this.yuv = yuv;
+            this.argb = argb;
+            this.width = width;
+            this.height = height;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.bandHeight = bandHeight;
+            this.redShift = redShift;
+        }
+
+        @Override
+        protected void compute() {
+            final int rows = rowEnd - rowStart;
+            if (rows <= bandHeight) {
+                encodeBand(semiPlanar, yuv, argb, width, height, rowStart, rowEnd, redShift);
+                return;
+            }
+            // split on a multiple of the band height, which is even
+            final int split = rowStart + ((rows / bandHeight + 1) / 2) * bandHeight;
+            invokeAll(
+                    new BandTask(semiPlanar, yuv, argb, width, height, rowStart, split, bandHeight, redShift),
+                    new BandTask(semiPlanar, yuv, argb, width, height, split, rowEnd, bandHeight, redShift));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.exozet.transcoder.ffmpeg
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class FFMpegCommandsTest {
+
+    @Test
+    fun fusedGraphKeepsAudioInTheVideoOutput() {
+        val video = outputOptions(fusedGraph(), "/out/video.mp4")
+
+        assertEquals(listOf("-map", "[video]", "-map", "0:a?", "-c:a", "copy"), video)
+    }
+
+    @Test
+    fun fusedGraphRetimesOnlyTheImagesOutput() {
+        val command = fusedGraph()
+
+        assertFalse(command.contains("-vsync"))
+        assertEquals(listOf("-map", "[frames]", "-r", "12.0", "-qscale:v", "2"), outputOptions(command, "/out/image_%03d.jpg"))
+        val graph = command[command.indexOf("-filter_complex") + 1]
+        assertTrue(graph, graph.contains(",setpts=N/(12.0*TB),split=2[frames][framesvideo]"))
+    }
+
+    @Test
+    fun seekingSelectsTimesRelativeToTheSeekTime() {
+        val cluster = FFMpegCommands.clusterTimes(listOf("12.5", "13.0", "40.0")).first()
+        val command = FFMpegCommands.extractFramesSeeking("/in.mp4", cluster, 2, "/out/image_%03d.jpg", 1)
+
+        assertEquals("11.500000", command[command.indexOf("-ss") + 1])
+        assertFalse(command.contains("-copyts"))
+        assertEquals(
+            "select='${FFMpegCommands.selectExpression(listOf("1.000000", "1.500000"))}'",
+            command[command.indexOf("-filter:v") + 1]
+        )
+    }
+
+    @Test
+    fun clusterAtTheStartKeepsRequestedTimes() {
+        val cluster = FFMpegCommands.clusterTimes(listOf("0.5", "1.0")).first()
+        val command = FFMpegCommands.extractFramesSeeking("/in.mp4", cluster, 2, "/out/image_%03d.jpg", 1)
+
+        assertFalse(command.contains("-ss"))
+        assertEquals("select='${FFMpegCommands.selectExpression(listOf("0.5", "1.0"))}'", command[command.indexOf("-filter:v") + 1])
+    }
+
+    private fun fusedGraph(): Array<String> = FFMpegCommands.fusedGraph(
+        inputVideo = "/in.mp4",
+        transforms = null,
+        stabilization = StabilizationConfig(),
+        videoOutput = "/out/video.mp4",
+        frameTimes = listOf("1.0", "2.5"),
+        frameOutputPattern = "/out/image_%03d.jpg",
+        photoQuality = 2,
+        framesVideoOutput = "/out/frames.mp4",
+        framesVideoConfig = EncodingConfig(sourceFrameRate = 12f)
+    )
+
+    /**
+     * Options between the previous output, or the filter graph, and output.
+     */
+    private fun outputOptions(command: Array<String>, output: String): List<String> {
+        val end = command.indexOf(output)
+        val graph = command.indexOf("-filter_complex") + 1
+        val previous = command.indices.last { it == graph || it < end && command[it].startsWith("/") }
+        return command.toList().subList(previous + 1, end)
+    }
+}
@@ -0,0 +1,111 @@
+package com.exozet.transcoder.ffmpeg
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+
+class TranscoderLogTest {
+
+    private val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+    @After
+    fun tearDown() {
+        TranscoderLog.level = LogLevel.NONE
+        TranscoderLog.sink = null
+    }
+
+    @Test
+    fun disabledLoggingDoesNotAllocate() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported)
+        TranscoderLog.sink = RingBufferLogSink()
+        TranscoderLog.level = LogLevel.NONE
+
+        // warm up, so class loading and compilation aren't measured
+        repeat(3) { logFrames(CALLS) }
+
+        val baseline = allocatedBytes { }
+        val allocated = allocatedBytes { logFrames(CALLS) }
+
+        assertEquals("bytes allocated by $CALLS disabled log calls", 0L, allocated - baseline)
+    }
+
+    @Test
+    fun levelBelowDisabledLoggingDoesNotAllocate() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported)
+        TranscoderLog.sink = RingBufferLogSink()
+        TranscoderLog.level = LogLevel.ERROR
+
+        repeat(3) { logFrames(CALLS) }
+
+        val baseline = allocatedBytes { }
+        val allocated = allocatedBytes { logFrames(CALLS) }
+
+        assertEquals("bytes allocated by $CALLS debug log calls", 0L, allocated - baseline)
+    }
+
+    @Test
+    fun enabledLoggingAllocates() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported)
+        val sink = RingBufferLogSink(capacity = 4)
+        TranscoderLog.sink = sink
+        TranscoderLog.level = LogLevel.DEBUG
+
+        val allocated = allocatedBytes { logFrames(CALLS) }
+
+        assertTrue("$allocated bytes allocated", allocated > 0)
+        assertEquals(4, sink.snapshot().size)
+    }
+
+    @Test
+    fun ringBufferFormatsOnlyOnSnapshot() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported)
+        val sink = RingBufferLogSink(capacity = 3)
+        val tag = "FFMpeg-1"
+        val messages = Array(5) { "line $it" }
+
+        repeat(3) { logLines(sink, tag, messages) }
+
+        val baseline = allocatedBytes { }
+        val allocated = allocatedBytes {
+            repeat(CALLS) { logLines(sink, tag, messages) }
+        }
+
+        // formatting would take dozens of bytes per line, a lock taking its slow path a few bytes once
+        val lines = CALLS * messages.size
+        assertTrue("${allocated - baseline} bytes allocated by $lines kept lines", allocated - baseline < lines)
+        sink.log(LogLevel.ERROR, tag, "failed")
+        assertEquals(listOf("I/FFMpeg-1: line 3", "I/FFMpeg-1: line 4", "E/FFMpeg-1: failed"), sink.snapshot())
+    }
+
+    private fun logLines(sink: LogSink, tag: String, messages: Array<String>) {
+        for (i in messages.indices) {
+            sink.log(LogLevel.INFO, tag, messages[i])
+        }
+    }
+
+    /**
+     * Logs like a decoding loop, with messages capturing the frame, so that building them would allocate.
+     */
+    private fun logFrames(count: Int) {
+        val tag = "TranscoderLogTest"
+        for (frame in 0 until count) {
+            val presentationTimeUs = frame * 33_333L
+            TranscoderLog.log(LogLevel.DEBUG, tag) { "frame $frame at $presentationTimeUs us" }
+            log { "decoded frame $frame" }
+        }
+    }
+
+    private inline fun allocatedBytes(block: () -> Unit): Long {
+        val thread = Thread.currentThread().id
+        val start = threads.getThreadAllocatedBytes(thread)
+        block()
+        return threads.getThreadAllocatedBytes(thread) - start
+    }
+
+    private companion object {
+        const val CALLS = 10_000
+    }
+}
@@ -0,0 +1,143 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import com.exozet.transcoder.ffmpeg.TranscodeMetrics
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class EncoderPipelineTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun slowSinkBoundsFramesInTheEncoder() {
+        val backend = SoftwareCodecBackend(inputBufferCount = 2, outputBufferCount = 2)
+        val encoder = InFlightCodec(backend.createEncoder(SoftwareCodecBackend.MIME_TYPE, WIDTH, HEIGHT, 0, 30, CodecConstants.COLOR_FormatYUV420Planar, 1))
+        val output = folder.newFile("out.y4m")
+        val pipeline = EncoderPipeline(encoder, TrackingBackend(backend, sampleDelayMs = 2).createSink(output.path))
+
+        val frame = ByteArray(YuvConverter.yuvSize(WIDTH, HEIGHT))
+        for (i in 0 until FRAMES) {
+            pipeline.queueFrame(frame, pts(i))
+            assertTrue("${encoder.inFlight} frames in the encoder", encoder.inFlight <= 4)
+        }
+        pipeline.finish(pts(FRAMES))
+        pipeline.release()
+
+        assertEquals(FRAMES, pipeline.writtenSamples)
+        assertTrue("${encoder.maxInFlight} frames in the encoder", encoder.maxInFlight in 1..4)
+        Y4mReader(output.path).use { assertEquals(FRAMES, it.frameCount) }
+    }
+
+    @Test
+    fun releaseMidStreamReleasesEncoderAndSink() {
+        val backend = TrackingBackend()
+        val pipeline = EncoderPipeline(
+            backend.createEncoder(SoftwareCodecBackend.MIME_TYPE, WIDTH, HEIGHT, 0, 30, CodecConstants.COLOR_FormatYUV420Planar, 1),
+            backend.createSink(folder.newFile("out.y4m").path)
+        )
+
+        val frame = ByteArray(YuvConverter.yuvSize(WIDTH, HEIGHT))
+        repeat(FRAMES / 2) { pipeline.queueFrame(frame, pts(it)) }
+        pipeline.release()
+
+        assertEquals(0, backend.liveCodecs.get())
+        assertEquals(0, backend.liveSinks.get())
+    }
+
+    @Test
+    fun missingEndOfStreamFailsAfterTimeout() {
+        val backend = TrackingBackend()
+        val pipeline = EncoderPipeline(
+            NoEndOfStreamCodec(backend.createEncoder(SoftwareCodecBackend.MIME_TYPE, WIDTH, HEIGHT, 0, 30, CodecConstants.COLOR_FormatYUV420Planar, 1)),
+            backend.createSink(folder.newFile("out.y4m").path),
+            TranscodeMetrics(),
+            AtomicBoolean(),
+            100
+        )
+
+        val frame = ByteArray(YuvConverter.yuvSize(WIDTH, HEIGHT))
+        repeat(FRAMES / 2) { pipeline.queueFrame(frame, pts(it)) }
+        assertThrows(IllegalStateException::class.java) { pipeline.finish(pts(FRAMES / 2)) }
+        pipeline.release()
+
+        assertEquals(0, backend.liveCodecs.get())
+        assertEquals(0, backend.liveSinks.get())
+    }
+
+    @Test
+    fun cancelStopsWaitingForEndOfStream() {
+        val backend = SoftwareCodecBackend()
+        val cancel = AtomicBoolean()
+        val pipeline = EncoderPipeline(
+            NoEndOfStreamCodec(backend.createEncoder(SoftwareCodecBackend.MIME_TYPE, WIDTH, HEIGHT, 0, 30, CodecConstants.COLOR_FormatYUV420Planar, 1)),
+            backend.createSink(folder.newFile("out.y4m").path),
+            TranscodeMetrics(),
+            cancel,
+            TimeUnit.MINUTES.toMillis(1)
+        )
+
+        val executor = Executors.newSingleThreadExecutor()
+        try {
+            val finish = executor.submit { pipeline.finish(pts(0)) }
+            cancel.set(true)
+
+            val error = assertThrows(ExecutionException::class.java) { finish.get(5, TimeUnit.SECONDS) }
+            assertTrue(error.cause.toString(), error.cause is CancellationException)
+        } finally {
+            executor.shutdown()
+            pipeline.release()
+        }
+    }
+
+    private fun pts(frame: Int) = frame * 1_000_000L / 30
+
+    /**
+     * Counts the frames queued and not returned by the encoder yet.
+     */
+    private class InFlightCodec(private val codec: VideoCodec) : VideoCodec by codec {
+
+        var inFlight = 0
+
+        var maxInFlight = 0
+
+        override fun queueInputBuffer(index: Int, offset: Int, size: Int, presentationTimeUs: Long, flags: Int) {
+            codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags)
+            if (size > 0) {
+                maxInFlight = Math.max(maxInFlight, ++inFlight)
+            }
+        }
+
+        override fun dequeueOutputBuffer(info: SampleInfo, timeoutUs: Long): Int {
+            val index = codec.dequeueOutputBuffer(info, timeoutUs)
+            if (index >= 0 && info.size > 0) {
+                inFlight--
+            }
+            return index
+        }
+    }
+
+    /**
+     * Drops the end of stream flag, like an encoder which hangs on the last frame.
+     */
+    private class NoEndOfStreamCodec(private val codec: VideoCodec) : VideoCodec by codec {
+
+        override fun queueInputBuffer(index: Int, offset: Int, size: Int, presentationTimeUs: Long, flags: Int) =
+            codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags and CodecConstants.BUFFER_FLAG_END_OF_STREAM.inv())
+    }
+
+    private companion object {
+        const val WIDTH = 64
+        const val HEIGHT = 48
+        const val FRAMES = 40
+    }
+}
@@ -0,0 +1,112 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import android.net.Uri
+import com.exozet.transcoder.ffmpeg.LogLevel
+import com.exozet.transcoder.ffmpeg.TranscoderLog
+import io.reactivex.schedulers.Schedulers
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], manifest = Config.NONE)
+class MediaCodecCreateVideoTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val undeliverable = UndeliverableErrors()
+
+    @Before
+    fun setUp() {
+        TranscoderLog.level = LogLevel.NONE
+    }
+
+    @After
+    fun tearDown() = undeliverable.close()
+
+    @Test
+    fun slowMuxerEncodesEveryFrame() {
+        val backend = TrackingBackend(sampleDelayMs = 2)
+        val output = File(folder.root, "out.y4m")
+
+        MediaCodecTranscoder.createVideoFromFrames(frames(FRAMES), Uri.fromFile(output), backend = backend)
+            .subscribeOn(Schedulers.io())
+            .test()
+            .awaitDone(10, TimeUnit.SECONDS)
+            .assertComplete()
+
+        Y4mReader(output.path).use { assertEquals(FRAMES, it.frameCount) }
+        assertEquals(0, backend.liveCodecs.get())
+        assertEquals(0, backend.liveSinks.get())
+        assertTrue(undeliverable.errors.isEmpty())
+    }
+
+    @Test
+    fun disposeMidStreamStopsEncodingAndDeletesOutput() {
+        val backend = TrackingBackend(sampleDelayMs = 5)
+        val output = File(folder.root, "out.y4m")
+
+        val observer = MediaCodecTranscoder.createVideoFromFrames(frames(FRAMES * 4), Uri.fromFile(output), backend = backend)
+            .subscribeOn(Schedulers.io())
+            .test()
+        assertTrue(eventually { observer.valueCount() >= 5 })
+        observer.dispose()
+
+        assertTrue("codecs released", eventually { backend.liveCodecs.get() == 0 && backend.liveSinks.get() == 0 })
+        // frames read after the readers were closed would fail on a disposed emitter
+        Thread.sleep(100)
+
+        observer.assertNotComplete()
+        assertFalse(output.exists())
+        assertTrue(undeliverable.errors.toString(), undeliverable.errors.isEmpty())
+    }
+
+    @Test
+    fun failingMuxerReleasesEncoderAndDeletesOutput() {
+        val backend = TrackingBackend(failAfterSamples = 5)
+        val output = File(folder.root, "out.y4m")
+
+        MediaCodecTranscoder.createVideoFromFrames(frames(FRAMES), Uri.fromFile(output), backend = backend)
+            .subscribeOn(Schedulers.io())
+            .test()
+            .awaitDone(10, TimeUnit.SECONDS)
+            .assertError(IllegalStateException::class.java)
+
+        assertEquals(0, backend.liveCodecs.get())
+        assertEquals(0, backend.liveSinks.get())
+        assertFalse(output.exists())
+        assertTrue(undeliverable.errors.toString(), undeliverable.errors.isEmpty())
+    }
+
+    @Test
+    fun emptyInputFailsInsteadOfHanging() {
+        val backend = TrackingBackend()
+        val output = File(folder.root, "out.y4m")
+
+        MediaCodecTranscoder.createVideoFromFrames(frames(0), Uri.fromFile(output), backend = backend)
+            .subscribeOn(Schedulers.io())
+            .test()
+            .awaitDone(10, TimeUnit.SECONDS)
+            .assertError(IllegalArgumentException::class.java)
+
+        assertEquals(0, backend.liveCodecs.get())
+        assertFalse(output.exists())
+    }
+
+    private fun frames(frameCount: Int): Uri = Uri.fromFile(writeVideo(folder.newFile("frames.y4m"), frameCount))
+
+    private companion object {
+        const val FRAMES = 30
+    }
+}
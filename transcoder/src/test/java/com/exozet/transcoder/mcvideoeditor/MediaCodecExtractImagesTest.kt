@@ -0,0 +1,129 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import android.net.Uri
+import com.exozet.transcoder.ffmpeg.LogLevel
+import com.exozet.transcoder.ffmpeg.TranscoderLog
+import io.reactivex.schedulers.Schedulers
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], manifest = Config.NONE)
+class MediaCodecExtractImagesTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val undeliverable = UndeliverableErrors()
+
+    @Before
+    fun setUp() {
+        TranscoderLog.level = LogLevel.NONE
+    }
+
+    @After
+    fun tearDown() = undeliverable.close()
+
+    @Test
+    fun slowSinkHoldsAtMostFramesInFlight() {
+        val backend = TrackingBackend()
+        val sink = SlowSink(releaseDelayMs = 5)
+
+        val observer = MediaCodecExtractImages(backend, sampleIndexCache = null)
+            .extractFrames(video(FRAMES), frameTimes(FRAMES), sink)
+            .subscribeOn(Schedulers.io())
+            .test()
+            .awaitDone(10, TimeUnit.SECONDS)
+            .assertComplete()
+        sink.close()
+
+        // one progress per released frame, then the final one
+        observer.assertValueCount(FRAMES + 1)
+        assertEquals(List(FRAMES) { (it + 1) * 100 / FRAMES } + 100, observer.values().map { it.progress })
+
+        assertEquals(FRAMES, sink.received.get())
+        assertTrue("${sink.maxHeld} frames held", sink.maxHeld in 1..sink.framesInFlight)
+        assertEquals(0, backend.liveCodecs.get())
+        assertTrue(undeliverable.errors.isEmpty())
+    }
+
+    @Test
+    fun disposeMidStreamDiscardsAndReleasesDecoder() {
+        val backend = TrackingBackend()
+        val sink = SlowSink(releaseDelayMs = 20)
+
+        val observer = MediaCodecExtractImages(backend, sampleIndexCache = null)
+            .extractFrames(video(FRAMES * 4), frameTimes(FRAMES * 4), sink)
+            .subscribeOn(Schedulers.io())
+            .test()
+        assertTrue(eventually { sink.received.get() >= 5 })
+        observer.dispose()
+
+        assertTrue("decoder released", eventually { sink.discarded && backend.liveCodecs.get() == 0 })
+        sink.close()
+
+        assertTrue("${sink.received.get()} frames received", sink.received.get() < FRAMES * 4)
+        observer.assertNotComplete()
+        assertTrue(undeliverable.errors.toString(), undeliverable.errors.isEmpty())
+    }
+
+    private fun video(frameCount: Int): Uri = Uri.fromFile(writeVideo(folder.newFile("in.y4m"), frameCount))
+
+    private fun frameTimes(frameCount: Int) = List(frameCount) { it / 30.0 }
+
+    /**
+     * Releases every frame releaseDelayMs after it was received, on a thread of its own like a sink writing files.
+     */
+    private class SlowSink(private val releaseDelayMs: Long) : FrameSink, AutoCloseable {
+
+        private val releaser = Executors.newSingleThreadExecutor()
+
+        private val held = AtomicInteger()
+
+        val received = AtomicInteger()
+
+        @Volatile
+        var maxHeld = 0
+
+        @Volatile
+        var discarded = false
+
+        override fun start(width: Int, height: Int) = Unit
+
+        override fun onFrame(frame: ExtractedFrame) {
+            received.incrementAndGet()
+            maxHeld = Math.max(maxHeld, held.incrementAndGet())
+            releaser.execute {
+                Thread.sleep(releaseDelayMs)
+                held.decrementAndGet()
+                frame.release()
+            }
+        }
+
+        override fun complete() = Unit
+
+        override fun discard() {
+            discarded = true
+        }
+
+        override fun close() {
+            releaser.shutdown()
+            releaser.awaitTermination(5, TimeUnit.SECONDS)
+        }
+    }
+
+    private companion object {
+        const val FRAMES = 30
+    }
+}
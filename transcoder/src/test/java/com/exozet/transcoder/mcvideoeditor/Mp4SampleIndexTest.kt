@@ -0,0 +1,56 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class Mp4SampleIndexTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun cacheFileDiffersForCollidingPathsAndChangedVideos() {
+        val directory = folder.root
+        // same String.hashCode
+        assertEquals("/v/Aa.mp4".hashCode(), "/v/BB.mp4".hashCode())
+
+        val entry = Mp4SampleIndex.cacheFile(directory, "/v/Aa.mp4", 1000, 1)
+        assertNotEquals(entry, Mp4SampleIndex.cacheFile(directory, "/v/BB.mp4", 1000, 1))
+        assertNotEquals(entry, Mp4SampleIndex.cacheFile(directory, "/v/Aa.mp4", 1001, 1))
+        assertNotEquals(entry, Mp4SampleIndex.cacheFile(directory, "/v/Aa.mp4", 1000, 2))
+        assertEquals(entry, Mp4SampleIndex.cacheFile(directory, "/v/Aa.mp4", 1000, 1))
+    }
+
+    @Test
+    fun trimDeletesLeastRecentlyUsedEntries() {
+        val directory = folder.root
+        val entries = List(4) { i ->
+            entry(directory, "/v/$i.mp4", lastUsed = 1_000_000L * (i + 1))
+        }
+        val unrelated = folder.newFile("other.tmp").apply { writeBytes(ByteArray(ENTRY_BYTES * 4)) }
+
+        Mp4SampleIndex.trimCache(directory, entries[0], 3L * ENTRY_BYTES)
+
+        assertTrue("kept regardless", entries[0].exists())
+        assertFalse(entries[1].exists())
+        assertTrue(entries[2].exists())
+        assertTrue(entries[3].exists())
+        assertTrue(unrelated.exists())
+    }
+
+    private fun entry(directory: File, path: String, lastUsed: Long): File =
+        Mp4SampleIndex.cacheFile(directory, path, 1000, 1).apply {
+            writeBytes(ByteArray(ENTRY_BYTES))
+            setLastModified(lastUsed)
+        }
+
+    private companion object {
+        const val ENTRY_BYTES = 1000
+    }
+}
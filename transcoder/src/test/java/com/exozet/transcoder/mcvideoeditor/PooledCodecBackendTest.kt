@@ -0,0 +1,95 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import com.exozet.transcoder.ffmpeg.LogLevel
+import com.exozet.transcoder.ffmpeg.TranscoderLog
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.FutureTask
+import java.util.concurrent.TimeUnit
+
+class PooledCodecBackendTest {
+
+    @Before
+    fun setUp() {
+        TranscoderLog.level = LogLevel.NONE
+    }
+
+    @Test
+    fun idleDecodersMakeRoomForNewOnes() {
+        val backend = TrackingBackend(SoftwareCodecBackend(maxDecoders = 2))
+        val pool = PooledCodecBackend(backend, maxIdle = 4, idleTimeoutMs = 0)
+
+        decode(pool, 64, 48)
+        decode(pool, 32, 24)
+        assertEquals(2, backend.liveCodecs.get())
+
+        // the decoder idle for the longest gives up its instance
+        val decoder = pool.createDecoder(TrackFormat(SoftwareCodecBackend.MIME_TYPE, 16, 16), pool.createFrameOutput(16, 16, null))
+        assertEquals(2, backend.liveCodecs.get())
+        // output and decoder of the other one are still idle
+        decode(pool, 32, 24)
+        assertEquals(2, pool.reused)
+        assertEquals(2, backend.maxLiveCodecs.get())
+
+        decoder.release()
+        pool.close()
+        assertEquals(0, backend.liveCodecs.get())
+    }
+
+    @Test
+    fun jobsBeyondDecoderInstancesWaitForARunningOne() {
+        val backend = TrackingBackend(SoftwareCodecBackend(maxDecoders = 2))
+        val pool = PooledCodecBackend(backend, maxIdle = 4, idleTimeoutMs = 0)
+        val limits = DecoderLimits(pool)
+        // both instances idle in the pool
+        decode(limits, 64, 48)
+        decode(limits, 32, 24)
+
+        val running = CountDownLatch(2)
+        val finish = CountDownLatch(1)
+        val executor = Executors.newFixedThreadPool(2)
+        val jobs = List(2) {
+            executor.submit {
+                decode(limits, 16, 16) {
+                    running.countDown()
+                    finish.await()
+                }
+            }
+        }
+        assertTrue(running.await(5, TimeUnit.SECONDS))
+        // the idle decoders made room for the running ones
+        assertEquals(2, backend.liveCodecs.get())
+
+        val waiting = FutureTask { decode(limits, 16, 16) }
+        val waitingThread = Thread(waiting).apply { start() }
+        assertTrue("third job waits for an instance", eventually { waitingThread.state == Thread.State.WAITING })
+        assertEquals(2, backend.liveCodecs.get())
+
+        finish.countDown()
+        jobs.forEach { it.get(5, TimeUnit.SECONDS) }
+        waiting.get(5, TimeUnit.SECONDS)
+        executor.shutdown()
+        pool.close()
+
+        assertEquals(2, backend.maxLiveCodecs.get())
+        // the decoder of a finished job, the output was created before waiting
+        assertEquals(1, pool.reused)
+        assertEquals(0, backend.liveCodecs.get())
+    }
+
+    /**
+     * Creates a decoder like a job does, runs whileDecoding and hands it back stopped, so a pool keeps it.
+     */
+    private fun decode(backend: CodecBackend, width: Int, height: Int, whileDecoding: () -> Unit = {}) {
+        val output = backend.createFrameOutput(width, height, null)
+        val decoder = backend.createDecoder(TrackFormat(SoftwareCodecBackend.MIME_TYPE, width, height), output)
+        whileDecoding()
+        decoder.stop()
+        decoder.release()
+        output.release()
+    }
+}
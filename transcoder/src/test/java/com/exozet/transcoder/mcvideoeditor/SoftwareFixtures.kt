@@ -0,0 +1,122 @@
+package com.exozet.transcoder.mcvideoeditor
+
+import io.reactivex.plugins.RxJavaPlugins
+import java.io.File
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Writes a Y4M video for [SoftwareCodecBackend] whose luma is the index of the frame.
+ */
+internal fun writeVideo(file: File, frameCount: Int, width: Int = 64, height: Int = 48, frameRate: Int = 30): File {
+    Y4mWriter(file.path, width, height, frameRate).use { writer ->
+        val frame = ByteArray(writer.frameSize)
+        for (i in 0 until frameCount) {
+            frame.fill((i % 256).toByte(), 0, width * height)
+            writer.writeFrame(frame)
+        }
+    }
+    return file
+}
+
+/**
+ * Polls condition until it holds or timeoutMs passed.
+ */
+internal fun eventually(timeoutMs: Long = 5_000L, condition: () -> Boolean): Boolean {
+    val end = System.currentTimeMillis() + timeoutMs
+    while (!condition()) {
+        if (System.currentTimeMillis() > end) {
+            return false
+        }
+        Thread.sleep(10)
+    }
+    return true
+}
+
+/**
+ * Collects the errors RxJava couldn't deliver, e.g. errors of disposed jobs, which crash an app.
+ */
+internal class UndeliverableErrors : AutoCloseable {
+
+    val errors: MutableList<Throwable> = Collections.synchronizedList(ArrayList())
+
+    init {
+        RxJavaPlugins.setErrorHandler { errors.add(it) }
+    }
+
+    override fun close() = RxJavaPlugins.setErrorHandler(null)
+}
+
+/**
+ * [SoftwareCodecBackend] counting its codecs which are not released yet, with an optional delay per written sample
+ * to simulate a slow muxer.
+ *
+ * @param failAfterSamples samples the muxer writes before it fails like a full disk, -1 to never fail
+ */
+internal class TrackingBackend(
+    private val backend: CodecBackend = SoftwareCodecBackend(),
+    private val sampleDelayMs: Long = 0L,
+    private val failAfterSamples: Int = -1
+) : CodecBackend by backend {
+
+    val liveCodecs = AtomicInteger()
+
+    /**
+     * Most codecs which were not released at the same time.
+     */
+    val maxLiveCodecs = AtomicInteger()
+
+    val liveSinks = AtomicInteger()
+
+    override fun createDecoder(format: TrackFormat, output: FrameOutput): VideoCodec =
+        TrackedCodec(backend.createDecoder(format, output))
+
+    override fun createEncoder(mimeType: String, width: Int, height: Int, bitRate: Int, frameRate: Int, colorFormat: Int, iFrameInterval: Int): VideoCodec =
+        TrackedCodec(backend.createEncoder(mimeType, width, height, bitRate, frameRate, colorFormat, iFrameInterval))
+
+    override fun createSink(path: String): MediaSink {
+        val sink = backend.createSink(path)
+        liveSinks.incrementAndGet()
+        return object : MediaSink by sink {
+
+            private var released = false
+
+            private var samples = 0
+
+            override fun writeSampleData(trackIndex: Int, data: java.nio.ByteBuffer, info: SampleInfo) {
+                if (sampleDelayMs > 0) {
+                    Thread.sleep(sampleDelayMs)
+                }
+                if (samples++ == failAfterSamples) {
+                    throw IllegalStateException("muxer failed")
+                }
+                sink.writeSampleData(trackIndex, data, info)
+            }
+
+            override fun release() {
+                sink.release()
+                if (!released) {
+                    released = true
+                    liveSinks.decrementAndGet()
+                }
+            }
+        }
+    }
+
+    private inner class TrackedCodec(private val codec: VideoCodec) : VideoCodec by codec {
+
+        private var released = false
+
+        init {
+            maxLiveCodecs.accumulateAndGet(liveCodecs.incrementAndGet(), Math::max)
+        }
+
+        override fun release() {
+            codec.release()
+            if (!released) {
+                released = true
+                liveCodecs.decrementAndGet()
+            }
+        }
+    }
+}